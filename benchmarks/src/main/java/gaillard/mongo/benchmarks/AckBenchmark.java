@@ -0,0 +1,79 @@
+package gaillard.mongo.benchmarks;
+
+import com.mongodb.BasicDBObject;
+import gaillard.mongo.Queue;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ack(), ackSend() and requeue() of a claimed message. A message is sent and claimed before each invocation, outside the measurement.
+ * Those calls take far longer than the timer overhead of per invocation setup.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AckBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+
+        @Param({"100", "10000", "100000"})
+        public int payloadSize;
+
+        private Queue queue;
+        private BasicDBObject payload;
+
+        @Setup
+        public void setup() {
+            queue = new Queue(Mongo.collection("ack"));
+            queue.ensureGetIndex(new BasicDBObject("type", 1));
+            //only reset by these benchmarks, never by get()
+            queue.setResetStuckOnGet(false);
+            payload = Mongo.payload(payloadSize);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Claimed {
+
+        private BasicDBObject message;
+
+        @Setup(Level.Invocation)
+        public void claim(final Shared shared) {
+            //claim by a unique key so other threads do not take the message sent here
+            final ObjectId key = new ObjectId();
+            shared.queue.send(new BasicDBObject(shared.payload).append("key", key));
+            message = shared.queue.get(new BasicDBObject("key", key), 3600, 1000);
+        }
+    }
+
+    @Benchmark
+    public void ack(final Shared shared, final Claimed claimed) {
+        shared.queue.ack(claimed.message);
+    }
+
+    @Benchmark
+    public void ackSend(final Shared shared, final Claimed claimed) {
+        shared.queue.ackSend(claimed.message, shared.payload, new Date());
+    }
+
+    @Benchmark
+    public void requeue(final Shared shared, final Claimed claimed) {
+        shared.queue.requeue(claimed.message);
+    }
+}
@@ -0,0 +1,66 @@
+package gaillard.mongo.benchmarks;
+
+import com.mongodb.BasicDBObject;
+import gaillard.mongo.OutgoingMessage;
+import gaillard.mongo.Queue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * get() and ackSend() by many consumer threads, set with -t, on one queue with and without striping. Without striping every
+ * consumer races for the head of the queue. Each ackSend() sends the message back so the depth stays the same.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContentionBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Striped {
+
+        @Param({"1", "4", "16"})
+        public int stripes;
+
+        private Queue queue;
+
+        @Setup
+        public void setup() {
+            queue = new Queue(Mongo.collection("contention"));
+            queue.setStripes(stripes);
+            queue.ensureGetIndex(new BasicDBObject("type", 1));
+
+            final BasicDBObject payload = Mongo.payload(100);
+            final List<OutgoingMessage> messages = new ArrayList<>(10000);
+            for (int i = 0; i < 10000; ++i) {
+                messages.add(new OutgoingMessage(new BasicDBObject(payload)));
+            }
+
+            queue.sendAll(messages, 1000, false);
+        }
+    }
+
+    @Benchmark
+    public void getAckSend(final Striped striped) {
+        final BasicDBObject message = striped.queue.get(new BasicDBObject("type", "a"), 60, 0);
+        if (message != null) {
+            final BasicDBObject payload = new BasicDBObject(message);
+            payload.removeField("id");
+            payload.removeField(Queue.CLAIM_FIELD);
+            striped.queue.ackSend(message, payload);
+        }
+    }
+}
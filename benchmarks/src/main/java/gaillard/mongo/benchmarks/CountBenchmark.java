@@ -0,0 +1,66 @@
+package gaillard.mongo.benchmarks;
+
+import com.mongodb.BasicDBObject;
+import gaillard.mongo.CountMode;
+import gaillard.mongo.OutgoingMessage;
+import gaillard.mongo.Queue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * count() of half the queue at different depths, for each count mode
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CountBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int depth;
+
+    @Param({"EXACT", "CACHED", "MAINTAINED"})
+    public CountMode mode;
+
+    private Queue queue;
+    private final BasicDBObject query = new BasicDBObject("type", "a");
+
+    @Setup
+    public void setup() {
+        queue = new Queue(Mongo.collection("count"));
+        queue.ensureCountIndex(new BasicDBObject("type", 1), true);
+        queue.setCountCollection(Mongo.collection("countCounters"));
+        queue.registerCountShape("type");
+
+        final List<OutgoingMessage> messages = new ArrayList<>(depth);
+        for (int i = 0; i < depth; ++i) {
+            messages.add(new OutgoingMessage(new BasicDBObject("type", i % 2 == 0 ? "a" : "b")));
+        }
+
+        queue.sendAll(messages, 1000, false);
+    }
+
+    @Benchmark
+    public long count() {
+        return queue.count(query, mode);
+    }
+
+    @Benchmark
+    public long countRunning() {
+        return queue.count(query, false, mode);
+    }
+}
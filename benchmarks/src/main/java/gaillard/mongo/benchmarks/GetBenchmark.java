@@ -0,0 +1,99 @@
+package gaillard.mongo.benchmarks;
+
+import com.mongodb.BasicDBObject;
+import gaillard.mongo.OutgoingMessage;
+import gaillard.mongo.Queue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * get() that finds a message and get() that finds none. Consumer threads are set with -t.
+ *
+ * Hits run without the reset of stuck messages get() does, so only the claim is measured. Each claimed message is requeued after its
+ * invocation, outside the measurement, so the depth stays the same.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GetBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Full {
+
+        @Param({"1000", "100000"})
+        public int depth;
+
+        @Param({"100", "10000"})
+        public int payloadSize;
+
+        private Queue queue;
+
+        @Setup
+        public void setup() {
+            queue = new Queue(Mongo.collection("get"));
+            queue.setResetStuckOnGet(false);
+            queue.ensureGetIndex(new BasicDBObject("type", 1));
+
+            final BasicDBObject payload = Mongo.payload(payloadSize);
+            final List<OutgoingMessage> messages = new ArrayList<>(depth);
+            for (int i = 0; i < depth; ++i) {
+                messages.add(new OutgoingMessage(new BasicDBObject(payload)));
+            }
+
+            queue.sendAll(messages, 1000, false);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Claimed {
+
+        private BasicDBObject message;
+
+        @TearDown(Level.Invocation)
+        public void requeue(final Full full) {
+            if (message != null) {
+                full.queue.requeue(message);
+                message = null;
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Empty {
+
+        private Queue queue;
+
+        @Setup
+        public void setup() {
+            queue = new Queue(Mongo.collection("getEmpty"));
+            queue.ensureGetIndex(new BasicDBObject("type", 1));
+        }
+    }
+
+    @Benchmark
+    public BasicDBObject hit(final Full full, final Claimed claimed) {
+        claimed.message = full.queue.get(new BasicDBObject("type", "a"), 60, 0);
+        return claimed.message;
+    }
+
+    @Benchmark
+    public BasicDBObject emptyPoll(final Empty empty) {
+        return empty.queue.get(new BasicDBObject("type", "a"), 60, 0);
+    }
+}
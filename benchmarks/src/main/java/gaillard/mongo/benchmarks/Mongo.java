@@ -0,0 +1,50 @@
+package gaillard.mongo.benchmarks;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import java.net.UnknownHostException;
+
+/**
+ * Connection and payloads shared by the benchmarks. The mongod is given with -Dmongo.uri and defaults to a local one
+ */
+final class Mongo {
+
+    private static final MongoClient CLIENT;
+
+    static {
+        try {
+            CLIENT = new MongoClient(new MongoClientURI(System.getProperty("mongo.uri", "mongodb://localhost")));
+        } catch (final UnknownHostException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Mongo() {
+    }
+
+    /**
+     * @return dropped collection of the benchmarks database
+     */
+    static DBCollection collection(final String name) {
+        final DBCollection collection = CLIENT.getDB("benchmarks").getCollection(name);
+        collection.drop();
+        return collection;
+    }
+
+    /**
+     * @param size approximate BSON size in bytes
+     * @return payload with a type field for queries and a body of repetitive JSON making up the size
+     */
+    static BasicDBObject payload(final int size) {
+        final StringBuilder body = new StringBuilder(size);
+        for (int i = 0; body.length() < size; ++i) {
+            body.append("{\"key\":").append(i).append('}');
+        }
+
+        body.setLength(size);
+
+        return new BasicDBObject("type", "a").append("body", body.toString());
+    }
+}
@@ -0,0 +1,72 @@
+package gaillard.mongo.benchmarks;
+
+import com.mongodb.BasicDBObject;
+import gaillard.mongo.PartitionedQueue;
+import gaillard.mongo.Queue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A get() and ack() cycle on a PartitionedQueue by many consumer threads, set with -t, to compare throughput across partition counts.
+ * Each ack sends a message back first so the depth stays the same.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PartitionedBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Partitioned {
+
+        @Param({"1", "2", "4", "8"})
+        public int partitions;
+
+        @Param({"false", "true"})
+        public boolean affinity;
+
+        private PartitionedQueue queue;
+
+        @Setup
+        public void setup() {
+            final List<Queue> queues = new ArrayList<>(partitions);
+            for (int i = 0; i < partitions; ++i) {
+                queues.add(new Queue(Mongo.collection("partitioned" + i)));
+            }
+
+            queue = new PartitionedQueue(queues);
+            queue.setAffinity(affinity);
+            queue.ensureGetIndex(new BasicDBObject("type", 1), new BasicDBObject());
+
+            final BasicDBObject payload = Mongo.payload(100);
+            for (int i = 0; i < 1000 * partitions; ++i) {
+                queue.send(new BasicDBObject(payload));
+            }
+        }
+    }
+
+    @Benchmark
+    public void getAckSend(final Partitioned partitioned) {
+        final BasicDBObject message = partitioned.queue.get(new BasicDBObject("type", "a"), 60, 0);
+        if (message != null) {
+            final BasicDBObject payload = new BasicDBObject(message);
+            payload.removeField("id");
+            payload.removeField(Queue.CLAIM_FIELD);
+            payload.removeField(PartitionedQueue.PARTITION_FIELD);
+            partitioned.queue.ackSend(message, payload);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package gaillard.mongo.benchmarks;
+
+import com.mongodb.BasicDBObject;
+import gaillard.mongo.Queue;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * send() into an indexed queue. Each send() is given a copy of the payload since the driver adds nothing to it but a codec could
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    public int payloadSize;
+
+    private Queue queue;
+    private BasicDBObject payload;
+
+    @Setup
+    public void setup() {
+        queue = new Queue(Mongo.collection("send"));
+        queue.ensureGetIndex(new BasicDBObject("type", 1));
+        payload = Mongo.payload(payloadSize);
+    }
+
+    @Benchmark
+    public void send() {
+        queue.send(new BasicDBObject(payload));
+    }
+}
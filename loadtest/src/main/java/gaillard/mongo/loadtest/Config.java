@@ -0,0 +1,86 @@
+package gaillard.mongo.loadtest;
+
+import java.util.Properties;
+
+/**
+ * Load test settings, read from system properties given with -D
+ */
+final class Config {
+
+    final String uri;
+    final String collection;
+    final int producers;
+    final int consumers;
+    final int duration;
+    final int reportInterval;
+    final int payloadSize;
+    final int rate;
+    final int sendBatch;
+    final double delayedRatio;
+    final int maxDelay;
+    final int priorities;
+    final double requeueRatio;
+    final double abandonRatio;
+    final int resetDuration;
+    final int waitDuration;
+    final long pollDuration;
+    final int stripes;
+
+    private Config(final Properties properties) {
+        uri = properties.getProperty("mongo.uri", "mongodb://localhost");
+        collection = properties.getProperty("collection", "messages");
+        producers = getInt(properties, "producers", 4, 0);
+        consumers = getInt(properties, "consumers", 4, 0);
+        duration = getInt(properties, "duration", 60, 1);
+        reportInterval = getInt(properties, "reportInterval", 5, 1);
+        payloadSize = getInt(properties, "payloadSize", 100, 0);
+        rate = getInt(properties, "rate", 0, 0);
+        sendBatch = getInt(properties, "sendBatch", 1, 1);
+        delayedRatio = getRatio(properties, "delayedRatio", 0.0);
+        maxDelay = getInt(properties, "maxDelay", 1000, 0);
+        priorities = getInt(properties, "priorities", 1, 1);
+        requeueRatio = getRatio(properties, "requeueRatio", 0.0);
+        abandonRatio = getRatio(properties, "abandonRatio", 0.0);
+        resetDuration = getInt(properties, "resetDuration", 5, 0);
+        waitDuration = getInt(properties, "waitDuration", 3000, 0);
+        pollDuration = getInt(properties, "pollDuration", 200, 0);
+        stripes = getInt(properties, "stripes", 1, 1);
+
+        if (requeueRatio + abandonRatio > 1.0) {
+            throw new IllegalArgumentException("requeueRatio plus abandonRatio must be at most 1");
+        }
+    }
+
+    static Config fromSystemProperties() {
+        return new Config(System.getProperties());
+    }
+
+    @Override
+    public String toString() {
+        return "producers=" + producers + " consumers=" + consumers + " duration=" + duration + "s payloadSize=" + payloadSize
+                + " rate=" + (rate == 0 ? "unlimited" : rate + "/s") + " sendBatch=" + sendBatch + " delayedRatio=" + delayedRatio
+                + " maxDelay=" + maxDelay + "ms priorities=" + priorities + " requeueRatio=" + requeueRatio + " abandonRatio="
+                + abandonRatio + " resetDuration=" + resetDuration + "s waitDuration=" + waitDuration + "ms pollDuration="
+                + pollDuration + "ms stripes=" + stripes;
+    }
+
+    private static int getInt(final Properties properties, final String name, final int defaultValue, final int min) {
+        final String value = properties.getProperty(name);
+        final int parsed = value == null ? defaultValue : Integer.parseInt(value);
+        if (parsed < min) {
+            throw new IllegalArgumentException(name + " must be at least " + min);
+        }
+
+        return parsed;
+    }
+
+    private static double getRatio(final Properties properties, final String name, final double defaultValue) {
+        final String value = properties.getProperty(name);
+        final double parsed = value == null ? defaultValue : Double.parseDouble(value);
+        if (!(parsed >= 0.0 && parsed <= 1.0)) {
+            throw new IllegalArgumentException(name + " must be between 0 and 1");
+        }
+
+        return parsed;
+    }
+}
@@ -0,0 +1,259 @@
+package gaillard.mongo.loadtest;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import gaillard.mongo.FixedPollStrategy;
+import gaillard.mongo.HistogramQueueListener;
+import gaillard.mongo.LatencyHistogram;
+import gaillard.mongo.OutgoingMessage;
+import gaillard.mongo.Queue;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Producers and consumers driving one Queue for a fixed duration, reporting throughput, latency from when a message became available
+ * to its ack, the share of polls that found nothing and stuck message resets. Settings are system properties, see Config.
+ *
+ * The collection is dropped before the run. Latency is measured with a timestamp in each payload, so producers and consumers run in
+ * this one process.
+ */
+public final class LoadTest {
+
+    private static final String DUE_FIELD = "due";
+
+    private final Config config;
+    private final Queue queue;
+    private final HistogramQueueListener listener = new HistogramQueueListener();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram intervalLatency = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder acked = new LongAdder();
+    private final LongAdder requeued = new LongAdder();
+    private final LongAdder abandoned = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private volatile boolean running = true;
+
+    private LoadTest(final Config config, final DBCollection collection) {
+        this.config = config;
+
+        queue = new Queue(collection);
+        queue.setPollStrategy(new FixedPollStrategy(config.pollDuration));
+        queue.setStripes(config.stripes);
+        queue.setListener(listener);
+        queue.ensureGetIndex();
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Config config = Config.fromSystemProperties();
+        final MongoClient client = new MongoClient(new MongoClientURI(config.uri));
+        try {
+            final DBCollection collection = client.getDB("loadtest").getCollection(config.collection);
+            collection.drop();
+
+            new LoadTest(config, collection).run();
+        } finally {
+            client.close();
+        }
+    }
+
+    private void run() throws InterruptedException {
+        System.out.println(config);
+
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < config.producers; ++i) {
+            threads.add(new Thread(this::produce, "producer-" + i));
+        }
+
+        for (int i = 0; i < config.consumers; ++i) {
+            threads.add(new Thread(this::consume, "consumer-" + i));
+        }
+
+        final long start = System.nanoTime();
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+
+        long lastReport = start;
+        long lastSent = 0;
+        long lastAcked = 0;
+        long lastPolls = 0;
+        long lastEmptyPolls = 0;
+        final long end = start + TimeUnit.SECONDS.toNanos(config.duration);
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.min(TimeUnit.SECONDS.toMillis(config.reportInterval), TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()) + 1));
+
+            final long now = System.nanoTime();
+            final double seconds = (now - lastReport) / 1e9;
+            final long sentCount = sent.sum();
+            final long ackedCount = acked.sum();
+            final long polls = listener.getPoll().getCount();
+            final long emptyPolls = listener.getEmptyPollCount();
+
+            System.out.println(String.format(
+                    Locale.ROOT,
+                    "%6.1fs  sent %9.1f/s  acked %9.1f/s  latency p50 %8.2fms p99 %8.2fms max %8.2fms  empty polls %5.1f%%  resets %d",
+                    (now - start) / 1e9,
+                    (sentCount - lastSent) / seconds,
+                    (ackedCount - lastAcked) / seconds,
+                    millis(intervalLatency.getPercentile(50.0)),
+                    millis(intervalLatency.getPercentile(99.0)),
+                    millis(intervalLatency.getMax()),
+                    percent(emptyPolls - lastEmptyPolls, polls - lastPolls),
+                    listener.getResetCount()
+            ));
+
+            intervalLatency.reset();
+            lastReport = now;
+            lastSent = sentCount;
+            lastAcked = ackedCount;
+            lastPolls = polls;
+            lastEmptyPolls = emptyPolls;
+        }
+
+        running = false;
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "sent         %d (%.1f/s)", sent.sum(), sent.sum() / seconds));
+        System.out.println(String.format(Locale.ROOT, "acked        %d (%.1f/s)", acked.sum(), acked.sum() / seconds));
+        System.out.println("requeued     " + requeued.sum());
+        System.out.println("abandoned    " + abandoned.sum());
+        System.out.println("resets       " + listener.getResetCount());
+        System.out.println("errors       " + errors.sum());
+        System.out.println("depth        " + queue.count(new BasicDBObject()));
+        System.out.println(String.format(
+                Locale.ROOT,
+                "latency      mean %.2fms p50 %.2fms p90 %.2fms p99 %.2fms p99.9 %.2fms max %.2fms",
+                latency.getMean() / 1e6,
+                millis(latency.getPercentile(50.0)),
+                millis(latency.getPercentile(90.0)),
+                millis(latency.getPercentile(99.0)),
+                millis(latency.getPercentile(99.9)),
+                millis(latency.getMax())
+        ));
+        System.out.println(String.format(
+                Locale.ROOT,
+                "empty polls  %.1f%% of %d",
+                percent(listener.getEmptyPollCount(), listener.getPoll().getCount()),
+                listener.getPoll().getCount()
+        ));
+        System.out.println(String.format(
+                Locale.ROOT,
+                "get          p50 %.2fms p99 %.2fms, claim attempt p50 %.2fms p99 %.2fms",
+                millis(listener.getGet().getPercentile(50.0)),
+                millis(listener.getGet().getPercentile(99.0)),
+                millis(listener.getPoll().getPercentile(50.0)),
+                millis(listener.getPoll().getPercentile(99.0))
+        ));
+    }
+
+    private void produce() {
+        final BasicDBObject payload = payload(config.payloadSize);
+        final long start = System.nanoTime();
+        final double interval = config.rate == 0 ? 0.0 : 1e9 / config.rate;
+        long produced = 0;
+
+        while (running) {
+            try {
+                if (config.rate > 0) {
+                    final long wait = start + (long) (produced * interval) - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+
+                if (config.sendBatch == 1) {
+                    final OutgoingMessage message = message(payload);
+                    queue.send(message.getPayload(), message.getEarliestGet(), message.getPriority());
+                } else {
+                    final List<OutgoingMessage> messages = new ArrayList<>(config.sendBatch);
+                    for (int i = 0; i < config.sendBatch; ++i) {
+                        messages.add(message(payload));
+                    }
+
+                    queue.sendAll(messages, config.sendBatch, false);
+                }
+
+                produced += config.sendBatch;
+                sent.add(config.sendBatch);
+            } catch (final InterruptedException e) {
+                return;
+            } catch (final RuntimeException e) {
+                errors.increment();
+            }
+        }
+    }
+
+    private void consume() {
+        while (running) {
+            try {
+                final BasicDBObject message = queue.get(new BasicDBObject(), config.resetDuration, config.waitDuration);
+                if (message == null) {
+                    continue;
+                }
+
+                final double outcome = ThreadLocalRandom.current().nextDouble();
+                if (outcome < config.abandonRatio) {
+                    //left running until its resetDuration passes and a get() resets it
+                    abandoned.increment();
+                } else if (outcome < config.abandonRatio + config.requeueRatio) {
+                    queue.requeue(message);
+                    requeued.increment();
+                } else {
+                    queue.ack(message);
+                    acked.increment();
+
+                    final long elapsed = System.nanoTime() - ((Number) message.get(DUE_FIELD)).longValue();
+                    latency.record(elapsed);
+                    intervalLatency.record(elapsed);
+                }
+            } catch (final RuntimeException e) {
+                errors.increment();
+            }
+        }
+    }
+
+    /**
+     * @return message with a random delay and priority by the settings, stamped with when it becomes available
+     */
+    private OutgoingMessage message(final BasicDBObject payload) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final long delay = config.maxDelay > 0 && random.nextDouble() < config.delayedRatio ? random.nextInt(config.maxDelay + 1) : 0;
+        final double priority = random.nextInt(config.priorities);
+
+        final BasicDBObject stamped = new BasicDBObject(payload).append(DUE_FIELD, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay));
+        return new OutgoingMessage(stamped, new Date(System.currentTimeMillis() + delay), priority);
+    }
+
+    /**
+     * @param size approximate BSON size in bytes
+     */
+    private static BasicDBObject payload(final int size) {
+        final StringBuilder body = new StringBuilder(size);
+        for (int i = 0; body.length() < size; ++i) {
+            body.append("{\"key\":").append(i).append('}');
+        }
+
+        body.setLength(size);
+
+        return new BasicDBObject("body", body.toString());
+    }
+
+    private static double millis(final long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static double percent(final long part, final long total) {
+        return total == 0 ? 0.0 : part * 100.0 / total;
+    }
+}
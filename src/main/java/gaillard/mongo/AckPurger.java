@@ -0,0 +1,113 @@
+package gaillard.mongo;
+
+import java.io.Closeable;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Removes soft acked messages of a Queue in the background, one batch per interval, so the deletes are spread out at a bounded rate
+ * instead of competing with claims at peak. Several purgers on one queue are safe but only add to the rate.
+ *
+ * @see Queue#setSoftAck(boolean)
+ */
+public final class AckPurger implements Closeable {
+
+    private final Queue queue;
+    private final int batchSize;
+    private final long interval;
+    private final AtomicLong totalPurgedCount = new AtomicLong();
+    private volatile int lastPurgedCount;
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param queue queue to remove soft acked messages from. Should not be null
+     * @param batchSize max number of messages removed per batch. Should be positive
+     * @param interval duration in milliseconds between batches. Should be positive
+     */
+    public AckPurger(final Queue queue, final int batchSize, final long interval) {
+        Objects.requireNonNull(queue);
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+
+        this.queue = queue;
+        this.batchSize = batchSize;
+        this.interval = interval;
+    }
+
+    /**
+     * Start purging a batch every interval on a daemon thread
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            throw new IllegalStateException("already started");
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "mongo-queue-purger");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    purge();
+                } catch (final RuntimeException e) {
+                    //keep the schedule alive, an escaping exception would cancel it for good. The next batch will try again
+                }
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop purging
+     */
+    @Override
+    public synchronized void close() {
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdownNow();
+        executor = null;
+    }
+
+    /**
+     * Remove one batch of soft acked messages now
+     *
+     * @return number of messages removed
+     */
+    public int purge() {
+        final int count = queue.purgeAcked(batchSize);
+        lastPurgedCount = count;
+        totalPurgedCount.addAndGet(count);
+        return count;
+    }
+
+    /**
+     * @return number of messages removed by the last batch
+     */
+    public int getLastPurgedCount() {
+        return lastPurgedCount;
+    }
+
+    /**
+     * @return number of messages removed by all batches of this purger
+     */
+    public long getTotalPurgedCount() {
+        return totalPurgedCount.get();
+    }
+}
@@ -0,0 +1,100 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Acks every message it receives, to end a stream of messages from a QueuePublisher once they are processed. Requests batchSize
+ * messages at a time and cancels its subscription on the first failed ack.
+ */
+public final class AckSubscriber implements Flow.Subscriber<BasicDBObject> {
+
+    private final MessageQueue queue;
+    private final int batchSize;
+    private final AtomicLong ackedCount = new AtomicLong();
+    private Flow.Subscription subscription;
+    private int received;
+    private volatile Throwable error;
+    private volatile boolean completed;
+
+    /**
+     * @param queue queue the messages were received from. Should not be null
+     * @param batchSize number of messages requested at a time. Should be positive
+     */
+    public AckSubscriber(final MessageQueue queue, final int batchSize) {
+        Objects.requireNonNull(queue);
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+
+        this.queue = queue;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void onSubscribe(final Flow.Subscription subscription) {
+        Objects.requireNonNull(subscription);
+
+        //one subscription at a time
+        if (this.subscription != null) {
+            subscription.cancel();
+            return;
+        }
+
+        this.subscription = subscription;
+        subscription.request(batchSize);
+    }
+
+    @Override
+    public void onNext(final BasicDBObject message) {
+        Objects.requireNonNull(message);
+
+        try {
+            queue.ack(message);
+        } catch (final RuntimeException e) {
+            error = e;
+            subscription.cancel();
+            return;
+        }
+
+        ackedCount.incrementAndGet();
+        if (++received == batchSize) {
+            received = 0;
+            subscription.request(batchSize);
+        }
+    }
+
+    @Override
+    public void onError(final Throwable throwable) {
+        Objects.requireNonNull(throwable);
+
+        error = throwable;
+    }
+
+    @Override
+    public void onComplete() {
+        completed = true;
+    }
+
+    /**
+     * @return number of messages acked
+     */
+    public long getAckedCount() {
+        return ackedCount.get();
+    }
+
+    /**
+     * @return error the stream ended with, or the failed ack, or null
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * @return whether the stream completed
+     */
+    public boolean isCompleted() {
+        return completed;
+    }
+}
@@ -0,0 +1,218 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import java.util.Date;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Queue operations that return futures instead of blocking.
+ *
+ * get() makes one attempt per executor task and schedules the next attempt after the poll delay instead of sleeping, so many waiting
+ * consumers can share a few threads. Waiting for signals or for the next earliestGet is not done here, only the poll strategy is used.
+ * A get() future that is cancelled stops polling.
+ */
+public final class AsyncQueue {
+
+    private final Queue queue;
+    private final ScheduledExecutorService executor;
+
+    /**
+     * @param queue queue to run operations on. Should not be null
+     * @param executor executor running the blocking calls and scheduling polls. Should not be null
+     */
+    public AsyncQueue(final Queue queue, final ScheduledExecutorService executor) {
+        Objects.requireNonNull(queue);
+        Objects.requireNonNull(executor);
+
+        this.queue = queue;
+        this.executor = executor;
+    }
+
+    /**
+     * @see Queue#get(BasicDBObject, int)
+     */
+    public CompletableFuture<BasicDBObject> get(final BasicDBObject query, final int resetDuration) {
+        return get(query, resetDuration, 3000);
+    }
+
+    /**
+     * @see Queue#get(BasicDBObject, int, int)
+     */
+    public CompletableFuture<BasicDBObject> get(final BasicDBObject query, final int resetDuration, final int waitDuration) {
+        return get(query, resetDuration, waitDuration, queue.getPollStrategy());
+    }
+
+    /**
+     * @see Queue#get(BasicDBObject, int, int, long)
+     */
+    public CompletableFuture<BasicDBObject> get(final BasicDBObject query, final int resetDuration, final int waitDuration, final long pollDuration) {
+        return get(query, resetDuration, waitDuration, new FixedPollStrategy(pollDuration));
+    }
+
+    /**
+     * @see Queue#get(BasicDBObject, int, int, PollStrategy)
+     */
+    public CompletableFuture<BasicDBObject> get(
+            final BasicDBObject query,
+            final int resetDuration,
+            final int waitDuration,
+            final PollStrategy pollStrategy
+    ) {
+        Objects.requireNonNull(query);
+        Objects.requireNonNull(pollStrategy);
+
+        final CompletableFuture<BasicDBObject> future = new CompletableFuture<>();
+        final long end = System.currentTimeMillis() + waitDuration;
+        executor.execute(() -> attempt(future, query, resetDuration, end, pollStrategy, 0));
+        return future;
+    }
+
+    /**
+     * @see Queue#count(BasicDBObject)
+     */
+    public CompletableFuture<Long> count(final BasicDBObject query) {
+        Objects.requireNonNull(query);
+
+        return supply(() -> queue.count(query));
+    }
+
+    /**
+     * @see Queue#count(BasicDBObject, boolean)
+     */
+    public CompletableFuture<Long> count(final BasicDBObject query, final boolean running) {
+        Objects.requireNonNull(query);
+
+        return supply(() -> queue.count(query, running));
+    }
+
+    /**
+     * @see Queue#ack(BasicDBObject)
+     */
+    public CompletableFuture<Void> ack(final BasicDBObject message) {
+        Objects.requireNonNull(message);
+
+        return run(() -> queue.ack(message));
+    }
+
+    /**
+     * @see Queue#ackSend(BasicDBObject, BasicDBObject)
+     */
+    public CompletableFuture<Void> ackSend(final BasicDBObject message, final BasicDBObject payload) {
+        return ackSend(message, payload, new Date());
+    }
+
+    /**
+     * @see Queue#ackSend(BasicDBObject, BasicDBObject, Date)
+     */
+    public CompletableFuture<Void> ackSend(final BasicDBObject message, final BasicDBObject payload, final Date earliestGet) {
+        return ackSend(message, payload, earliestGet, 0.0);
+    }
+
+    /**
+     * @see Queue#ackSend(BasicDBObject, BasicDBObject, Date, double)
+     */
+    public CompletableFuture<Void> ackSend(final BasicDBObject message, final BasicDBObject payload, final Date earliestGet, final double priority) {
+        Objects.requireNonNull(message);
+        Objects.requireNonNull(payload);
+        Objects.requireNonNull(earliestGet);
+
+        return run(() -> queue.ackSend(message, payload, earliestGet, priority));
+    }
+
+    /**
+     * @see Queue#requeue(BasicDBObject)
+     */
+    public CompletableFuture<Void> requeue(final BasicDBObject message) {
+        return requeue(message, new Date());
+    }
+
+    /**
+     * @see Queue#requeue(BasicDBObject, Date)
+     */
+    public CompletableFuture<Void> requeue(final BasicDBObject message, final Date earliestGet) {
+        return requeue(message, earliestGet, 0.0);
+    }
+
+    /**
+     * @see Queue#requeue(BasicDBObject, Date, double)
+     */
+    public CompletableFuture<Void> requeue(final BasicDBObject message, final Date earliestGet, final double priority) {
+        Objects.requireNonNull(message);
+        Objects.requireNonNull(earliestGet);
+
+        return run(() -> queue.requeue(message, earliestGet, priority));
+    }
+
+    /**
+     * @see Queue#send(BasicDBObject)
+     */
+    public CompletableFuture<Void> send(final BasicDBObject payload) {
+        return send(payload, new Date());
+    }
+
+    /**
+     * @see Queue#send(BasicDBObject, Date)
+     */
+    public CompletableFuture<Void> send(final BasicDBObject payload, final Date earliestGet) {
+        return send(payload, earliestGet, 0.0);
+    }
+
+    /**
+     * @see Queue#send(BasicDBObject, Date, double)
+     */
+    public CompletableFuture<Void> send(final BasicDBObject payload, final Date earliestGet, final double priority) {
+        Objects.requireNonNull(payload);
+        Objects.requireNonNull(earliestGet);
+
+        return run(() -> queue.send(payload, earliestGet, priority));
+    }
+
+    private void attempt(
+            final CompletableFuture<BasicDBObject> future,
+            final BasicDBObject query,
+            final int resetDuration,
+            final long end,
+            final PollStrategy pollStrategy,
+            final int emptyPolls
+    ) {
+        if (future.isDone()) {
+            return;
+        }
+
+        try {
+            //like a blocking get(), stuck messages are only reset before the first attempt
+            final BasicDBObject message = queue.get(query, resetDuration, 0, pollStrategy, emptyPolls == 0);
+            if (message != null) {
+                if (!future.complete(message)) {
+                    //cancelled while claiming, give the message back in its place rather than leave it running until its reset
+                    queue.giveBack(message);
+                }
+
+                return;
+            }
+
+            final long remaining = end - System.currentTimeMillis();
+            if (remaining <= 0) {
+                future.complete(null);
+                return;
+            }
+
+            final long delay = Math.max(Math.min(pollStrategy.delay(emptyPolls + 1), remaining), 0);
+            executor.schedule(() -> attempt(future, query, resetDuration, end, pollStrategy, emptyPolls + 1), delay, TimeUnit.MILLISECONDS);
+        } catch (final RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private CompletableFuture<Void> run(final Runnable operation) {
+        return CompletableFuture.runAsync(operation, executor);
+    }
+
+    private <T> CompletableFuture<T> supply(final Supplier<T> operation) {
+        return CompletableFuture.supplyAsync(operation, executor);
+    }
+}
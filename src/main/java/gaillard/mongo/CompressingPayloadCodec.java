@@ -0,0 +1,138 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DefaultDBDecoder;
+import java.io.ByteArrayOutputStream;
+import java.util.Objects;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.bson.BSON;
+
+/**
+ * Stores payload fields other than the plain fields as one deflated BSON binary, when they are large enough to be worth it.
+ *
+ * Plain fields are the top level fields get() and count() queries and indexes refer to, such as the fields given to ensureGetIndex()
+ * and ensureCountIndex(). For a dotted field the whole top level field is kept plain. A queue with this codec rejects
+ * queries and indexes on compressed fields, which would match nothing.
+ */
+public final class CompressingPayloadCodec implements PayloadCodec {
+
+    static final String COMPRESSED_FIELD = "_compressed";
+
+    private final PlainFields plainFields;
+    private final int level;
+    private final int threshold;
+
+    /**
+     * Codec with the default compression level that compresses fields of 1024 bytes or more
+     *
+     * @param plainFields fields to keep as is, dotted for nested fields. Should not be null or contain null
+     */
+    public CompressingPayloadCodec(final String... plainFields) {
+        this(Deflater.DEFAULT_COMPRESSION, 1024, plainFields);
+    }
+
+    /**
+     * @param level deflate level from 0 for none to 9 for best, or -1 for the default
+     * @param threshold minimum BSON size in bytes of the fields to compress for them to be compressed. Should not be negative
+     * @param plainFields fields to keep as is, dotted for nested fields. Should not be null or contain null
+     */
+    public CompressingPayloadCodec(final int level, final int threshold, final String... plainFields) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("level must be between -1 and 9");
+        }
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative");
+        }
+
+        this.plainFields = new PlainFields(plainFields);
+        this.level = level;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public BasicDBObject encode(final BasicDBObject payload) {
+        Objects.requireNonNull(payload);
+
+        final BasicDBObject rest = plainFields.rest(payload);
+        final byte[] bson = BSON.encode(rest);
+        if (rest.isEmpty() || bson.length < threshold) {
+            return payload;
+        }
+
+        final byte[] compressed = deflate(bson);
+        if (compressed.length >= bson.length) {
+            //incompressible, not worth inflating on every get()
+            return payload;
+        }
+
+        return plainFields.plain(payload).append(COMPRESSED_FIELD, compressed);
+    }
+
+    @Override
+    public boolean isPlain(final String field) {
+        Objects.requireNonNull(field);
+
+        return plainFields.contains(field);
+    }
+
+    @Override
+    public BasicDBObject decode(final BasicDBObject stored) {
+        Objects.requireNonNull(stored);
+
+        final Object compressed = stored.get(COMPRESSED_FIELD);
+        if (!(compressed instanceof byte[])) {
+            return stored;
+        }
+
+        final BasicDBObject payload = new BasicDBObject(stored);
+        payload.removeField(COMPRESSED_FIELD);
+        payload.putAll(new DefaultDBDecoder().decode(inflate((byte[]) compressed), (DBCollection) null));
+
+        return payload;
+    }
+
+    private byte[] deflate(final byte[] bytes) {
+        final Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 16);
+            final byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(final byte[] bytes) {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes);
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+            final byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                final int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("compressed payload was truncated");
+                }
+
+                out.write(buffer, 0, inflated);
+            }
+
+            return out.toByteArray();
+        } catch (final DataFormatException e) {
+            throw new IllegalArgumentException("compressed payload was corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
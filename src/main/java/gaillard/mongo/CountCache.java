@@ -0,0 +1,82 @@
+package gaillard.mongo;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+/**
+ * Counts cached per query with stale-while-revalidate: an expired count is returned right away and refreshed on a shared background
+ * thread, so only the first call for a query waits on the database.
+ *
+ * At most MAX_ENTRIES queries are cached. When full, entries not read for IDLE_EXPIRY are dropped, and if none are, the new query is
+ * counted without caching. At most one refresh per entry is queued, so the refresher queue is bounded the same way.
+ */
+final class CountCache {
+
+    private static final ExecutorService REFRESHER = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "mongo-queue-count-refresher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static final int MAX_ENTRIES = 1000;
+    static final long IDLE_EXPIRY = 60000;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    long get(final String key, final long ttl, final LongSupplier counter) {
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            final Entry fresh = new Entry(counter.getAsLong());
+            if (entries.size() >= MAX_ENTRIES) {
+                evictIdle();
+            }
+
+            if (entries.size() < MAX_ENTRIES) {
+                entries.put(key, fresh);
+            }
+
+            return fresh.value;
+        }
+
+        entry.lastRead = System.currentTimeMillis();
+
+        if (System.currentTimeMillis() - entry.fetched >= ttl && entry.refreshing.compareAndSet(false, true)) {
+            REFRESHER.execute(() -> {
+                try {
+                    //only if still cached, an evicted entry stays evicted
+                    entries.replace(key, entry, new Entry(counter.getAsLong()));
+                } catch (final RuntimeException e) {
+                    //keep serving the stale count, the next call tries again
+                    entry.refreshing.set(false);
+                }
+            });
+        }
+
+        return entry.value;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private void evictIdle() {
+        final long now = System.currentTimeMillis();
+        entries.values().removeIf(entry -> now - entry.lastRead >= IDLE_EXPIRY);
+    }
+
+    private static final class Entry {
+
+        private final long value;
+        private final long fetched = System.currentTimeMillis();
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private volatile long lastRead = fetched;
+
+        private Entry(final long value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package gaillard.mongo;
+
+/**
+ * Where Queue.count() gets its number from
+ */
+public enum CountMode {
+
+    /**
+     * Count the collection on every call
+     */
+    EXACT,
+
+    /**
+     * Exact count cached for the count cache ttl. An expired entry is still returned while it is refreshed in the background
+     */
+    CACHED,
+
+    /**
+     * Counter kept up to date by queue operations for a registered count shape. Costs one read, whatever the queue size
+     */
+    MAINTAINED
+}
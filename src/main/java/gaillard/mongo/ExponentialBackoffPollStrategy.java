@@ -0,0 +1,59 @@
+package gaillard.mongo;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Wait doubles after each empty poll from min up to max, with a random part so idle consumers do not poll in lockstep.
+ * The backoff starts over at min on every get() call.
+ */
+public final class ExponentialBackoffPollStrategy implements PollStrategy {
+
+    private final long min;
+    private final long max;
+    private final double jitter;
+
+    /**
+     * Backoff where up to half of each wait is random
+     *
+     * @param min duration in milliseconds of the first wait. Should be positive
+     * @param max duration in milliseconds the wait grows to. Should not be less than min
+     */
+    public ExponentialBackoffPollStrategy(final long min, final long max) {
+        this(min, max, 0.5);
+    }
+
+    /**
+     * @param min duration in milliseconds of the first wait. Should be positive
+     * @param max duration in milliseconds the wait grows to. Should not be less than min
+     * @param jitter fraction of each wait that is random, from 0 for none to 1 for anywhere between 0 and the full wait
+     */
+    public ExponentialBackoffPollStrategy(final long min, final long max, final double jitter) {
+        if (min <= 0) {
+            throw new IllegalArgumentException("min must be positive");
+        }
+        if (max < min) {
+            throw new IllegalArgumentException("max must not be less than min");
+        }
+        if (!(jitter >= 0.0 && jitter <= 1.0)) {
+            throw new IllegalArgumentException("jitter must be between 0 and 1");
+        }
+
+        this.min = min;
+        this.max = max;
+        this.jitter = jitter;
+    }
+
+    @Override
+    public long delay(final int emptyPolls) {
+        //past 62 doublings min is over max anyway
+        final int doublings = Math.min(Math.max(emptyPolls - 1, 0), 62);
+
+        final long delay = min > max >> doublings ? max : min << doublings;
+
+        return delay - (long) (delay * jitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+    @Override
+    public void onHit() {
+    }
+}
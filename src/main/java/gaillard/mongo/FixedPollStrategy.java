@@ -0,0 +1,25 @@
+package gaillard.mongo;
+
+/**
+ * Same wait between every poll
+ */
+public final class FixedPollStrategy implements PollStrategy {
+
+    private final long pollDuration;
+
+    /**
+     * @param pollDuration duration in milliseconds between poll attempts
+     */
+    public FixedPollStrategy(final long pollDuration) {
+        this.pollDuration = pollDuration;
+    }
+
+    @Override
+    public long delay(final int emptyPolls) {
+        return pollDuration;
+    }
+
+    @Override
+    public void onHit() {
+    }
+}
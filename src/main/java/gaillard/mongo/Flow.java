@@ -0,0 +1,56 @@
+package gaillard.mongo;
+
+/**
+ * The Reactive Streams interfaces, with the same methods and rules as org.reactivestreams and java.util.concurrent.Flow, for a Java 8
+ * library without dependencies beyond the driver. Adapting to either is a lambda per method.
+ *
+ * @see <a href="https://github.com/reactive-streams/reactive-streams-jvm">Reactive Streams specification</a>
+ */
+public final class Flow {
+
+    private Flow() {
+    }
+
+    /**
+     * Source of items for any number of subscribers, each getting its own Subscription
+     */
+    public interface Publisher<T> {
+
+        /**
+         * @param subscriber subscriber to give onSubscribe() and then items as it requests them. Should not be null
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * Receiver of items. Calls to one subscriber do not overlap and should not throw
+     */
+    public interface Subscriber<T> {
+
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    /**
+     * Link between one Publisher and one Subscriber
+     */
+    public interface Subscription {
+
+        /**
+         * Add to the number of items the subscriber is ready for
+         *
+         * @param n number of items. Should be positive, otherwise the subscriber gets onError()
+         */
+        void request(long n);
+
+        /**
+         * Stop sending items, possibly after some already on the way
+         */
+        void cancel();
+    }
+}
@@ -0,0 +1,167 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.MongoException;
+import com.mongodb.gridfs.GridFS;
+import com.mongodb.gridfs.GridFSDBFile;
+import com.mongodb.gridfs.GridFSInputFile;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Objects;
+import org.bson.BSON;
+import org.bson.types.ObjectId;
+
+/**
+ * Stores payload fields other than the plain fields in a GridFS file when they are large, leaving only the plain fields and a reference
+ * to the file in the queue document. get() claims the small document and then reads the file, and acks remove the file.
+ *
+ * Plain fields are the top level fields get() and count() queries and indexes refer to, such as the fields given to ensureGetIndex()
+ * and ensureCountIndex(). For a dotted field the whole top level field is kept plain. A queue with this codec rejects
+ * queries and indexes on offloaded fields, which would match nothing.
+ *
+ * Files are released when their insert fails, unless the message turns out to be inserted or that cannot be checked. They are orphaned
+ * when a queue document is removed other than by the queue, or when a process dies between writing a file and inserting its message.
+ * They can be found by their uploadDate and the absence of a message referencing them.
+ */
+public final class GridFsPayloadCodec implements PayloadCodec {
+
+    static final String FILE_FIELD = "_gridfs";
+    static final String DECODE_ERROR_FIELD = "_gridfsError";
+
+    private final GridFS gridFs;
+    private final PlainFields plainFields;
+    private final int threshold;
+    private volatile boolean returnUnreadable;
+
+    /**
+     * @param db database of the GridFS bucket. Should not be null
+     * @param bucket GridFS bucket name. Should not be null
+     * @param threshold minimum BSON size in bytes of the fields to offload for them to be offloaded. Should not be negative
+     * @param plainFields fields to keep in the queue document, dotted for nested fields. Should not be null or contain null
+     */
+    public GridFsPayloadCodec(final DB db, final String bucket, final int threshold, final String... plainFields) {
+        Objects.requireNonNull(db);
+        Objects.requireNonNull(bucket);
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative");
+        }
+
+        this.gridFs = new GridFS(db, bucket);
+        this.plainFields = new PlainFields(plainFields);
+        this.threshold = threshold;
+    }
+
+    /**
+     * Whether decode() returns a payload whose file is missing or not BSON with only its plain fields and DECODE_ERROR_FIELD, instead
+     * of throwing IllegalStateException. Such a message is otherwise given out again every resetDuration without reaching a handler,
+     * but it is acked like any other by consumers that do not check getDecodeError(), which removes the file. Defaults to false.
+     *
+     * @param returnUnreadable true to return unreadable payloads
+     */
+    public void setReturnUnreadable(final boolean returnUnreadable) {
+        this.returnUnreadable = returnUnreadable;
+    }
+
+    @Override
+    public BasicDBObject encode(final BasicDBObject payload) {
+        Objects.requireNonNull(payload);
+
+        final BasicDBObject rest = plainFields.rest(payload);
+        final byte[] bson = BSON.encode(rest);
+        if (rest.isEmpty() || bson.length < threshold) {
+            return payload;
+        }
+
+        final ObjectId fileId = ObjectId.get();
+        final GridFSInputFile file = gridFs.createFile(bson);
+        file.setId(fileId);
+        file.save();
+
+        return plainFields.plain(payload).append(FILE_FIELD, fileId);
+    }
+
+    /**
+     * @throws IllegalStateException the file of an offloaded payload does not exist or is not BSON, unless setReturnUnreadable() was
+     * given true
+     * @throws MongoException reading the file failed, so the message is given out again after resetDuration
+     */
+    @Override
+    public BasicDBObject decode(final BasicDBObject stored) {
+        Objects.requireNonNull(stored);
+
+        final Object fileId = stored.get(FILE_FIELD);
+        if (!(fileId instanceof ObjectId)) {
+            return stored;
+        }
+
+        final BasicDBObject payload = new BasicDBObject(stored);
+        payload.removeField(FILE_FIELD);
+
+        final GridFSDBFile file = gridFs.findOne((ObjectId) fileId);
+        if (file == null) {
+            return unreadable(payload, "payload file " + fileId + " does not exist");
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.getLength());
+        try {
+            file.writeTo(out);
+        } catch (final IOException e) {
+            //only the output stream can throw and ByteArrayOutputStream does not
+            throw new IllegalStateException(e);
+        }
+
+        final DBObject rest;
+        try {
+            rest = new DefaultDBDecoder().decode(out.toByteArray(), (DBCollection) null);
+        } catch (final RuntimeException e) {
+            return unreadable(payload, "payload file " + fileId + " is not BSON: " + e);
+        }
+
+        payload.putAll(rest);
+        return payload;
+    }
+
+    private BasicDBObject unreadable(final BasicDBObject payload, final String error) {
+        if (!returnUnreadable) {
+            throw new IllegalStateException(error);
+        }
+
+        return payload.append(DECODE_ERROR_FIELD, error);
+    }
+
+    @Override
+    public boolean isPlain(final String field) {
+        Objects.requireNonNull(field);
+
+        return plainFields.contains(field);
+    }
+
+    /**
+     * @param message message from get() or getBatch(). Should not be null
+     * @return why the offloaded part of the payload could not be read with setReturnUnreadable(), or null when the payload is whole
+     */
+    public static String getDecodeError(final BasicDBObject message) {
+        Objects.requireNonNull(message);
+
+        return message.getString(DECODE_ERROR_FIELD);
+    }
+
+    @Override
+    public boolean storesExternally() {
+        return true;
+    }
+
+    @Override
+    public void release(final BasicDBObject stored) {
+        Objects.requireNonNull(stored);
+
+        final Object fileId = stored.get(FILE_FIELD);
+        if (fileId instanceof ObjectId) {
+            gridFs.remove((ObjectId) fileId);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package gaillard.mongo;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Listener keeping a LatencyHistogram of the durations of each kind of operation, plus message counters. Recording is lock free and
+ * does not allocate, so it can stay on in production. Read the histograms from a reporter thread.
+ */
+public final class HistogramQueueListener implements QueueListener {
+
+    private final LatencyHistogram send = new LatencyHistogram();
+    private final LatencyHistogram poll = new LatencyHistogram();
+    private final LatencyHistogram get = new LatencyHistogram();
+    private final LatencyHistogram getWait = new LatencyHistogram();
+    private final LatencyHistogram getPolls = new LatencyHistogram();
+    private final LatencyHistogram resetStuck = new LatencyHistogram();
+    private final LatencyHistogram ack = new LatencyHistogram();
+    private final LatencyHistogram ackSend = new LatencyHistogram();
+    private final LatencyHistogram requeue = new LatencyHistogram();
+    private final LatencyHistogram extendLease = new LatencyHistogram();
+    private final LatencyHistogram count = new LatencyHistogram();
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder emptyPolls = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder reset = new LongAdder();
+    private final LongAdder acked = new LongAdder();
+    private final LongAdder requeued = new LongAdder();
+
+    @Override
+    public void onSend(final int messages, final long nanos) {
+        send.record(nanos);
+        sent.add(messages);
+    }
+
+    @Override
+    public void onPoll(final int messages, final long nanos) {
+        poll.record(nanos);
+        if (messages == 0) {
+            emptyPolls.increment();
+        }
+    }
+
+    @Override
+    public void onGet(final int messages, final int polls, final long waitNanos, final long nanos) {
+        get.record(nanos);
+        getWait.record(waitNanos);
+        getPolls.record(polls);
+        received.add(messages);
+    }
+
+    @Override
+    public void onResetStuck(final int messages, final long nanos) {
+        resetStuck.record(nanos);
+        reset.add(messages);
+    }
+
+    @Override
+    public void onAck(final int messages, final long nanos) {
+        ack.record(nanos);
+        acked.add(messages);
+    }
+
+    @Override
+    public void onAckSend(final long nanos) {
+        ackSend.record(nanos);
+    }
+
+    @Override
+    public void onRequeue(final int messages, final long nanos) {
+        requeue.record(nanos);
+        requeued.add(messages);
+    }
+
+    @Override
+    public void onExtendLease(final boolean extended, final long nanos) {
+        extendLease.record(nanos);
+    }
+
+    @Override
+    public void onCount(final CountMode mode, final long nanos) {
+        count.record(nanos);
+    }
+
+    /**
+     * @return durations in nanoseconds of send() and sendAll() calls
+     */
+    public LatencyHistogram getSend() {
+        return send;
+    }
+
+    /**
+     * @return durations in nanoseconds of each attempt to claim messages
+     */
+    public LatencyHistogram getPoll() {
+        return poll;
+    }
+
+    /**
+     * @return durations in nanoseconds of get() and getBatch() calls, waits included
+     */
+    public LatencyHistogram getGet() {
+        return get;
+    }
+
+    /**
+     * @return nanoseconds get() and getBatch() calls spent waiting between attempts
+     */
+    public LatencyHistogram getGetWait() {
+        return getWait;
+    }
+
+    /**
+     * @return number of attempts of get() and getBatch() calls
+     */
+    public LatencyHistogram getGetPolls() {
+        return getPolls;
+    }
+
+    /**
+     * @return durations in nanoseconds of resets of stuck messages
+     */
+    public LatencyHistogram getResetStuck() {
+        return resetStuck;
+    }
+
+    /**
+     * @return durations in nanoseconds of ack() and ackAll() calls
+     */
+    public LatencyHistogram getAck() {
+        return ack;
+    }
+
+    /**
+     * @return durations in nanoseconds of ackSend() calls
+     */
+    public LatencyHistogram getAckSend() {
+        return ackSend;
+    }
+
+    /**
+     * @return durations in nanoseconds of requeue() and requeueAll() calls
+     */
+    public LatencyHistogram getRequeue() {
+        return requeue;
+    }
+
+    /**
+     * @return durations in nanoseconds of extendLease() calls
+     */
+    public LatencyHistogram getExtendLease() {
+        return extendLease;
+    }
+
+    /**
+     * @return durations in nanoseconds of count() calls
+     */
+    public LatencyHistogram getCount() {
+        return count;
+    }
+
+    /**
+     * @return number of messages inserted
+     */
+    public long getSentCount() {
+        return sent.sum();
+    }
+
+    /**
+     * @return number of attempts to claim messages that found none
+     */
+    public long getEmptyPollCount() {
+        return emptyPolls.sum();
+    }
+
+    /**
+     * @return number of messages returned by get() and getBatch()
+     */
+    public long getReceivedCount() {
+        return received.sum();
+    }
+
+    /**
+     * @return number of stuck messages made available again
+     */
+    public long getResetCount() {
+        return reset.sum();
+    }
+
+    /**
+     * @return number of messages acked
+     */
+    public long getAckedCount() {
+        return acked.sum();
+    }
+
+    /**
+     * @return number of messages requeued
+     */
+    public long getRequeuedCount() {
+        return requeued.sum();
+    }
+}
@@ -0,0 +1,457 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.bson.types.ObjectId;
+
+/**
+ * Queue held in memory with the semantics of Queue: priority then created order, earliestGet, resetDuration and the same queries,
+ * for tests and for single process pipelines that do not need the messages to outlive the process.
+ *
+ * Available messages are kept in priority order, delayed messages in earliestGet order and running messages in reset order, so get()
+ * takes the first matching available message without sorting. ensureGetIndex() keeps available messages in priority order per value
+ * of the beforeSort fields too, so get() with those fields matched by equality goes straight to its messages. Queries support
+ * equality, $eq, $ne, $gt, $gte, $lt, $lte, $in, $nin and $exists.
+ *
+ * Thread safe. Operations hold one lock for the few tree updates they make and get() waits for a send or requeue instead of polling.
+ */
+public final class InMemoryQueue implements MessageQueue {
+
+    private static final Comparator<Message> READY_ORDER = Comparator.<Message>comparingDouble(message -> message.priority)
+            .thenComparingLong(message -> message.sequence);
+    private static final Comparator<Message> DELAYED_ORDER = Comparator.<Message>comparingLong(message -> message.earliestGet)
+            .thenComparingLong(message -> message.sequence);
+    private static final Comparator<Message> RUNNING_ORDER = Comparator.<Message>comparingLong(message -> message.resetTimestamp)
+            .thenComparingLong(message -> message.sequence);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Map<ObjectId, Message> messages = new HashMap<>();
+    private final NavigableSet<Message> ready = new TreeSet<>(READY_ORDER);
+    private final NavigableSet<Message> delayed = new TreeSet<>(DELAYED_ORDER);
+    private final NavigableSet<Message> running = new TreeSet<>(RUNNING_ORDER);
+    private final List<GetIndex> indexes = new ArrayList<>();
+    private long nextSequence;
+
+    /**
+     * Keep available messages in priority order per value of the beforeSort fields. afterSort fields are matched while walking those
+     * messages, so they are only checked like Queue does.
+     */
+    @Override
+    public void ensureGetIndex(final BasicDBObject beforeSort, final BasicDBObject afterSort) {
+        checkIndexFields(beforeSort);
+        checkIndexFields(afterSort);
+        if (beforeSort.isEmpty()) {
+            return;
+        }
+
+        final List<String> fields = new ArrayList<>(beforeSort.keySet());
+
+        lock.lock();
+        try {
+            for (final GetIndex index : indexes) {
+                if (index.fields.equals(fields)) {
+                    return;
+                }
+            }
+
+            final GetIndex index = new GetIndex(fields);
+            for (final Message message : ready) {
+                index.add(message);
+            }
+
+            indexes.add(index);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Counts walk every message, so this only checks the fields like Queue does
+     */
+    @Override
+    public void ensureCountIndex(final BasicDBObject index, final boolean includeRunning) {
+        checkIndexFields(index);
+    }
+
+    @Override
+    public BasicDBObject get(final BasicDBObject query, final int resetDuration, final int waitDuration) {
+        Objects.requireNonNull(query);
+        QueryMatcher.validate(query);
+
+        final long end = System.currentTimeMillis() + waitDuration;
+
+        lock.lock();
+        try {
+            while (true) {
+                final long now = System.currentTimeMillis();
+                promote(now);
+
+                for (final Message message : candidates(query)) {
+                    if (QueryMatcher.matches(message.payload, query)) {
+                        removeReady(message);
+                        message.running = true;
+                        message.resetTimestamp = now + resetDuration * 1000L;
+                        running.add(message);
+
+                        return ((BasicDBObject) message.payload.copy()).append("id", message.id);
+                    }
+                }
+
+                final long remaining = end - now;
+                if (remaining <= 0) {
+                    return null;
+                }
+
+                //wake for the next delayed or stuck message too, since nothing signals those
+                long wait = remaining;
+                if (!delayed.isEmpty()) {
+                    wait = Math.min(wait, delayed.first().earliestGet - now);
+                }
+
+                if (!running.isEmpty()) {
+                    wait = Math.min(wait, running.first().resetTimestamp - now);
+                }
+
+                changed.await(Math.max(wait, 1), TimeUnit.MILLISECONDS);
+            }
+        } catch (final InterruptedException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long count(final BasicDBObject query) {
+        return countMatching(query, null);
+    }
+
+    @Override
+    public long count(final BasicDBObject query, final boolean running) {
+        return countMatching(query, running);
+    }
+
+    @Override
+    public void ack(final BasicDBObject message) {
+        Objects.requireNonNull(message);
+        final ObjectId id = getId(message);
+
+        lock.lock();
+        try {
+            final Message removed = messages.remove(id);
+            if (removed != null) {
+                removeFromOrders(removed);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void ackSend(final BasicDBObject message, final BasicDBObject payload, final Date earliestGet, final double priority) {
+        Objects.requireNonNull(message);
+        Objects.requireNonNull(payload);
+        Objects.requireNonNull(earliestGet);
+        if (Double.isNaN(priority)) {
+            throw new IllegalArgumentException("priority was NaN");
+        }
+
+        final ObjectId id = getId(message);
+        final BasicDBObject copy = (BasicDBObject) payload.copy();
+
+        lock.lock();
+        try {
+            //the new message takes the id of the acked one, like the replacement Queue does
+            final Message removed = messages.remove(id);
+            if (removed != null) {
+                removeFromOrders(removed);
+            }
+
+            enqueue(new Message(id, copy, earliestGet.getTime(), priority, nextSequence++));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void requeue(final BasicDBObject message, final Date earliestGet, final double priority) {
+        Objects.requireNonNull(message);
+        Objects.requireNonNull(earliestGet);
+        if (Double.isNaN(priority)) {
+            throw new IllegalArgumentException("priority was NaN");
+        }
+
+        final ObjectId id = getId(message);
+
+        lock.lock();
+        try {
+            final Message existing = messages.get(id);
+            if (existing == null) {
+                //acked meanwhile, so send it again like Queue does
+                final BasicDBObject payload = (BasicDBObject) message.copy();
+                payload.removeField("id");
+                enqueue(new Message(id, payload, earliestGet.getTime(), priority, nextSequence++));
+                return;
+            }
+
+            removeFromOrders(existing);
+            existing.running = false;
+            existing.resetTimestamp = Long.MAX_VALUE;
+            existing.earliestGet = earliestGet.getTime();
+            existing.priority = priority;
+            existing.sequence = nextSequence++;
+            enqueue(existing);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void send(final BasicDBObject payload, final Date earliestGet, final double priority) {
+        Objects.requireNonNull(payload);
+        Objects.requireNonNull(earliestGet);
+        if (Double.isNaN(priority)) {
+            throw new IllegalArgumentException("priority was NaN");
+        }
+
+        final BasicDBObject copy = (BasicDBObject) payload.copy();
+
+        lock.lock();
+        try {
+            enqueue(new Message(ObjectId.get(), copy, earliestGet.getTime(), priority, nextSequence++));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param running null for all messages
+     */
+    private long countMatching(final BasicDBObject query, final Boolean running) {
+        Objects.requireNonNull(query);
+        QueryMatcher.validate(query);
+
+        lock.lock();
+        try {
+            long count = 0;
+            for (final Message message : messages.values()) {
+                if ((running == null || message.running == running) && QueryMatcher.matches(message.payload, query)) {
+                    ++count;
+                }
+            }
+
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Make delayed messages whose earliestGet passed and running messages whose resetDuration passed available
+     */
+    private void promote(final long now) {
+        while (!delayed.isEmpty() && delayed.first().earliestGet <= now) {
+            addReady(delayed.pollFirst());
+        }
+
+        while (!running.isEmpty() && running.first().resetTimestamp <= now) {
+            final Message stuck = running.pollFirst();
+            stuck.running = false;
+            stuck.resetTimestamp = Long.MAX_VALUE;
+            addReady(stuck);
+        }
+    }
+
+    /**
+     * @return available messages in priority order, narrowed by the get index with the most fields matched by equality in query
+     */
+    private Iterable<Message> candidates(final BasicDBObject query) {
+        GetIndex best = null;
+        List<Object> bestKey = null;
+        for (final GetIndex index : indexes) {
+            if (best != null && best.fields.size() >= index.fields.size()) {
+                continue;
+            }
+
+            final List<Object> key = index.queryKey(query);
+            if (key != null) {
+                best = index;
+                bestKey = key;
+            }
+        }
+
+        if (best == null) {
+            return ready;
+        }
+
+        final NavigableSet<Message> indexed = best.messages.get(bestKey);
+        return indexed == null ? Collections.<Message>emptySet() : indexed;
+    }
+
+    private void enqueue(final Message message) {
+        messages.put(message.id, message);
+        if (message.earliestGet <= System.currentTimeMillis()) {
+            addReady(message);
+        } else {
+            delayed.add(message);
+        }
+
+        //delayed messages change how long waiting get() calls should sleep
+        changed.signalAll();
+    }
+
+    private void addReady(final Message message) {
+        ready.add(message);
+        for (final GetIndex index : indexes) {
+            index.add(message);
+        }
+    }
+
+    private void removeReady(final Message message) {
+        ready.remove(message);
+        for (final GetIndex index : indexes) {
+            index.remove(message);
+        }
+    }
+
+    private void removeFromOrders(final Message message) {
+        if (message.running) {
+            running.remove(message);
+        } else if (!delayed.remove(message)) {
+            removeReady(message);
+        }
+    }
+
+    private static ObjectId getId(final BasicDBObject message) {
+        final Object id = message.get("id");
+        if (id.getClass() != ObjectId.class) {
+            throw new IllegalArgumentException("id must be an ObjectId");
+        }
+
+        return (ObjectId) id;
+    }
+
+    private static void checkIndexFields(final BasicDBObject index) {
+        Objects.requireNonNull(index);
+        for (final Entry<String, Object> field : index.entrySet()) {
+            if (!Objects.equals(field.getValue(), 1) && !Objects.equals(field.getValue(), -1)) {
+                throw new IllegalArgumentException("field values must be either 1 or -1");
+            }
+        }
+    }
+
+    /**
+     * A message with its queue fields. The fields an order sorts on only change while the message is out of that order
+     */
+    private static final class Message {
+
+        private final ObjectId id;
+        private final BasicDBObject payload;
+        private boolean running;
+        private long resetTimestamp = Long.MAX_VALUE;
+        private long earliestGet;
+        private double priority;
+        private long sequence;
+
+        private Message(
+                final ObjectId id,
+                final BasicDBObject payload,
+                final long earliestGet,
+                final double priority,
+                final long sequence
+        ) {
+            this.id = id;
+            this.payload = payload;
+            this.earliestGet = earliestGet;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Available messages in priority order per value of some payload fields. A message with an array in those fields is kept under
+     * every element, like a multikey index.
+     */
+    private static final class GetIndex {
+
+        private final List<String> fields;
+        private final Map<List<Object>, NavigableSet<Message>> messages = new HashMap<>();
+
+        private GetIndex(final List<String> fields) {
+            this.fields = fields;
+        }
+
+        private void add(final Message message) {
+            for (final List<Object> key : keys(message.payload)) {
+                messages.computeIfAbsent(key, ignored -> new TreeSet<>(READY_ORDER)).add(message);
+            }
+        }
+
+        private void remove(final Message message) {
+            for (final List<Object> key : keys(message.payload)) {
+                final NavigableSet<Message> keyed = messages.get(key);
+                if (keyed != null) {
+                    keyed.remove(message);
+                    if (keyed.isEmpty()) {
+                        messages.remove(key);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return key of the messages matching the query, or null when the query does not give every field by equality
+         */
+        private List<Object> queryKey(final BasicDBObject query) {
+            final List<Object> key = new ArrayList<>(fields.size());
+            for (final String field : fields) {
+                final Object value = query.get(field);
+                //null also matches missing fields and an array value matches whole arrays, which keys do not hold
+                if (value == null || value instanceof List || QueryMatcher.isOperators(value)) {
+                    return null;
+                }
+
+                key.add(QueryMatcher.key(value));
+            }
+
+            return key;
+        }
+
+        private List<List<Object>> keys(final DBObject payload) {
+            List<List<Object>> keys = Collections.singletonList(Collections.emptyList());
+            for (final String field : fields) {
+                final Object value = QueryMatcher.getPath(payload, field);
+                final List<?> values = value instanceof List ? (List<?>) value : Arrays.asList(value);
+
+                final List<List<Object>> extended = new ArrayList<>(keys.size() * Math.max(values.size(), 1));
+                for (final List<Object> key : keys) {
+                    for (final Object element : values) {
+                        final List<Object> longer = new ArrayList<>(key);
+                        longer.add(QueryMatcher.key(element));
+                        extended.add(longer);
+                    }
+                }
+
+                keys = extended;
+            }
+
+            return keys;
+        }
+    }
+}
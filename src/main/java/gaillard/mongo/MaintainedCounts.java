@@ -0,0 +1,218 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Counters of total and running messages per distinct value of registered payload field lists, kept in a side collection and moved by
+ * queue operations with $inc upserts right after the operation. Without multi document transactions the $inc cannot be atomic with the
+ * operation, so a process dying in between, or messages acked, requeued or reset by different callers at the same moment, can make
+ * counters drift. recount() sets them to recomputed values, exact except for the operations running during it.
+ */
+final class MaintainedCounts {
+
+    private final DBCollection collection;
+    private final DBCollection counters;
+    private final List<List<String>> shapes = new CopyOnWriteArrayList<>();
+
+    MaintainedCounts(final DBCollection collection, final DBCollection counters) {
+        this.collection = collection;
+        this.counters = counters;
+    }
+
+    synchronized void register(final List<String> fields) {
+        for (final List<String> shape : shapes) {
+            if (shape.equals(fields)) {
+                return;
+            }
+        }
+
+        shapes.add(fields);
+        recount(fields);
+    }
+
+    boolean isEmpty() {
+        return shapes.isEmpty();
+    }
+
+    void recount() {
+        for (final List<String> shape : shapes) {
+            recount(shape);
+        }
+    }
+
+    /**
+     * @param running null for all messages
+     */
+    long count(final BasicDBObject query, final Boolean running) {
+        for (final List<String> shape : shapes) {
+            if (!new HashSet<>(shape).equals(query.keySet())) {
+                continue;
+            }
+
+            final BasicDBObject id = new BasicDBObject();
+            for (final String field : shape) {
+                final Object value = query.get(field);
+                if (value instanceof DBObject) {
+                    for (final String key : ((DBObject) value).keySet()) {
+                        if (key.startsWith("$")) {
+                            throw new IllegalArgumentException("maintained counts only support equality queries");
+                        }
+                    }
+                }
+
+                id.append(field, value);
+            }
+
+            final DBObject counter = counters.findOne(new BasicDBObject("_id", id));
+            if (counter == null) {
+                return 0;
+            }
+
+            final long total = ((Number) counter.get("total")).longValue();
+            final long runningCount = ((Number) counter.get("running")).longValue();
+            if (running == null) {
+                return total;
+            }
+
+            return running ? runningCount : total - runningCount;
+        }
+
+        throw new IllegalArgumentException("query fields do not match a registered count shape");
+    }
+
+    /**
+     * Projection of the payload fields of every shape, for reading the documents an operation is about to change
+     */
+    BasicDBObject fields() {
+        final BasicDBObject fields = new BasicDBObject("_id", 1);
+        for (final List<String> shape : shapes) {
+            for (final String field : shape) {
+                fields.append("payload." + field, 1);
+            }
+        }
+
+        return fields;
+    }
+
+    /**
+     * Add the deltas to the counters of every shape for each payload, in one round trip
+     */
+    void apply(final Collection<BasicDBObject> payloads, final int totalDelta, final int runningDelta) {
+        if (payloads.isEmpty() || shapes.isEmpty()) {
+            return;
+        }
+
+        final Map<BasicDBObject, long[]> deltas = new LinkedHashMap<>();
+        final Map<BasicDBObject, String> shapeNames = new LinkedHashMap<>();
+        for (final List<String> shape : shapes) {
+            final String name = name(shape);
+            for (final BasicDBObject payload : payloads) {
+                final BasicDBObject id = new BasicDBObject();
+                for (final String field : shape) {
+                    id.append(field, getPath(payload, field));
+                }
+
+                long[] delta = deltas.get(id);
+                if (delta == null) {
+                    delta = new long[2];
+                    deltas.put(id, delta);
+                    shapeNames.put(id, name);
+                }
+
+                delta[0] += totalDelta;
+                delta[1] += runningDelta;
+            }
+        }
+
+        final BulkWriteOperation operation = counters.initializeUnorderedBulkOperation();
+        for (final Entry<BasicDBObject, long[]> delta : deltas.entrySet()) {
+            operation.find(new BasicDBObject("_id", delta.getKey())).upsert().updateOne(
+                    new BasicDBObject("$inc", new BasicDBObject("total", delta.getValue()[0]).append("running", delta.getValue()[1]))
+                            .append("$setOnInsert", new BasicDBObject("shape", shapeNames.get(delta.getKey())))
+            );
+        }
+
+        operation.execute();
+    }
+
+    private void recount(final List<String> shape) {
+        final String name = name(shape);
+
+        //$group ids cannot have dotted names, so group on positions and name them after
+        final BasicDBObject groupId = new BasicDBObject();
+        for (int i = 0; i < shape.size(); ++i) {
+            groupId.append("f" + i, new BasicDBObject("$ifNull", Arrays.asList("$payload." + shape.get(i), null)));
+        }
+
+        final BasicDBObject group = new BasicDBObject("_id", groupId)
+                .append("total", new BasicDBObject("$sum", 1))
+                .append("running", new BasicDBObject("$sum", new BasicDBObject(
+                        "$cond",
+                        Arrays.asList(new BasicDBObject("$eq", Arrays.asList("$running", true)), 1, 0)
+                )));
+
+        final List<DBObject> pipeline = new ArrayList<>();
+        //soft acked messages hold their ack time in running and are no longer counted
+        pipeline.add(new BasicDBObject("$match", new BasicDBObject("running", new BasicDBObject("$in", Arrays.asList(true, false)))));
+        pipeline.add(new BasicDBObject("$group", group));
+
+        //set the recomputed values in place rather than remove and insert, which races with the $inc upserts of concurrent operations
+        //into duplicate keys. An $inc landing between the aggregation and the $set is still overwritten, so counts can be off by the
+        //operations running during the recount
+        final BulkWriteOperation operation = counters.initializeUnorderedBulkOperation();
+        final List<BasicDBObject> ids = new ArrayList<>();
+        for (final DBObject result : collection.aggregate(pipeline).results()) {
+            final DBObject resultId = (DBObject) result.get("_id");
+            final BasicDBObject id = new BasicDBObject();
+            for (int i = 0; i < shape.size(); ++i) {
+                id.append(shape.get(i), resultId.get("f" + i));
+            }
+
+            operation.find(new BasicDBObject("_id", id)).upsert().updateOne(new BasicDBObject("$set", new BasicDBObject("shape", name)
+                    .append("total", ((Number) result.get("total")).longValue())
+                    .append("running", ((Number) result.get("running")).longValue())));
+            ids.add(id);
+        }
+
+        if (!ids.isEmpty()) {
+            operation.execute();
+        }
+
+        //values no message has anymore
+        counters.update(
+                new BasicDBObject("shape", name).append("_id", new BasicDBObject("$nin", ids)),
+                new BasicDBObject("$set", new BasicDBObject("total", 0L).append("running", 0L)),
+                false,
+                true
+        );
+    }
+
+    private static String name(final List<String> shape) {
+        return String.join(",", shape);
+    }
+
+    private static Object getPath(final DBObject payload, final String path) {
+        Object value = payload;
+        for (final String part : path.split("\\.")) {
+            if (!(value instanceof DBObject)) {
+                return null;
+            }
+
+            value = ((DBObject) value).get(part);
+        }
+
+        return value;
+    }
+}
@@ -0,0 +1,17 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * Processes messages for a QueueConsumer
+ */
+public interface MessageHandler {
+
+    /**
+     * Process a message. Returning acks it, throwing requeues it
+     *
+     * @param message message from get(), including its id
+     * @throws Exception when the message should be retried
+     */
+    void handle(BasicDBObject message) throws Exception;
+}
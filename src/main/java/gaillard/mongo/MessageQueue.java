@@ -0,0 +1,179 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import java.util.Date;
+
+/**
+ * Queue operations shared by Queue, backed by a MongoDB collection, and InMemoryQueue. Messages are the payloads sent plus an "id"
+ * field holding an ObjectId.
+ */
+public interface MessageQueue {
+
+    /**
+     * Ensure index for get() method with no fields before or after sort fields
+     */
+    default void ensureGetIndex() {
+        ensureGetIndex(new BasicDBObject());
+    }
+
+    /**
+     * Ensure index for get() method with no fields after sort fields
+     *
+     * @param beforeSort fields in get() call that should be before the sort fields in the index. Should not be null
+     */
+    default void ensureGetIndex(final BasicDBObject beforeSort) {
+        ensureGetIndex(beforeSort, new BasicDBObject());
+    }
+
+    /**
+     * Ensure index for get() method
+     *
+     * @param beforeSort fields in get() call that should be before the sort fields in the index. Should not be null
+     * @param afterSort fields in get() call that should be after the sort fields in the index. Should not be null
+     */
+    void ensureGetIndex(BasicDBObject beforeSort, BasicDBObject afterSort);
+
+    /**
+     * Ensure index for count() method
+     *
+     * @param index fields in count() call. Should not be null
+     * @param includeRunning whether running was given to count() or not
+     */
+    void ensureCountIndex(BasicDBObject index, boolean includeRunning);
+
+    /**
+     * Get a non running message from queue with a wait of 3 seconds
+     *
+     * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
+     * invalid {$and: [{...}, {...}]}. Should not be null.
+     * @param resetDuration duration in seconds before this message is considered abandoned and will be given with another call to get()
+     * @return message or null
+     */
+    default BasicDBObject get(final BasicDBObject query, final int resetDuration) {
+        return get(query, resetDuration, 3000);
+    }
+
+    /**
+     * Get a non running message from queue
+     *
+     * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
+     * invalid {$and: [{...}, {...}]}. Should not be null.
+     * @param resetDuration duration in seconds before this message is considered abandoned and will be given with another call to get()
+     * @param waitDuration duration in milliseconds to keep trying before returning null
+     * @return message or null
+     */
+    BasicDBObject get(BasicDBObject query, int resetDuration, int waitDuration);
+
+    /**
+     * Count in queue, running true or false
+     *
+     * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
+     * invalid {$and: [{...}, {...}]}. Should not be null
+     * @return count
+     */
+    long count(BasicDBObject query);
+
+    /**
+     * Count in queue
+     *
+     * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
+     * invalid {$and: [{...}, {...}]}. Should not be null
+     * @param running count running messages or not running
+     * @return count
+     */
+    long count(BasicDBObject query, boolean running);
+
+    /**
+     * Acknowledge a message was processed and remove from queue
+     *
+     * @param message message received from get(). Should not be null.
+     */
+    void ack(BasicDBObject message);
+
+    /**
+     * Ack message and send payload to queue, atomically, with earliestGet as Now and 0.0 priority
+     *
+     * @param message message to ack received from get(). Should not be null
+     * @param payload payload to send. Should not be null
+     */
+    default void ackSend(final BasicDBObject message, final BasicDBObject payload) {
+        ackSend(message, payload, new Date());
+    }
+
+    /**
+     * Ack message and send payload to queue, atomically, with 0.0 priority
+     *
+     * @param message message to ack received from get(). Should not be null
+     * @param payload payload to send. Should not be null
+     * @param earliestGet earliest instant that a call to get() can return message. Should not be null
+     */
+    default void ackSend(final BasicDBObject message, final BasicDBObject payload, final Date earliestGet) {
+        ackSend(message, payload, earliestGet, 0.0);
+    }
+
+    /**
+     * Ack message and send payload to queue, atomically
+     *
+     * @param message message to ack received from get(). Should not be null
+     * @param payload payload to send. Should not be null
+     * @param earliestGet earliest instant that a call to get() can return message. Should not be null
+     * @param priority priority for order out of get(). 0 is higher priority than 1. Should not be NaN
+     */
+    void ackSend(BasicDBObject message, BasicDBObject payload, Date earliestGet, double priority);
+
+    /**
+     * Requeue message with earliestGet as Now and 0.0 priority
+     *
+     * @param message message to requeue received from get(). Should not be null
+     */
+    default void requeue(final BasicDBObject message) {
+        requeue(message, new Date());
+    }
+
+    /**
+     * Requeue message with 0.0 priority
+     *
+     * @param message message to requeue received from get(). Should not be null
+     * @param earliestGet earliest instant that a call to get() can return message. Should not be null
+     */
+    default void requeue(final BasicDBObject message, final Date earliestGet) {
+        requeue(message, earliestGet, 0.0);
+    }
+
+    /**
+     * Requeue message. Changes made to the message after get() are not saved, use ackSend() to requeue a changed payload.
+     *
+     * @param message message to requeue received from get(). Should not be null
+     * @param earliestGet earliest instant that a call to get() can return message. Should not be null
+     * @param priority priority for order out of get(). 0 is higher priority than 1. Should not be NaN
+     */
+    void requeue(BasicDBObject message, Date earliestGet, double priority);
+
+    /**
+     * Send message to queue with earliestGet as Now and 0.0 priority
+     *
+     * @param payload payload. Should not be null
+     */
+    default void send(final BasicDBObject payload) {
+        send(payload, new Date());
+    }
+
+    /**
+     * Send message to queue with 0.0 priority
+     *
+     * @param payload payload. Should not be null
+     * @param earliestGet earliest instant that a call to Get() can return message. Should not be null
+     */
+    default void send(final BasicDBObject payload, final Date earliestGet) {
+        send(payload, earliestGet, 0.0);
+    }
+
+    /**
+     * Send message to queue
+     *
+     * @param payload payload. Should not be null
+     * @param earliestGet earliest instant that a call to Get() can return message. Should not be null
+     * @param priority priority for order out of Get(). 0 is higher priority than 1. Should not be NaN
+     */
+    void send(BasicDBObject payload, Date earliestGet, double priority);
+}
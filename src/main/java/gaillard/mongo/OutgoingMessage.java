@@ -0,0 +1,53 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * A payload with its send options, for use with Queue.sendAll()
+ */
+public final class OutgoingMessage {
+
+    private final BasicDBObject payload;
+    private final Date earliestGet;
+    private final double priority;
+
+    /**
+     * Message with earliestGet as Now and 0.0 priority
+     *
+     * @param payload payload. Should not be null
+     */
+    public OutgoingMessage(final BasicDBObject payload) {
+        this(payload, new Date(), 0.0);
+    }
+
+    /**
+     * @param payload payload. Should not be null
+     * @param earliestGet earliest instant that a call to Get() can return message. Should not be null
+     * @param priority priority for order out of Get(). 0 is higher priority than 1. Should not be NaN
+     */
+    public OutgoingMessage(final BasicDBObject payload, final Date earliestGet, final double priority) {
+        Objects.requireNonNull(payload);
+        Objects.requireNonNull(earliestGet);
+        if (Double.isNaN(priority)) {
+            throw new IllegalArgumentException("priority was NaN");
+        }
+
+        this.payload = payload;
+        this.earliestGet = earliestGet;
+        this.priority = priority;
+    }
+
+    public BasicDBObject getPayload() {
+        return payload;
+    }
+
+    public Date getEarliestGet() {
+        return earliestGet;
+    }
+
+    public double getPriority() {
+        return priority;
+    }
+}
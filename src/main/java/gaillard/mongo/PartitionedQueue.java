@@ -0,0 +1,438 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queue spread over partitions, each a Queue on its own collection, so consumers claim from different indexes and documents instead of
+ * contending on one. Sends go to the partition of a payload key field when one is given, otherwise round robin. Each get() sweeps the
+ * partitions once per poll, starting at a random partition or, with affinity, at the partition the calling thread last got a message
+ * from.
+ *
+ * Messages returned carry the index of their partition in a PARTITION_FIELD field next to "id", which ack(), ackSend(), requeue() and
+ * extendLease() use to find their partition. Payloads cannot have a field of that name. Every instance should be built with the same
+ * partitions in the same order.
+ */
+public final class PartitionedQueue implements MessageQueue {
+
+    /**
+     * Field reserved for the partition index in messages returned by get() and getBatch()
+     */
+    public static final String PARTITION_FIELD = "_partition";
+
+    private final List<Queue> partitions;
+    private final String keyField;
+    private final AtomicInteger nextPartition = new AtomicInteger();
+    private final ThreadLocal<int[]> lastHit = ThreadLocal.withInitial(() -> new int[1]);
+    private volatile PollStrategy pollStrategy = new FixedPollStrategy(200);
+    private volatile boolean affinity;
+
+    /**
+     * Sends round robin across partitions
+     *
+     * @param partitions queues on distinct collections. Should not be null, empty or contain null
+     */
+    public PartitionedQueue(final List<Queue> partitions) {
+        this(partitions, null);
+    }
+
+    /**
+     * @param partitions queues on distinct collections. Should not be null, empty or contain null
+     * @param keyField payload field whose value picks the partition of a send, dotted for nested fields, or null for round robin.
+     * Messages with the same value stay in order relative to each other
+     */
+    public PartitionedQueue(final List<Queue> partitions, final String keyField) {
+        Objects.requireNonNull(partitions);
+        if (partitions.isEmpty()) {
+            throw new IllegalArgumentException("partitions was empty");
+        }
+
+        for (final Queue partition : partitions) {
+            Objects.requireNonNull(partition);
+        }
+
+        this.partitions = new ArrayList<>(partitions);
+        this.keyField = keyField;
+    }
+
+    /**
+     * @param pollStrategy strategy deciding the wait between sweeps of the partitions that found no message. Should not be null
+     */
+    public void setPollStrategy(final PollStrategy pollStrategy) {
+        Objects.requireNonNull(pollStrategy);
+
+        this.pollStrategy = pollStrategy;
+    }
+
+    /**
+     * Whether get() starts its sweep at the partition the calling thread last got a message from, which keeps a consumer on a busy
+     * partition. Defaults to false for a random start, which spreads consumers evenly.
+     *
+     * @param affinity true for affinity
+     */
+    public void setAffinity(final boolean affinity) {
+        this.affinity = affinity;
+    }
+
+    /**
+     * @return number of partitions
+     */
+    public int getPartitionCount() {
+        return partitions.size();
+    }
+
+    /**
+     * @param index partition index, from 0
+     * @return queue of that partition, eg: to set options or run a StuckMessageReaper on it
+     */
+    public Queue getPartition(final int index) {
+        return partitions.get(index);
+    }
+
+    /**
+     * @see Queue#ensureGetIndex(BasicDBObject, BasicDBObject)
+     */
+    @Override
+    public void ensureGetIndex(final BasicDBObject beforeSort, final BasicDBObject afterSort) {
+        for (final Queue partition : partitions) {
+            partition.ensureGetIndex(beforeSort, afterSort);
+        }
+    }
+
+    /**
+     * @see Queue#ensureCountIndex(BasicDBObject, boolean)
+     */
+    @Override
+    public void ensureCountIndex(final BasicDBObject index, final boolean includeRunning) {
+        for (final Queue partition : partitions) {
+            partition.ensureCountIndex(index, includeRunning);
+        }
+    }
+
+    /**
+     * Get a non running message from any partition
+     *
+     * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
+     * invalid {$and: [{...}, {...}]}. Should not be null.
+     * @param resetDuration duration in seconds before this message is considered abandoned and will be given with another call to get()
+     * @param waitDuration duration in milliseconds to keep polling before returning null
+     * @return message or null
+     */
+    @Override
+    public BasicDBObject get(final BasicDBObject query, final int resetDuration, final int waitDuration) {
+        Objects.requireNonNull(query);
+
+        final PollStrategy pollStrategy = this.pollStrategy;
+        final long end = System.currentTimeMillis() + waitDuration;
+        final int start = startPartition();
+        int emptyPolls = 0;
+
+        while (true) {
+            for (int i = 0; i < partitions.size(); ++i) {
+                final int index = (start + i) % partitions.size();
+                //stuck messages are only reset on the first sweep, like a single queue does once per get()
+                final BasicDBObject message = partitions.get(index).get(query, resetDuration, 0, pollStrategy, emptyPolls == 0);
+                if (message != null) {
+                    lastHit.get()[0] = index;
+                    return message.append(PARTITION_FIELD, index);
+                }
+            }
+
+            final long remaining = end - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return null;
+            }
+
+            try {
+                Thread.sleep(Math.max(Math.min(pollStrategy.delay(++emptyPolls), remaining), 0));
+            } catch (final InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    /**
+     * Get up to maxMessages non running messages, taken from the partitions in sweep order, without waiting
+     *
+     * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
+     * invalid {$and: [{...}, {...}]}. Should not be null.
+     * @param resetDuration duration in seconds before these messages are considered abandoned and will be given with another call to get()
+     * @param maxMessages max number of messages to claim. Should be positive
+     * @return messages, in priority then created order within each partition, empty if none
+     */
+    public List<BasicDBObject> getBatch(final BasicDBObject query, final int resetDuration, final int maxMessages) {
+        Objects.requireNonNull(query);
+        if (maxMessages <= 0) {
+            throw new IllegalArgumentException("maxMessages must be positive");
+        }
+
+        final List<BasicDBObject> messages = new ArrayList<>(maxMessages);
+        final int start = startPartition();
+        for (int i = 0; i < partitions.size() && messages.size() < maxMessages; ++i) {
+            final int index = (start + i) % partitions.size();
+            final List<BasicDBObject> batch = partitions.get(index)
+                    .getBatch(query, resetDuration, maxMessages - messages.size(), 0, pollStrategy);
+            if (!batch.isEmpty()) {
+                lastHit.get()[0] = index;
+            }
+
+            for (final BasicDBObject message : batch) {
+                messages.add(message.append(PARTITION_FIELD, index));
+            }
+        }
+
+        return messages;
+    }
+
+    /**
+     * Count in all partitions, running true or false
+     *
+     * @see Queue#count(BasicDBObject)
+     */
+    @Override
+    public long count(final BasicDBObject query) {
+        return count(query, CountMode.EXACT);
+    }
+
+    /**
+     * Count in all partitions, running true or false
+     *
+     * @see Queue#count(BasicDBObject, CountMode)
+     */
+    public long count(final BasicDBObject query, final CountMode mode) {
+        long count = 0;
+        for (final Queue partition : partitions) {
+            count += partition.count(query, mode);
+        }
+
+        return count;
+    }
+
+    /**
+     * Count in all partitions
+     *
+     * @see Queue#count(BasicDBObject, boolean)
+     */
+    @Override
+    public long count(final BasicDBObject query, final boolean running) {
+        return count(query, running, CountMode.EXACT);
+    }
+
+    /**
+     * Count in all partitions
+     *
+     * @see Queue#count(BasicDBObject, boolean, CountMode)
+     */
+    public long count(final BasicDBObject query, final boolean running, final CountMode mode) {
+        long count = 0;
+        for (final Queue partition : partitions) {
+            count += partition.count(query, running, mode);
+        }
+
+        return count;
+    }
+
+    /**
+     * @param message message received from get() or getBatch(). Should not be null
+     * @see Queue#ack(BasicDBObject)
+     */
+    @Override
+    public void ack(final BasicDBObject message) {
+        partitionOf(message).ack(withoutPartition(message));
+    }
+
+    /**
+     * @param messages messages received from get() or getBatch(). Should not be null or contain null
+     * @return number of messages removed
+     * @see Queue#ackAll(Collection)
+     */
+    public int ackAll(final Collection<BasicDBObject> messages) {
+        final List<List<BasicDBObject>> grouped = byPartition(messages);
+
+        int removed = 0;
+        for (int i = 0; i < grouped.size(); ++i) {
+            if (!grouped.get(i).isEmpty()) {
+                removed += partitions.get(i).ackAll(grouped.get(i));
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * @param messages messages to requeue received from get() or getBatch(). Should not be null or contain null
+     * @return number of messages requeued
+     * @see Queue#requeueAll(Collection)
+     */
+    public int requeueAll(final Collection<BasicDBObject> messages) {
+        final List<List<BasicDBObject>> grouped = byPartition(messages);
+
+        int requeued = 0;
+        for (int i = 0; i < grouped.size(); ++i) {
+            if (!grouped.get(i).isEmpty()) {
+                requeued += partitions.get(i).requeueAll(grouped.get(i));
+            }
+        }
+
+        return requeued;
+    }
+
+    /**
+     * @param message message received from get(). Should not be null
+     * @see Queue#extendLease(BasicDBObject, int)
+     */
+    public boolean extendLease(final BasicDBObject message, final int resetDuration) {
+        return partitionOf(message).extendLease(withoutPartition(message), resetDuration);
+    }
+
+    /**
+     * Ack message and send payload, atomically. The payload is sent to the partition of the message, since one document is replaced,
+     * so with a key field it should keep the key of the message to stay in order with its key.
+     *
+     * @param message message to ack received from get(). Should not be null
+     * @param payload payload to send. Should not be null
+     * @param earliestGet earliest instant that a call to get() can return message. Should not be null
+     * @param priority priority for order out of get(). 0 is higher priority than 1. Should not be NaN
+     */
+    @Override
+    public void ackSend(final BasicDBObject message, final BasicDBObject payload, final Date earliestGet, final double priority) {
+        checkPayload(payload);
+
+        partitionOf(message).ackSend(withoutPartition(message), payload, earliestGet, priority);
+    }
+
+    /**
+     * Requeue message in its partition
+     *
+     * @param message message to requeue received from get(). Should not be null
+     * @param earliestGet earliest instant that a call to get() can return message. Should not be null
+     * @param priority priority for order out of get(). 0 is higher priority than 1. Should not be NaN
+     * @see Queue#requeue(BasicDBObject, Date, double)
+     */
+    @Override
+    public void requeue(final BasicDBObject message, final Date earliestGet, final double priority) {
+        partitionOf(message).requeue(withoutPartition(message), earliestGet, priority);
+    }
+
+    /**
+     * Send message to the partition of its key, or the next partition round robin
+     *
+     * @param payload payload. Should not be null
+     * @param earliestGet earliest instant that a call to Get() can return message. Should not be null
+     * @param priority priority for order out of Get(). 0 is higher priority than 1. Should not be NaN
+     */
+    @Override
+    public void send(final BasicDBObject payload, final Date earliestGet, final double priority) {
+        checkPayload(payload);
+
+        partitions.get(partitionFor(payload)).send(payload, earliestGet, priority);
+    }
+
+    /**
+     * Send messages, one Queue.sendAll() per partition holding any of them
+     *
+     * @param messages messages. Should not be null or contain null
+     * @param batchSize max number of messages per insert round trip. Should be positive
+     * @param ordered true to stop at the first failed message of each partition, false to continue with the rest
+     * @return payloads that were not inserted, grouped by partition. Empty when all were inserted
+     * @see Queue#sendAll(List, int, boolean)
+     */
+    public List<BasicDBObject> sendAll(final List<OutgoingMessage> messages, final int batchSize, final boolean ordered) {
+        Objects.requireNonNull(messages);
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+
+        final List<List<OutgoingMessage>> grouped = new ArrayList<>(partitions.size());
+        for (int i = 0; i < partitions.size(); ++i) {
+            grouped.add(new ArrayList<>());
+        }
+
+        for (final OutgoingMessage message : messages) {
+            Objects.requireNonNull(message);
+            checkPayload(message.getPayload());
+            grouped.get(partitionFor(message.getPayload())).add(message);
+        }
+
+        final List<BasicDBObject> failed = new ArrayList<>();
+        for (int i = 0; i < grouped.size(); ++i) {
+            if (!grouped.get(i).isEmpty()) {
+                failed.addAll(partitions.get(i).sendAll(grouped.get(i), batchSize, ordered));
+            }
+        }
+
+        return failed;
+    }
+
+    private static void checkPayload(final BasicDBObject payload) {
+        Objects.requireNonNull(payload);
+        if (payload.containsField(PARTITION_FIELD)) {
+            throw new IllegalArgumentException("payload cannot contain " + PARTITION_FIELD);
+        }
+    }
+
+    private int startPartition() {
+        return affinity ? lastHit.get()[0] : ThreadLocalRandom.current().nextInt(partitions.size());
+    }
+
+    private int partitionFor(final BasicDBObject payload) {
+        if (keyField == null) {
+            return Math.floorMod(nextPartition.getAndIncrement(), partitions.size());
+        }
+
+        Object value = payload;
+        for (final String part : keyField.split("\\.")) {
+            value = value instanceof BasicDBObject ? ((BasicDBObject) value).get(part) : null;
+        }
+
+        //spread the bits since small integer keys hash to themselves
+        final int hash = Objects.hashCode(value) * 0x9E3779B9;
+        return Math.floorMod(hash ^ (hash >>> 16), partitions.size());
+    }
+
+    private Queue partitionOf(final BasicDBObject message) {
+        Objects.requireNonNull(message);
+
+        return partitions.get(partitionIndex(message));
+    }
+
+    private int partitionIndex(final BasicDBObject message) {
+        final Object partition = message.get(PARTITION_FIELD);
+        if (!(partition instanceof Integer) || (Integer) partition < 0 || (Integer) partition >= partitions.size()) {
+            throw new IllegalArgumentException("partition must be the index of a partition, from get()");
+        }
+
+        return (Integer) partition;
+    }
+
+    private List<List<BasicDBObject>> byPartition(final Collection<BasicDBObject> messages) {
+        Objects.requireNonNull(messages);
+
+        final List<List<BasicDBObject>> grouped = new ArrayList<>(partitions.size());
+        for (int i = 0; i < partitions.size(); ++i) {
+            grouped.add(new ArrayList<>());
+        }
+
+        for (final BasicDBObject message : messages) {
+            Objects.requireNonNull(message);
+            grouped.get(partitionIndex(message)).add(withoutPartition(message));
+        }
+
+        return grouped;
+    }
+
+    /**
+     * Copy without the partition field, so a message sent again by the partition does not keep it in its payload
+     */
+    private static BasicDBObject withoutPartition(final BasicDBObject message) {
+        final BasicDBObject copy = new BasicDBObject(message);
+        copy.removeField(PARTITION_FIELD);
+        return copy;
+    }
+}
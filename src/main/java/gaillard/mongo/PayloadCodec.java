@@ -0,0 +1,52 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * Converts payloads to the form stored under the payload field and back. Set the same codec on every queue instance sending to or
+ * receiving from a collection.
+ */
+public interface PayloadCodec {
+
+    /**
+     * @param payload payload given to send(). Should not be modified
+     * @return document to store. Fields used in get() and count() queries and in indexes should be kept as is
+     */
+    BasicDBObject encode(BasicDBObject payload);
+
+    /**
+     * @param stored document read from the payload field, from encode() or from a queue without this codec
+     * @return payload as given to encode()
+     */
+    BasicDBObject decode(BasicDBObject stored);
+
+    /**
+     * Whether encode() keeps a payload field as is, so queries and indexes on it match. Queues reject get() and count() queries and
+     * indexes on fields that are not. Defaults to true.
+     *
+     * @param field payload field, dotted for nested fields
+     * @return true if the field is stored as is
+     */
+    default boolean isPlain(final String field) {
+        return true;
+    }
+
+    /**
+     * Whether encode() stores part of payloads outside the queue document, so it has to be released once the message leaves the queue.
+     * Acks then read the stored payload as they remove the message, which costs more than a plain remove. Defaults to false.
+     *
+     * @return true if release() should be called
+     */
+    default boolean storesExternally() {
+        return false;
+    }
+
+    /**
+     * Free what encode() stored outside the queue document. Called after the message was acked or replaced by ackSend(), or when its
+     * insert failed. Does nothing by default.
+     *
+     * @param stored document read from the payload field
+     */
+    default void release(final BasicDBObject stored) {
+    }
+}
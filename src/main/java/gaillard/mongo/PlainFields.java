@@ -0,0 +1,62 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import java.util.HashSet;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Top level payload fields that codecs keep as is so queries and indexes still see them
+ */
+final class PlainFields {
+
+    private final Set<String> fields = new HashSet<>();
+
+    /**
+     * @param fields dotted for nested fields, whose whole top level field is then kept. Should not be null or contain null
+     */
+    PlainFields(final String... fields) {
+        Objects.requireNonNull(fields);
+
+        for (final String field : fields) {
+            Objects.requireNonNull(field);
+            this.fields.add(field.split("\\.", 2)[0]);
+        }
+    }
+
+    /**
+     * @return whether field, dotted for nested fields, is in a plain top level field
+     */
+    boolean contains(final String field) {
+        return fields.contains(field.split("\\.", 2)[0]);
+    }
+
+    /**
+     * @return the plain fields of payload
+     */
+    BasicDBObject plain(final BasicDBObject payload) {
+        final BasicDBObject plain = new BasicDBObject();
+        for (final Entry<String, Object> field : payload.entrySet()) {
+            if (fields.contains(field.getKey())) {
+                plain.append(field.getKey(), field.getValue());
+            }
+        }
+
+        return plain;
+    }
+
+    /**
+     * @return the fields of payload that are not plain
+     */
+    BasicDBObject rest(final BasicDBObject payload) {
+        final BasicDBObject rest = new BasicDBObject();
+        for (final Entry<String, Object> field : payload.entrySet()) {
+            if (!fields.contains(field.getKey())) {
+                rest.append(field.getKey(), field.getValue());
+            }
+        }
+
+        return rest;
+    }
+}
@@ -0,0 +1,18 @@
+package gaillard.mongo;
+
+/**
+ * Decides how long get() waits between polls that found no message
+ */
+public interface PollStrategy {
+
+    /**
+     * @param emptyPolls number of polls in a row in this get() call that found no message, starting at 1
+     * @return duration in milliseconds to wait before polling again. Negative is the same as 0
+     */
+    long delay(int emptyPolls);
+
+    /**
+     * Called when a poll finds a message
+     */
+    void onHit();
+}
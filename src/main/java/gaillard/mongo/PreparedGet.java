@@ -0,0 +1,114 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import java.util.Date;
+import java.util.Map.Entry;
+import java.util.Objects;
+import org.bson.types.ObjectId;
+
+/**
+ * A get() whose query and update are built once and reused by every call, so polling allocates only what the driver
+ * needs. Only the timestamps inside them change between calls and attempts.
+ *
+ * Not thread safe, since calls change the shared timestamps. Prepare one per consumer thread.
+ */
+public final class PreparedGet {
+
+    static final int NO_STRIPE = -1;
+
+    private final Queue queue;
+    private final int resetDuration;
+    private final BasicDBObject query;
+    private final Date now = new Date();
+    private final BasicDBObject set = new BasicDBObject("running", true);
+    private final BasicDBObject update = new BasicDBObject("$set", set);
+    private ObjectId claimId;
+
+    PreparedGet(final Queue queue, final BasicDBObject query, final int resetDuration) {
+        Objects.requireNonNull(query);
+        queue.checkPlain(query.keySet());
+
+        this.queue = queue;
+        this.resetDuration = resetDuration;
+
+        this.query = new BasicDBObject("running", false);
+        for (final Entry<String, Object> field : query.entrySet()) {
+            this.query.append("payload." + field.getKey(), field.getValue());
+        }
+
+        this.query.append("earliestGet", new BasicDBObject("$lte", now));
+    }
+
+    /**
+     * Get a non running message from queue with a wait of 3 seconds and the poll strategy of the queue
+     *
+     * @return message or null
+     */
+    public BasicDBObject get() {
+        return get(3000);
+    }
+
+    /**
+     * Get a non running message from queue with the poll strategy of the queue
+     *
+     * @param waitDuration duration in milliseconds to keep polling before returning null
+     * @return message or null
+     */
+    public BasicDBObject get(final int waitDuration) {
+        return queue.get(this, waitDuration, queue.getPollStrategy(), true);
+    }
+
+    /**
+     * Get a non running message from queue
+     *
+     * @param waitDuration duration in milliseconds to keep polling before returning null
+     * @param pollStrategy decides the wait between polls that found no message. Should not be null
+     * @return message or null
+     */
+    public BasicDBObject get(final int waitDuration, final PollStrategy pollStrategy) {
+        Objects.requireNonNull(pollStrategy);
+
+        return queue.get(this, waitDuration, pollStrategy, true);
+    }
+
+    /**
+     * Start a call, setting the reset timestamp every claim in it uses
+     */
+    void start() {
+        //a new instance since the value is stored, unlike now which is only queried with
+        set.put("resetTimestamp", new Date(System.currentTimeMillis() + resetDuration * 1000L));
+        claimId = ObjectId.get();
+        set.put("claimId", claimId);
+    }
+
+    /**
+     * @return claim of the current call, stored on the message it claims
+     */
+    ObjectId claimId() {
+        return claimId;
+    }
+
+    /**
+     * @return the query with earliestGet set to now, for the next attempt
+     */
+    BasicDBObject query() {
+        //refreshed each attempt so messages that became available while waiting are found
+        now.setTime(System.currentTimeMillis());
+        return query;
+    }
+
+    /**
+     * @param stripe stripe the next attempt claims from, or NO_STRIPE for any
+     */
+    void stripe(final int stripe) {
+        if (stripe == NO_STRIPE) {
+            query.removeField("stripe");
+        } else {
+            query.put("stripe", Queue.stripeCondition(stripe));
+        }
+    }
+
+    BasicDBObject update() {
+        return update;
+    }
+}
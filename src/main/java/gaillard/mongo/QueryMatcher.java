@@ -0,0 +1,210 @@
+package gaillard.mongo;
+
+import com.mongodb.DBObject;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Matches payloads against get() and count() queries in memory, with the semantics of the MongoDB query operators InMemoryQueue
+ * supports: equality, $eq, $ne, $gt, $gte, $lt, $lte, $in, $nin and $exists. Comparisons only match values of the same kind, numbers
+ * of any type compare by value, and a field holding an array matches when any element does.
+ */
+final class QueryMatcher {
+
+    private QueryMatcher() {
+    }
+
+    /**
+     * @throws IllegalArgumentException query has a top level operator or an unsupported operator
+     */
+    static void validate(final DBObject query) {
+        for (final String field : query.keySet()) {
+            if (field.startsWith("$")) {
+                throw new IllegalArgumentException("top level fields cannot be operators");
+            }
+
+            final Object condition = query.get(field);
+            if (isOperators(condition)) {
+                for (final String operator : ((DBObject) condition).keySet()) {
+                    switch (operator) {
+                        case "$eq":
+                        case "$ne":
+                        case "$gt":
+                        case "$gte":
+                        case "$lt":
+                        case "$lte":
+                        case "$exists":
+                            break;
+                        case "$in":
+                        case "$nin":
+                            if (!(((DBObject) condition).get(operator) instanceof Collection)) {
+                                throw new IllegalArgumentException(operator + " needs an array");
+                            }
+
+                            break;
+                        default:
+                            throw new IllegalArgumentException("unsupported operator " + operator);
+                    }
+                }
+            }
+        }
+    }
+
+    static boolean matches(final DBObject payload, final DBObject query) {
+        for (final String field : query.keySet()) {
+            if (!matches(getPath(payload, field), query.get(field))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return whether the condition is an object of operators rather than a value to equal
+     */
+    static boolean isOperators(final Object condition) {
+        if (!(condition instanceof DBObject) || condition instanceof List) {
+            return false;
+        }
+
+        final Collection<String> keys = ((DBObject) condition).keySet();
+        return !keys.isEmpty() && keys.iterator().next().startsWith("$");
+    }
+
+    /**
+     * @return value at the dotted path, or Missing.INSTANCE
+     */
+    static Object getPath(final DBObject payload, final String path) {
+        Object value = payload;
+        for (final String part : path.split("\\.")) {
+            if (!(value instanceof DBObject) || value instanceof List || !((DBObject) value).containsField(part)) {
+                return Missing.INSTANCE;
+            }
+
+            value = ((DBObject) value).get(part);
+        }
+
+        return value;
+    }
+
+    /**
+     * @return value to use as an index key, equal for values that match each other by equality
+     */
+    static Object key(final Object value) {
+        return value instanceof Number ? (Object) ((Number) value).doubleValue() : value;
+    }
+
+    private static boolean matches(final Object value, final Object condition) {
+        if (!isOperators(condition)) {
+            return equalsOrContains(value, condition);
+        }
+
+        final DBObject operators = (DBObject) condition;
+        for (final String operator : operators.keySet()) {
+            if (!matches(value, operator, operators.get(operator))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean matches(final Object value, final String operator, final Object argument) {
+        switch (operator) {
+            case "$eq":
+                return equalsOrContains(value, argument);
+            case "$ne":
+                return !equalsOrContains(value, argument);
+            case "$gt":
+                return compares(value, argument, 1, false);
+            case "$gte":
+                return compares(value, argument, 1, true);
+            case "$lt":
+                return compares(value, argument, -1, false);
+            case "$lte":
+                return compares(value, argument, -1, true);
+            case "$in":
+                for (final Object candidate : (Collection<?>) argument) {
+                    if (equalsOrContains(value, candidate)) {
+                        return true;
+                    }
+                }
+
+                return false;
+            case "$nin":
+                return !matches(value, "$in", argument);
+            case "$exists":
+                return (value != Missing.INSTANCE) == Boolean.TRUE.equals(argument);
+            default:
+                throw new IllegalArgumentException("unsupported operator " + operator);
+        }
+    }
+
+    private static boolean equalsOrContains(final Object value, final Object expected) {
+        if (valueEquals(value, expected)) {
+            return true;
+        }
+
+        if (value instanceof List) {
+            for (final Object element : (List<?>) value) {
+                if (valueEquals(element, expected)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean valueEquals(final Object value, final Object expected) {
+        //like mongo, null matches a missing field
+        if (value == Missing.INSTANCE) {
+            return expected == null;
+        }
+
+        if (value instanceof Number && expected instanceof Number) {
+            return ((Number) value).doubleValue() == ((Number) expected).doubleValue();
+        }
+
+        return Objects.equals(value, expected);
+    }
+
+    /**
+     * @param sign 1 for greater than the argument, -1 for less than
+     */
+    private static boolean compares(final Object value, final Object argument, final int sign, final boolean orEqual) {
+        if (value instanceof List) {
+            for (final Object element : (List<?>) value) {
+                if (compares(element, argument, sign, orEqual)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        final int comparison;
+        if (value instanceof Number && argument instanceof Number) {
+            comparison = Double.compare(((Number) value).doubleValue(), ((Number) argument).doubleValue());
+        } else if (value instanceof String && argument instanceof String) {
+            comparison = ((String) value).compareTo((String) argument);
+        } else if (value instanceof Date && argument instanceof Date) {
+            comparison = ((Date) value).compareTo((Date) argument);
+        } else {
+            //values of different kinds do not compare
+            return false;
+        }
+
+        return comparison == 0 ? orEqual : Integer.signum(comparison) == sign;
+    }
+
+    /**
+     * Value of a field a payload does not have, unlike a field holding null
+     */
+    enum Missing {
+        INSTANCE
+    }
+}
@@ -1,19 +1,66 @@
 package gaillard.mongo;
 
 import com.mongodb.BasicDBObject;
-import com.mongodb.CommandFailureException;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.CommandResult;
 import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
-import java.util.Calendar;
+import com.mongodb.DuplicateKeyException;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Objects;
-import java.util.UUID;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.ToIntFunction;
 import org.bson.types.ObjectId;
 
-public final class Queue {
+public final class Queue implements MessageQueue {
+
+    /**
+     * Field holding the claim of messages returned by get() and getBatch(), which extendLease() matches so a lease that expired and was
+     * claimed again by another consumer is not extended. Remove it along with "id" when sending a message back as a payload.
+     */
+    public static final String CLAIM_FIELD = "_claim";
+
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+    private static final BasicDBObject PAYLOAD_FIELD = new BasicDBObject("payload", 1);
+    private static final BasicDBObject GET_SORT = new BasicDBObject("priority", 1).append("created", 1);
+    //matches messages that were not soft acked, whose running holds the ack time instead
+    private static final BasicDBObject NOT_ACKED = new BasicDBObject("$in", Arrays.asList(true, false));
+    //stripe 0 also holds messages sent without striping
+    private static final BasicDBObject STRIPE_ZERO = new BasicDBObject("$in", Arrays.asList(0, null));
+    private static final int MAX_INDEX_NAMESPACE_LENGTH = 127;
+    private static final int INDEX_NAME_HASH_LENGTH = 16;
 
     private final DBCollection collection;
+    private volatile boolean resetStuckOnGet = true;
+    private volatile SignalChannel signals;
+    private volatile PollStrategy pollStrategy = new FixedPollStrategy(200);
+    private volatile boolean waitForEarliestGet;
+    private volatile int stripes = 1;
+    private volatile boolean softAck;
+    private volatile long countCacheTtl = 1000;
+    private final CountCache countCache = new CountCache();
+    private volatile MaintainedCounts maintainedCounts;
+    private volatile WriteConcern writeConcern;
+    private volatile PayloadCodec payloadCodec;
+    private volatile QueueListener listener = QueueListener.NONE;
+    private List<Object> existingIndexes;
 
     public Queue(final DBCollection collection) {
         Objects.requireNonNull(collection);
@@ -21,6 +68,211 @@ public final class Queue {
         this.collection = collection;
     }
 
+    /**
+     * Whether get() and getBatch() reset stuck messages before looking for one. Defaults to true. Set to false when resetStuck() is
+     * called elsewhere, such as by a StuckMessageReaper.
+     *
+     * @param resetStuckOnGet true to reset on every get() call
+     */
+    public void setResetStuckOnGet(final boolean resetStuckOnGet) {
+        this.resetStuckOnGet = resetStuckOnGet;
+    }
+
+    /**
+     * Channel that sends signal after writing messages and that get() waits on between polls, so waiting consumers wake up as soon as a
+     * message is sent. pollDuration then only bounds how long a consumer can miss delayed or reset messages. Defaults to null for
+     * plain polling.
+     *
+     * @param signals channel shared by producers and consumers of this queue, or null
+     */
+    public void setSignalChannel(final SignalChannel signals) {
+        this.signals = signals;
+    }
+
+    /**
+     * Strategy for get() and getBatch() calls that are not given a pollDuration or strategy. Defaults to polling every 200 milliseconds
+     *
+     * @param pollStrategy strategy shared by all consumers of this instance. Should not be null
+     */
+    public void setPollStrategy(final PollStrategy pollStrategy) {
+        Objects.requireNonNull(pollStrategy);
+
+        this.pollStrategy = pollStrategy;
+    }
+
+    /**
+     * Whether get() and getBatch(), after finding nothing, look up the earliest future earliestGet of a message matching the query and
+     * wait until then instead of polling. The poll strategy is only used when no such message exists. Messages sent in the meantime are
+     * not seen until then unless a signal channel is set. Defaults to false.
+     *
+     * Set before ensureGetIndex(), which then also creates the index this lookup needs.
+     *
+     * @param waitForEarliestGet true to wait for the next delayed message
+     */
+    public void setWaitForEarliestGet(final boolean waitForEarliestGet) {
+        this.waitForEarliestGet = waitForEarliestGet;
+    }
+
+    /**
+     * Whether ack() and ackAll() only mark messages done instead of removing them, so acks under load are a single field update that
+     * takes the message out of the get() index range rather than a delete touching every index. running and ackedAt are set to the time
+     * of the ack, which neither get() nor the stuck message reset match. Done messages are removed later by purgeAcked(), an AckPurger,
+     * or a TTL index from ensureAckTtlIndex(). Defaults to false.
+     *
+     * count() without running skips done messages, which is fastest with a count index including running. Every instance should use
+     * the same setting.
+     *
+     * @param softAck true to mark messages done on ack
+     */
+    public void setSoftAck(final boolean softAck) {
+        this.softAck = softAck;
+    }
+
+    /**
+     * Number of stripes messages are spread over to lower contention between consumers. send() stamps each message with a random
+     * stripe and get() claims from a stripe picked by the calling thread, moving on to the others when it is empty, so concurrent
+     * consumers mostly race for different documents. Priority then created order only holds within a stripe. getBatch() takes from
+     * the stripes in the same way. Defaults to 1 for no striping.
+     *
+     * Every instance should use the same number, and it should be set before ensureGetIndex(), which adds the stripe to the index.
+     * Messages sent without striping are in stripe 0. Lowering the number leaves messages in the dropped stripes unreachable.
+     *
+     * @param stripes number of stripes. Should be positive
+     */
+    public void setStripes(final int stripes) {
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("stripes must be positive");
+        }
+
+        this.stripes = stripes;
+    }
+
+    /**
+     * Write concern for send(), sendAll(), ack(), ackSend() and requeue() calls that are not given one. Claiming, batch acks and
+     * requeues and stuck message resets always use the write concern of the collection since they depend on the result. Defaults to
+     * null for the write concern of the collection.
+     *
+     * With an unacknowledged write concern the result of a write is not known, so requeue() cannot send a message that was removed
+     * again and maintained counts assume every write succeeded.
+     *
+     * @param writeConcern eg: WriteConcern.UNACKNOWLEDGED, ACKNOWLEDGED, JOURNALED or MAJORITY, or null
+     */
+    public void setWriteConcern(final WriteConcern writeConcern) {
+        this.writeConcern = writeConcern;
+    }
+
+    /**
+     * Codec that payloads are stored with, such as a CompressingPayloadCodec or GridFsPayloadCodec. get() and getBatch() return decoded
+     * payloads. Defaults to null for storing payloads as given.
+     *
+     * get() and count() queries, ensureGetIndex(), ensureCountIndex() and registerCountShape() throw IllegalArgumentException for
+     * payload fields the codec does not keep plain, so set the codec first.
+     *
+     * With a codec that stores externally, ack() and ackSend() remove or replace the message with findAndModify to learn what to
+     * release, so they do not use the write concern.
+     *
+     * @param payloadCodec codec shared by producers and consumers of this queue, or null
+     */
+    public void setPayloadCodec(final PayloadCodec payloadCodec) {
+        this.payloadCodec = payloadCodec;
+    }
+
+    /**
+     * Listener told the outcome and duration of every operation, such as a HistogramQueueListener. Defaults to QueueListener.NONE
+     *
+     * @param listener listener. Should not be null
+     */
+    public void setListener(final QueueListener listener) {
+        Objects.requireNonNull(listener);
+
+        this.listener = listener;
+    }
+
+    /**
+     * How long count() with CountMode.CACHED serves a count before refreshing it in the background. Defaults to 1000 milliseconds
+     *
+     * @param countCacheTtl ttl in milliseconds. Should not be negative
+     */
+    public void setCountCacheTtl(final long countCacheTtl) {
+        if (countCacheTtl < 0) {
+            throw new IllegalArgumentException("countCacheTtl was negative");
+        }
+
+        this.countCacheTtl = countCacheTtl;
+    }
+
+    /**
+     * Collection holding the counters for count() with CountMode.MAINTAINED. Defaults to null for no maintained counts. Every instance
+     * sending to or receiving from this queue should be given the same collection and register the same shapes, or the counters drift.
+     *
+     * @param counters collection for counters only, or null to stop maintaining counts
+     */
+    public void setCountCollection(final DBCollection counters) {
+        maintainedCounts = counters == null ? null : new MaintainedCounts(collection, counters);
+    }
+
+    /**
+     * Maintain counters for count() queries on exactly these payload fields, matched by equality. Counts the queue once to start the
+     * counters. Register shapes before sending or receiving, since operations already in progress are not counted.
+     *
+     * @param fields payload fields, dotted for nested fields. Should not be null, empty or contain null
+     * @throws IllegalStateException no count collection was set
+     */
+    public void registerCountShape(final String... fields) {
+        Objects.requireNonNull(fields);
+        if (fields.length == 0) {
+            throw new IllegalArgumentException("fields was empty");
+        }
+
+        for (final String field : fields) {
+            Objects.requireNonNull(field);
+        }
+
+        checkPlain(Arrays.asList(fields));
+        getMaintainedCounts().register(Arrays.asList(fields));
+    }
+
+    /**
+     * Rebuild the maintained counters from the queue. The counters are not updated atomically with queue operations, so they can drift
+     * when operations race or fail part way. Call this periodically to bound that drift.
+     *
+     * @throws IllegalStateException no count collection was set
+     */
+    public void recount() {
+        getMaintainedCounts().recount();
+    }
+
+    /**
+     * Make running messages whose resetDuration has passed available to get() again
+     *
+     * @return number of messages reset
+     */
+    public int resetStuck() {
+        final long started = System.nanoTime();
+        final BasicDBObject stuckQuery = new BasicDBObject("running", true).append("resetTimestamp", new BasicDBObject("$lte", new Date()));
+        final BasicDBObject update = new BasicDBObject("$set", new BasicDBObject("running", false));
+
+        final MaintainedCounts counts = maintainedCounts;
+        if (counts == null || counts.isEmpty()) {
+            final int reset = collection.update(stuckQuery, update, false, true).getN();
+            listener.onResetStuck(reset, System.nanoTime() - started);
+            return reset;
+        }
+
+        //read the stuck messages first so their counters can be moved
+        final List<ObjectId> ids = new ArrayList<>();
+        final List<BasicDBObject> payloads = new ArrayList<>();
+        for (final DBObject message : collection.find(stuckQuery, counts.fields())) {
+            ids.add((ObjectId) message.get("_id"));
+            final Object payload = message.get("payload");
+            payloads.add(payload == null ? new BasicDBObject() : (BasicDBObject) payload);
+        }
+
+        final int reset = writeByIds(stuckQuery, ids, payloads, query -> collection.update(query, update, false, true).getN(), 0, -1);
+        listener.onResetStuck(reset, System.nanoTime() - started);
+        return reset;
+    }
+
     /**
      * Ensure index for get() method with no fields before or after sort fields
      */
@@ -46,9 +298,14 @@ public final class Queue {
     public void ensureGetIndex(final BasicDBObject beforeSort, final BasicDBObject afterSort) {
         Objects.requireNonNull(beforeSort);
         Objects.requireNonNull(afterSort);
+        checkPlain(beforeSort.keySet());
+        checkPlain(afterSort.keySet());
 
         //using general rule: equality, sort, range or more equality tests in that order for index
         final BasicDBObject completeIndex = new BasicDBObject("running", 1);
+        if (stripes > 1) {
+            completeIndex.append("stripe", 1);
+        }
 
         for (final Entry<String, Object> field : beforeSort.entrySet()) {
             if (!Objects.equals(field.getValue(), 1) && !Objects.equals(field.getValue(), -1)) {
@@ -70,8 +327,29 @@ public final class Queue {
 
         completeIndex.append("earliestGet", 1);
 
-        ensureIndex(completeIndex);//main query in Get()
-        ensureIndex(new BasicDBObject("running", 1).append("resetTimestamp", 1));//for the stuck messages query in Get()
+        final BasicDBObject resetIndex = new BasicDBObject("running", 1).append("resetTimestamp", 1);
+        if (!waitForEarliestGet) {
+            ensureIndexes(
+                    completeIndex,//main query in Get()
+                    resetIndex//for the stuck messages query in Get()
+            );
+            return;
+        }
+
+        //the earliest earliestGet lookup after an empty poll sorts on earliestGet, which the main index cannot give without a sort in
+        //memory over every matching message
+        final BasicDBObject delayedIndex = new BasicDBObject("running", 1);
+        for (final String field : beforeSort.keySet()) {
+            delayedIndex.append("payload." + field, 1);
+        }
+
+        for (final String field : afterSort.keySet()) {
+            delayedIndex.append("payload." + field, 1);
+        }
+
+        delayedIndex.append("earliestGet", 1);
+
+        ensureIndexes(completeIndex, resetIndex, delayedIndex);
     }
 
     /**
@@ -82,6 +360,7 @@ public final class Queue {
      */
     public void ensureCountIndex(final BasicDBObject index, final boolean includeRunning) {
         Objects.requireNonNull(index);
+        checkPlain(index.keySet());
 
         final BasicDBObject completeIndex = new BasicDBObject();
 
@@ -97,11 +376,69 @@ public final class Queue {
             completeIndex.append("payload." + field.getKey(), field.getValue());
         }
 
-        ensureIndex(completeIndex);
+        ensureIndexes(completeIndex);
+    }
+
+    /**
+     * Ensure a TTL index removing soft acked messages some time after their ack. The server removes them on its own schedule, about
+     * every minute. Payloads stored externally by a codec are not released this way, so use purgeAcked() or an AckPurger with such
+     * a codec.
+     *
+     * @param expireAfterSeconds duration in seconds after an ack before the message is removed. Should not be negative
+     */
+    public void ensureAckTtlIndex(final int expireAfterSeconds) {
+        if (expireAfterSeconds < 0) {
+            throw new IllegalArgumentException("expireAfterSeconds was negative");
+        }
+
+        //a field of its own, a TTL index on running would clash with a count index on running with different options
+        final BasicDBObject index = new BasicDBObject("ackedAt", 1);
+        collection.createIndex(
+                index,
+                new BasicDBObject("name", indexName(collection.getFullName(), index))
+                        .append("expireAfterSeconds", expireAfterSeconds)
+                        .append("background", true)
+        );
+    }
+
+    /**
+     * Remove up to batchSize soft acked messages and release their payloads stored externally by the codec
+     *
+     * @param batchSize max number of messages to remove. Should be positive
+     * @return number of messages removed
+     */
+    public int purgeAcked(final int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+
+        final BasicDBObject ackedQuery = new BasicDBObject("running", new BasicDBObject("$lte", new Date()));
+        final PayloadCodec payloadCodec = this.payloadCodec;
+        final boolean release = payloadCodec != null && payloadCodec.storesExternally();
+
+        final List<ObjectId> ids = new ArrayList<>(batchSize);
+        final List<BasicDBObject> stored = new ArrayList<>();
+        for (final DBObject message : collection.find(ackedQuery, release ? PAYLOAD_FIELD : new BasicDBObject("_id", 1)).limit(batchSize)) {
+            ids.add((ObjectId) message.get("_id"));
+            if (release) {
+                stored.add((BasicDBObject) message.get("payload"));
+            }
+        }
+
+        if (ids.isEmpty()) {
+            return 0;
+        }
+
+        final int removed = collection.remove(new BasicDBObject(ackedQuery).append("_id", new BasicDBObject("$in", ids))).getN();
+        for (final BasicDBObject payload : stored) {
+            payloadCodec.release(payload);
+        }
+
+        return removed;
     }
 
     /**
-     * Get a non running message from queue with a wait of 3 seconds and poll of 200 milliseconds
+     * Get a non running message from queue with a wait of 3 seconds and the poll strategy of this queue
      *
      * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
      * invalid {$and: [{...}, {...}]}. Should not be null.
@@ -109,11 +446,11 @@ public final class Queue {
      * @return message or null
      */
     public BasicDBObject get(final BasicDBObject query, final int resetDuration) {
-        return get(query, resetDuration, 3000, 200);
+        return get(query, resetDuration, 3000, pollStrategy);
     }
 
     /**
-     * Get a non running message from queue with a poll of 200 milliseconds
+     * Get a non running message from queue with the poll strategy of this queue
      *
      * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
      * invalid {$and: [{...}, {...}]}. Should not be null.
@@ -122,7 +459,7 @@ public final class Queue {
      * @return message or null
      */
     public BasicDBObject get(final BasicDBObject query, final int resetDuration, final int waitDuration) {
-        return get(query, resetDuration, waitDuration, 200);
+        return get(query, resetDuration, waitDuration, pollStrategy);
     }
 
     /**
@@ -135,53 +472,276 @@ public final class Queue {
      * @param pollDuration duration in milliseconds between poll attempts
      * @return message or null
      */
-    public BasicDBObject get(final BasicDBObject query, final int resetDuration, final int waitDuration, long pollDuration) {
+    public BasicDBObject get(final BasicDBObject query, final int resetDuration, final int waitDuration, final long pollDuration) {
+        return get(query, resetDuration, waitDuration, new FixedPollStrategy(pollDuration));
+    }
+
+    /**
+     * Get a non running message from queue
+     *
+     * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
+     * invalid {$and: [{...}, {...}]}. Should not be null.
+     * @param resetDuration duration in seconds before this message is considered abandoned and will be given with another call to get()
+     * @param waitDuration duration in milliseconds to keep polling before returning null
+     * @param pollStrategy strategy deciding the wait between poll attempts. Should not be null
+     * @return message or null
+     */
+    public BasicDBObject get(final BasicDBObject query, final int resetDuration, final int waitDuration, final PollStrategy pollStrategy) {
+        return get(query, resetDuration, waitDuration, pollStrategy, true);
+    }
+
+    /**
+     * Same as the public get() but with the choice of skipping the stuck message reset, for callers that run many short get() calls
+     * as one logical wait
+     */
+    BasicDBObject get(
+            final BasicDBObject query,
+            final int resetDuration,
+            final int waitDuration,
+            final PollStrategy pollStrategy,
+            final boolean resetStuck
+    ) {
         Objects.requireNonNull(query);
+        Objects.requireNonNull(pollStrategy);
 
-        //reset stuck messages
-        collection.update(new BasicDBObject("running", true).append("resetTimestamp", new BasicDBObject("$lte", new Date())),
-                new BasicDBObject("$set", new BasicDBObject("running", false)),
-                false,
-                true);
+        return get(new PreparedGet(this, query, resetDuration), waitDuration, pollStrategy, resetStuck);
+    }
 
-        final BasicDBObject builtQuery = new BasicDBObject("running", false);
-        for (final Entry<String, Object> field : query.entrySet()) {
-            builtQuery.append("payload." + field.getKey(), field.getValue());
+    /**
+     * Prepare a get() to call repeatedly, so its query and update are built only once. Use one per thread
+     *
+     * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
+     * invalid {$and: [{...}, {...}]}. Changes to it after this call are not seen. Should not be null.
+     * @param resetDuration duration in seconds before a message is considered abandoned and will be given with another call to get()
+     * @return prepared get for this queue
+     */
+    public PreparedGet prepareGet(final BasicDBObject query, final int resetDuration) {
+        Objects.requireNonNull(query);
+
+        return new PreparedGet(this, query, resetDuration);
+    }
+
+    BasicDBObject get(final PreparedGet prepared, final int waitDuration, final PollStrategy pollStrategy, final boolean resetStuck) {
+        final QueueListener listener = this.listener;
+        final long started = System.nanoTime();
+        if (resetStuck && resetStuckOnGet) {
+            resetStuck();
+        }
+
+        prepared.start();
+        final long end = System.currentTimeMillis() + waitDuration;
+
+        final SignalChannel signals = this.signals;
+        long signalVersion = signals == null ? 0 : signals.version();
+        int emptyPolls = 0;
+        long waited = 0;
+
+        final int stripes = this.stripes;
+        final int startStripe = startStripe(stripes);
+
+        while (true) {
+            final BasicDBObject builtQuery = prepared.query();
+
+            DBObject message = null;
+            for (int i = 0; i < stripes && message == null; ++i) {
+                prepared.stripe(stripes == 1 ? PreparedGet.NO_STRIPE : (startStripe + i) % stripes);
+
+                final long polled = System.nanoTime();
+                message = collection.findAndModify(builtQuery, PAYLOAD_FIELD, GET_SORT, false, prepared.update(), true, false);
+                listener.onPoll(message == null ? 0 : 1, System.nanoTime() - polled);
+            }
+
+            if (message != null) {
+                pollStrategy.onHit();
+                final BasicDBObject payload = decode((BasicDBObject) message.get("payload"));
+                applyCounts(Collections.singletonList(payload), 0, 1);
+                listener.onGet(1, emptyPolls + 1, waited, System.nanoTime() - started);
+                return payload.append("id", message.get("_id")).append(CLAIM_FIELD, prepared.claimId());
+            }
+
+            if (System.currentTimeMillis() >= end) {
+                listener.onGet(0, emptyPolls + 1, waited, System.nanoTime() - started);
+                return null;
+            }
+
+            final long waitStarted = System.nanoTime();
+            signalVersion = waitToPoll(nextPollDelay(builtQuery, pollStrategy, ++emptyPolls), end, signals, signalVersion);
+            waited += System.nanoTime() - waitStarted;
         }
+    }
+
+    PollStrategy getPollStrategy() {
+        return pollStrategy;
+    }
+
+    /**
+     * Get up to maxMessages non running messages from queue with a wait of 3 seconds and the poll strategy of this queue
+     *
+     * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
+     * invalid {$and: [{...}, {...}]}. Should not be null.
+     * @param resetDuration duration in seconds before these messages are considered abandoned and will be given with another call to get()
+     * @param maxMessages max number of messages to return. Should be positive
+     * @return messages in priority then created order, empty if none
+     */
+    public List<BasicDBObject> getBatch(final BasicDBObject query, final int resetDuration, final int maxMessages) {
+        return getBatch(query, resetDuration, maxMessages, 3000, pollStrategy);
+    }
+
+    /**
+     * Get up to maxMessages non running messages from queue
+     *
+     * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
+     * invalid {$and: [{...}, {...}]}. Should not be null.
+     * @param resetDuration duration in seconds before these messages are considered abandoned and will be given with another call to get()
+     * @param maxMessages max number of messages to return. Should be positive
+     * @param waitDuration duration in milliseconds to keep polling before returning empty
+     * @param pollDuration duration in milliseconds between poll attempts
+     * @return messages in priority then created order, empty if none
+     */
+    public List<BasicDBObject> getBatch(
+            final BasicDBObject query,
+            final int resetDuration,
+            final int maxMessages,
+            final int waitDuration,
+            final long pollDuration
+    ) {
+        return getBatch(query, resetDuration, maxMessages, waitDuration, new FixedPollStrategy(pollDuration));
+    }
+
+    /**
+     * Get up to maxMessages non running messages from queue.
+     *
+     * Each attempt is three round trips: find candidate ids, claim them with one multi update guarded on running false, and read back
+     * the claimed ones. Candidates claimed by another consumer in between are skipped, so a message is never given to two callers.
+     * Returns as soon as an attempt claims at least one message.
+     *
+     * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
+     * invalid {$and: [{...}, {...}]}. Should not be null.
+     * @param resetDuration duration in seconds before these messages are considered abandoned and will be given with another call to get()
+     * @param maxMessages max number of messages to return. Should be positive
+     * @param waitDuration duration in milliseconds to keep polling before returning empty
+     * @param pollStrategy strategy deciding the wait between poll attempts. Should not be null
+     * @return messages in priority then created order, empty if none
+     */
+    public List<BasicDBObject> getBatch(
+            final BasicDBObject query,
+            final int resetDuration,
+            final int maxMessages,
+            final int waitDuration,
+            final PollStrategy pollStrategy
+    ) {
+        return getBatch(query, resetDuration, maxMessages, waitDuration, pollStrategy, true);
+    }
 
-        builtQuery.append("earliestGet", new BasicDBObject("$lte", new Date()));
+    /**
+     * Same as the public getBatch() but with the choice of skipping the stuck message reset, for callers that run many short
+     * getBatch() calls as one logical wait
+     */
+    List<BasicDBObject> getBatch(
+            final BasicDBObject query,
+            final int resetDuration,
+            final int maxMessages,
+            final int waitDuration,
+            final PollStrategy pollStrategy,
+            final boolean resetStuck
+    ) {
+        Objects.requireNonNull(query);
+        Objects.requireNonNull(pollStrategy);
+        if (maxMessages <= 0) {
+            throw new IllegalArgumentException("maxMessages must be positive");
+        }
 
-        final Calendar calendar = Calendar.getInstance();
+        final QueueListener listener = this.listener;
+        final long started = System.nanoTime();
+        if (resetStuck && resetStuckOnGet) {
+            resetStuck();
+        }
 
-        calendar.add(Calendar.SECOND, resetDuration);
-        final Date resetTimestamp = calendar.getTime();
+        checkPlain(query.keySet());
+        final BasicDBObject builtQuery = new BasicDBObject("running", false);
+        for (final Entry<String, Object> field : query.entrySet()) {
+            builtQuery.append("payload." + field.getKey(), field.getValue());
+        }
 
         final BasicDBObject sort = new BasicDBObject("priority", 1).append("created", 1);
-        final BasicDBObject update = new BasicDBObject("$set", new BasicDBObject("running", true).append("resetTimestamp", resetTimestamp));
+        final BasicDBObject idField = new BasicDBObject("_id", 1);
         final BasicDBObject fields = new BasicDBObject("payload", 1);
 
-        calendar.setTimeInMillis(System.currentTimeMillis());
-        calendar.add(Calendar.MILLISECOND, waitDuration);
-        final Date end = calendar.getTime();
+        final long end = System.currentTimeMillis() + waitDuration;
+
+        final SignalChannel signals = this.signals;
+        long signalVersion = signals == null ? 0 : signals.version();
+        int polls = 0;
+        int emptyPolls = 0;
+        long waited = 0;
+
+        final int stripes = this.stripes;
+        final int startStripe = startStripe(stripes);
 
         while (true) {
-            final BasicDBObject message = (BasicDBObject) collection.findAndModify(builtQuery, fields, sort, false, update, true, false);
-            if (message != null) {
-                final ObjectId id = message.getObjectId("_id");
-                return ((BasicDBObject) message.get("payload")).append("id", id);
+            builtQuery.put("earliestGet", new BasicDBObject("$lte", new Date()));
+            ++polls;
+            final long polled = System.nanoTime();
+
+            final List<ObjectId> candidates = new ArrayList<>(maxMessages);
+            for (int i = 0; i < stripes && candidates.size() < maxMessages; ++i) {
+                final BasicDBObject stripeQuery = stripes == 1 ? builtQuery : new BasicDBObject(builtQuery)
+                        .append("stripe", stripeCondition((startStripe + i) % stripes));
+                for (final DBObject candidate : collection.find(stripeQuery, idField).sort(sort).limit(maxMessages - candidates.size())) {
+                    candidates.add((ObjectId) candidate.get("_id"));
+                }
             }
 
-            if (new Date().compareTo(end) >= 0) {
-                return null;
+            if (candidates.isEmpty()) {
+                listener.onPoll(0, System.nanoTime() - polled);
+            } else {
+                final ObjectId claimId = ObjectId.get();
+                final Date resetTimestamp = new Date(System.currentTimeMillis() + resetDuration * 1000L);
+
+                final BasicDBObject claimQuery = new BasicDBObject(builtQuery).append("_id", new BasicDBObject("$in", candidates));
+                final BasicDBObject update = new BasicDBObject(
+                        "$set",
+                        new BasicDBObject("running", true).append("resetTimestamp", resetTimestamp).append("claimId", claimId)
+                );
+                collection.update(claimQuery, update, false, true);
+
+                final BasicDBObject claimedQuery = new BasicDBObject("_id", new BasicDBObject("$in", candidates))
+                        .append("claimId", claimId)
+                        .append("resetTimestamp", resetTimestamp);
+
+                final List<BasicDBObject> payloads = new ArrayList<>(candidates.size());
+                final List<ObjectId> ids = new ArrayList<>(candidates.size());
+                for (final DBObject message : collection.find(claimedQuery, fields).sort(sort)) {
+                    payloads.add(decode((BasicDBObject) message.get("payload")));
+                    ids.add((ObjectId) message.get("_id"));
+                }
+
+                listener.onPoll(payloads.size(), System.nanoTime() - polled);
+                if (!payloads.isEmpty()) {
+                    pollStrategy.onHit();
+                    applyCounts(payloads, 0, 1);
+                    for (int i = 0; i < payloads.size(); ++i) {
+                        payloads.get(i).append("id", ids.get(i)).append(CLAIM_FIELD, claimId);
+                    }
+
+                    listener.onGet(payloads.size(), polls, waited, System.nanoTime() - started);
+                    return payloads;
+                }
             }
 
-            try {
-                Thread.sleep(pollDuration);
-            } catch (final InterruptedException ex) {
-                throw new RuntimeException(ex);
-            } catch (final IllegalArgumentException ex) {
-                pollDuration = 0;
+            if (System.currentTimeMillis() >= end) {
+                listener.onGet(0, polls, waited, System.nanoTime() - started);
+                return new ArrayList<>();
             }
+
+            if (!candidates.isEmpty()) {
+                //lost every candidate to other consumers, there may be more so try again right away
+                continue;
+            }
+
+            final long waitStarted = System.nanoTime();
+            signalVersion = waitToPoll(nextPollDelay(builtQuery, pollStrategy, ++emptyPolls), end, signals, signalVersion);
+            waited += System.nanoTime() - waitStarted;
         }
     }
 
@@ -194,14 +754,52 @@ public final class Queue {
      */
     public long count(final BasicDBObject query) {
         Objects.requireNonNull(query);
+        final long started = System.nanoTime();
 
         final BasicDBObject completeQuery = new BasicDBObject();
+        if (softAck) {
+            completeQuery.append("running", NOT_ACKED);
+        }
 
+        checkPlain(query.keySet());
         for (final Entry<String, Object> field : query.entrySet()) {
             completeQuery.append("payload." + field.getKey(), field.getValue());
         }
 
-        return collection.count(completeQuery);
+        final long count = collection.count(completeQuery);
+        listener.onCount(CountMode.EXACT, System.nanoTime() - started);
+        return count;
+    }
+
+    /**
+     * Count in queue, running true or false
+     *
+     * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
+     * invalid {$and: [{...}, {...}]}. With CountMode.MAINTAINED the fields should be a registered count shape matched by equality.
+     * Should not be null
+     * @param mode where the count comes from. Should not be null
+     * @return count
+     * @throws IllegalArgumentException mode is MAINTAINED and query does not match a registered count shape
+     */
+    public long count(final BasicDBObject query, final CountMode mode) {
+        Objects.requireNonNull(query);
+        Objects.requireNonNull(mode);
+
+        final long started = System.nanoTime();
+        final long count;
+        switch (mode) {
+            case CACHED:
+                count = countCache.get(query.toString(), countCacheTtl, () -> count(query));
+                break;
+            case MAINTAINED:
+                count = getMaintainedCounts().count(query, null);
+                break;
+            default:
+                return count(query);
+        }
+
+        listener.onCount(mode, System.nanoTime() - started);
+        return count;
     }
 
     /**
@@ -214,54 +812,203 @@ public final class Queue {
      */
     public long count(final BasicDBObject query, final boolean running) {
         Objects.requireNonNull(query);
+        final long started = System.nanoTime();
 
         final BasicDBObject completeQuery = new BasicDBObject("running", running);
 
+        checkPlain(query.keySet());
         for (final Entry<String, Object> field : query.entrySet()) {
             completeQuery.append("payload." + field.getKey(), field.getValue());
         }
 
-        return collection.count(completeQuery);
+        final long count = collection.count(completeQuery);
+        listener.onCount(CountMode.EXACT, System.nanoTime() - started);
+        return count;
     }
 
     /**
-     * Acknowledge a message was processed and remove from queue
+     * Count in queue
      *
-     * @param message message received from get(). Should not be null.
+     * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
+     * invalid {$and: [{...}, {...}]}. With CountMode.MAINTAINED the fields should be a registered count shape matched by equality.
+     * Should not be null
+     * @param running count running messages or not running
+     * @param mode where the count comes from. Should not be null
+     * @return count
+     * @throws IllegalArgumentException mode is MAINTAINED and query does not match a registered count shape
      */
-    public void ack(final BasicDBObject message) {
-        Objects.requireNonNull(message);
-        final Object id = message.get("id");
-        if (id.getClass() != ObjectId.class) {
-            throw new IllegalArgumentException("id must be an ObjectId");
+    public long count(final BasicDBObject query, final boolean running, final CountMode mode) {
+        Objects.requireNonNull(query);
+        Objects.requireNonNull(mode);
+
+        final long started = System.nanoTime();
+        final long count;
+        switch (mode) {
+            case CACHED:
+                count = countCache.get(query.toString() + running, countCacheTtl, () -> count(query, running));
+                break;
+            case MAINTAINED:
+                count = getMaintainedCounts().count(query, running);
+                break;
+            default:
+                return count(query, running);
         }
 
-        collection.remove(new BasicDBObject("_id", id));
+        listener.onCount(mode, System.nanoTime() - started);
+        return count;
     }
 
     /**
-     * Ack message and send payload to queue, atomically, with earliestGet as Now and 0.0 priority
+     * Acknowledge a message was processed and remove from queue, or mark it done with soft ack
      *
-     * @param message message to ack received from get(). Should not be null
-     * @param payload payload to send. Should not be null
+     * @param message message received from get(). Should not be null.
      */
-    public void ackSend(final BasicDBObject message, final BasicDBObject payload) {
-        ackSend(message, payload, new Date());
+    public void ack(final BasicDBObject message) {
+        ack(message, getWriteConcern());
     }
 
     /**
-     * Ack message and send payload to queue, atomically, with 0.0 priority
+     * Acknowledge a message was processed and remove from queue, or mark it done with soft ack
      *
-     * @param message message to ack received from get(). Should not be null
-     * @param payload payload to send. Should not be null
-     * @param earliestGet earliest instant that a call to get() can return message. Should not be null
+     * @param message message received from get(). Should not be null.
+     * @param writeConcern write concern for the remove. Should not be null
      */
-    public void ackSend(final BasicDBObject message, final BasicDBObject payload, final Date earliestGet) {
-        ackSend(message, payload, earliestGet, 0.0);
-    }
-
-    /**
-     * Ack message and send payload to queue, atomically
+    public void ack(final BasicDBObject message, final WriteConcern writeConcern) {
+        Objects.requireNonNull(message);
+        Objects.requireNonNull(writeConcern);
+        final Object id = message.get("id");
+        if (id.getClass() != ObjectId.class) {
+            throw new IllegalArgumentException("id must be an ObjectId");
+        }
+
+        final long started = System.nanoTime();
+        if (softAck) {
+            //the purge releases externally stored payloads later
+            final WriteResult result = collection.update(
+                    new BasicDBObject("_id", id).append("running", NOT_ACKED),
+                    buildSoftAckUpdate(),
+                    false,
+                    false,
+                    writeConcern
+            );
+            final boolean acked = !writeConcern.callGetLastError() || result.getN() == 1;
+            if (acked) {
+                applyCounts(Collections.singletonList(message), -1, -1);
+            }
+
+            listener.onAck(acked ? 1 : 0, System.nanoTime() - started);
+            return;
+        }
+
+        final PayloadCodec payloadCodec = this.payloadCodec;
+        if (payloadCodec != null && payloadCodec.storesExternally()) {
+            //remove and read back in one round trip to learn what to release
+            final DBObject removed = collection.findAndModify(new BasicDBObject("_id", id), PAYLOAD_FIELD, null, true, null, false, false);
+            if (removed != null) {
+                applyCounts(Collections.singletonList(message), -1, -1);
+                payloadCodec.release((BasicDBObject) removed.get("payload"));
+            }
+
+            listener.onAck(removed == null ? 0 : 1, System.nanoTime() - started);
+            return;
+        }
+
+        final WriteResult result = collection.remove(new BasicDBObject("_id", id), writeConcern);
+        //an unacknowledged remove is assumed to succeed, like for the counts
+        final boolean removed = !writeConcern.callGetLastError() || result.getN() == 1;
+        if (removed) {
+            applyCounts(Collections.singletonList(message), -1, -1);
+        }
+
+        listener.onAck(removed ? 1 : 0, System.nanoTime() - started);
+    }
+
+    /**
+     * Acknowledge messages were processed and remove them from queue, in chunks of 1000 per round trip
+     *
+     * @param messages messages received from get() or getBatch(). Should not be null or contain null
+     * @return number of messages removed, or marked done with soft ack
+     */
+    public int ackAll(final Collection<BasicDBObject> messages) {
+        final long started = System.nanoTime();
+        final List<ObjectId> ids = getIds(messages);
+        final List<BasicDBObject> payloads = new ArrayList<>(messages);
+        final PayloadCodec payloadCodec = this.payloadCodec;
+        final boolean softAck = this.softAck;
+
+        final int removed;
+        if (softAck) {
+            removed = writeByIds(new BasicDBObject("running", NOT_ACKED), ids, payloads,
+                    query -> collection.update(query, buildSoftAckUpdate(), false, true).getN(), -1, -1);
+        } else {
+            removed = writeByIds(new BasicDBObject(), ids, payloads, query -> {
+                final List<BasicDBObject> stored = new ArrayList<>();
+                if (payloadCodec != null && payloadCodec.storesExternally()) {
+                    for (final DBObject message : collection.find(query, PAYLOAD_FIELD)) {
+                        stored.add((BasicDBObject) message.get("payload"));
+                    }
+                }
+
+                final int n = collection.remove(query).getN();
+                for (final BasicDBObject payload : stored) {
+                    payloadCodec.release(payload);
+                }
+
+                return n;
+            }, -1, -1);
+        }
+
+        listener.onAck(removed, System.nanoTime() - started);
+        return removed;
+    }
+
+    /**
+     * Push back the time a running message is considered abandoned, for handling that takes longer than the resetDuration given to get()
+     *
+     * @param message message received from get() or getBatch(), with its "id" and CLAIM_FIELD. Should not be null
+     * @param resetDuration duration in seconds from now before this message is considered abandoned
+     * @return true if the message was still running under this claim and got extended, false if it was acked, requeued, reset or
+     * claimed again
+     */
+    public boolean extendLease(final BasicDBObject message, final int resetDuration) {
+        Objects.requireNonNull(message);
+        final Object id = message.get("id");
+        if (id.getClass() != ObjectId.class) {
+            throw new IllegalArgumentException("id must be an ObjectId");
+        }
+
+        final long started = System.nanoTime();
+        final Date resetTimestamp = new Date(System.currentTimeMillis() + resetDuration * 1000L);
+        final BasicDBObject query = new BasicDBObject("_id", id).append("running", true).append("claimId", message.get(CLAIM_FIELD));
+        final boolean extended = collection.update(query,
+                new BasicDBObject("$set", new BasicDBObject("resetTimestamp", resetTimestamp))).getN() == 1;
+        listener.onExtendLease(extended, System.nanoTime() - started);
+        return extended;
+    }
+
+    /**
+     * Ack message and send payload to queue, atomically, with earliestGet as Now and 0.0 priority
+     *
+     * @param message message to ack received from get(). Should not be null
+     * @param payload payload to send. Should not be null
+     */
+    public void ackSend(final BasicDBObject message, final BasicDBObject payload) {
+        ackSend(message, payload, new Date());
+    }
+
+    /**
+     * Ack message and send payload to queue, atomically, with 0.0 priority
+     *
+     * @param message message to ack received from get(). Should not be null
+     * @param payload payload to send. Should not be null
+     * @param earliestGet earliest instant that a call to get() can return message. Should not be null
+     */
+    public void ackSend(final BasicDBObject message, final BasicDBObject payload, final Date earliestGet) {
+        ackSend(message, payload, earliestGet, 0.0);
+    }
+
+    /**
+     * Ack message and send payload to queue, atomically
      *
      * @param message message to ack received from get(). Should not be null
      * @param payload payload to send. Should not be null
@@ -269,9 +1016,29 @@ public final class Queue {
      * @param priority priority for order out of get(). 0 is higher priority than 1. Should not be NaN
      */
     public void ackSend(final BasicDBObject message, final BasicDBObject payload, final Date earliestGet, final double priority) {
+        ackSend(message, payload, earliestGet, priority, getWriteConcern());
+    }
+
+    /**
+     * Ack message and send payload to queue, atomically
+     *
+     * @param message message to ack received from get(). Should not be null
+     * @param payload payload to send. Should not be null
+     * @param earliestGet earliest instant that a call to get() can return message. Should not be null
+     * @param priority priority for order out of get(). 0 is higher priority than 1. Should not be NaN
+     * @param writeConcern write concern for the update. Should not be null
+     */
+    public void ackSend(
+            final BasicDBObject message,
+            final BasicDBObject payload,
+            final Date earliestGet,
+            final double priority,
+            final WriteConcern writeConcern
+    ) {
         Objects.requireNonNull(message);
         Objects.requireNonNull(payload);
         Objects.requireNonNull(earliestGet);
+        Objects.requireNonNull(writeConcern);
         if (Double.isNaN(priority)) {
             throw new IllegalArgumentException("priority was NaN");
         }
@@ -281,19 +1048,40 @@ public final class Queue {
             throw new IllegalArgumentException("id must be an ObjectId");
         }
 
-        final BasicDBObject newMessage = new BasicDBObject("payload", payload)
-                .append("running", false)
-                .append("resetTimestamp", new Date(Long.MAX_VALUE))
-                .append("earliestGet", earliestGet)
-                .append("priority", priority)
-                .append("created", new Date());
+        final long started = System.nanoTime();
+        final BasicDBObject newMessage = buildMessage(payload, earliestGet, priority);
 
         //using upsert because if no documents found then the doc was removed (SHOULD ONLY HAPPEN BY SOMEONE MANUALLY) so we can just send
-        collection.update(new BasicDBObject("_id", id), newMessage, true, false);
+        final PayloadCodec payloadCodec = this.payloadCodec;
+        if (payloadCodec != null && payloadCodec.storesExternally()) {
+            //replace and read back the old message in one round trip to learn what to release
+            final DBObject replaced = collection.findAndModify(
+                    new BasicDBObject("_id", id),
+                    PAYLOAD_FIELD,
+                    null,
+                    false,
+                    newMessage,
+                    false,
+                    true
+            );
+            if (replaced != null) {
+                applyCounts(Collections.singletonList(message), -1, -1);
+                payloadCodec.release((BasicDBObject) replaced.get("payload"));
+            }
+        } else {
+            final WriteResult result = collection.update(new BasicDBObject("_id", id), newMessage, true, false, writeConcern);
+            if (!writeConcern.callGetLastError() || result.isUpdateOfExisting()) {
+                applyCounts(Collections.singletonList(message), -1, -1);
+            }
+        }
+
+        applyCounts(Collections.singletonList(payload), 1, 0);
+        signal();
+        listener.onAckSend(System.nanoTime() - started);
     }
 
     /**
-     * Requeue message with earliestGet as Now and 0.0 priority. Same as ackSend() with the same message.
+     * Requeue message with earliestGet as Now and 0.0 priority
      *
      * @param message message to requeue received from get(). Should not be null
      */
@@ -302,7 +1090,7 @@ public final class Queue {
     }
 
     /**
-     * Requeue message with 0.0 priority. Same as ackSend() with the same message.
+     * Requeue message with 0.0 priority
      *
      * @param message message to requeue received from get(). Should not be null
      * @param earliestGet earliest instant that a call to get() can return message. Should not be null
@@ -312,15 +1100,31 @@ public final class Queue {
     }
 
     /**
-     * Requeue message. Same as ackSend() with the same message.
+     * Requeue message. Updates the queue fields in place so the payload is not sent again, which means changes made to the message
+     * after get() are not saved. Use ackSend() to requeue a changed payload.
      *
      * @param message message to requeue received from get(). Should not be null
      * @param earliestGet earliest instant that a call to get() can return message. Should not be null
      * @param priority priority for order out of get(). 0 is higher priority than 1. Should not be NaN
      */
     public void requeue(final BasicDBObject message, final Date earliestGet, final double priority) {
+        requeue(message, earliestGet, priority, getWriteConcern());
+    }
+
+    /**
+     * Requeue message. Updates the queue fields in place so the payload is not sent again, which means changes made to the message
+     * after get() are not saved. Use ackSend() to requeue a changed payload.
+     *
+     * @param message message to requeue received from get(). Should not be null
+     * @param earliestGet earliest instant that a call to get() can return message. Should not be null
+     * @param priority priority for order out of get(). 0 is higher priority than 1. Should not be NaN
+     * @param writeConcern write concern for the update. When unacknowledged a message that was removed is not sent again. Should not
+     * be null
+     */
+    public void requeue(final BasicDBObject message, final Date earliestGet, final double priority, final WriteConcern writeConcern) {
         Objects.requireNonNull(message);
         Objects.requireNonNull(earliestGet);
+        Objects.requireNonNull(writeConcern);
         if (Double.isNaN(priority)) {
             throw new IllegalArgumentException("priority was NaN");
         }
@@ -330,9 +1134,92 @@ public final class Queue {
             throw new IllegalArgumentException("id must be an ObjectId");
         }
 
-        final BasicDBObject forRequeue = new BasicDBObject(message);
-        forRequeue.removeField("id");
-        ackSend(message, forRequeue, earliestGet, priority);
+        final long started = System.nanoTime();
+        final BasicDBObject update = buildRequeueUpdate(earliestGet, priority);
+        final WriteResult result = collection.update(new BasicDBObject("_id", id), update, false, false, writeConcern);
+        if (writeConcern.callGetLastError() && result.getN() == 0) {
+            //no documents found so the doc was removed (SHOULD ONLY HAPPEN BY SOMEONE MANUALLY) so we send it again like ackSend()
+            final BasicDBObject forRequeue = new BasicDBObject(message);
+            forRequeue.removeField("id");
+            forRequeue.removeField(CLAIM_FIELD);
+            ackSend(message, forRequeue, earliestGet, priority, writeConcern);
+            listener.onRequeue(1, System.nanoTime() - started);
+            return;
+        }
+
+        applyCounts(Collections.singletonList(message), 0, -1);
+        signal();
+        listener.onRequeue(1, System.nanoTime() - started);
+    }
+
+    /**
+     * Give back a message that was claimed but never handed to anyone, keeping its priority, created and earliestGet so it returns to
+     * its place in the queue. Does nothing if the claim was lost, such as to a reset and another get().
+     *
+     * @param message message received from get() or getBatch(). Should not be null
+     * @return true if the message was given back
+     */
+    boolean giveBack(final BasicDBObject message) {
+        Objects.requireNonNull(message);
+
+        final long started = System.nanoTime();
+        final BasicDBObject query = new BasicDBObject("_id", message.get("id")).append("running", true)
+                .append("claimId", message.get(CLAIM_FIELD));
+        final BasicDBObject update = new BasicDBObject(
+                "$set",
+                new BasicDBObject("running", false).append("resetTimestamp", new Date(Long.MAX_VALUE))
+        ).append("$unset", new BasicDBObject("claimId", ""));
+        final boolean givenBack = collection.update(query, update).getN() == 1;
+        if (givenBack) {
+            applyCounts(Collections.singletonList(message), 0, -1);
+            signal();
+        }
+
+        listener.onRequeue(givenBack ? 1 : 0, System.nanoTime() - started);
+        return givenBack;
+    }
+
+    /**
+     * Requeue messages with earliestGet as Now and 0.0 priority
+     *
+     * @param messages messages to requeue received from get() or getBatch(). Should not be null or contain null
+     * @return number of messages requeued
+     */
+    public int requeueAll(final Collection<BasicDBObject> messages) {
+        return requeueAll(messages, new Date(), 0.0);
+    }
+
+    /**
+     * Requeue messages in place, in chunks of 1000 per round trip. Unlike requeue(), messages that were removed from the queue are not
+     * sent again.
+     *
+     * @param messages messages to requeue received from get() or getBatch(). Should not be null or contain null
+     * @param earliestGet earliest instant that a call to get() can return the messages. Should not be null
+     * @param priority priority for order out of get(). 0 is higher priority than 1. Should not be NaN
+     * @return number of messages requeued
+     */
+    public int requeueAll(final Collection<BasicDBObject> messages, final Date earliestGet, final double priority) {
+        Objects.requireNonNull(earliestGet);
+        if (Double.isNaN(priority)) {
+            throw new IllegalArgumentException("priority was NaN");
+        }
+
+        final long started = System.nanoTime();
+        final List<ObjectId> ids = getIds(messages);
+        final List<BasicDBObject> payloads = new ArrayList<>(messages);
+
+        final BasicDBObject update = buildRequeueUpdate(earliestGet, priority);
+
+        //soft acked messages stay done, like removed ones
+        final int requeued = writeByIds(new BasicDBObject("running", NOT_ACKED), ids, payloads,
+                query -> collection.update(query, update, false, true).getN(), 0, -1);
+
+        if (requeued > 0) {
+            signal();
+        }
+
+        listener.onRequeue(requeued, System.nanoTime() - started);
+        return requeued;
     }
 
     /**
@@ -362,44 +1249,530 @@ public final class Queue {
      * @param priority priority for order out of Get(). 0 is higher priority than 1. Should not be NaN
      */
     public void send(final BasicDBObject payload, final Date earliestGet, final double priority) {
+        send(payload, earliestGet, priority, getWriteConcern());
+    }
+
+    /**
+     * Send message to queue
+     *
+     * @param payload payload. Should not be null
+     * @param earliestGet earliest instant that a call to Get() can return message. Should not be null
+     * @param priority priority for order out of Get(). 0 is higher priority than 1. Should not be NaN
+     * @param writeConcern write concern for the insert. Should not be null
+     */
+    public void send(final BasicDBObject payload, final Date earliestGet, final double priority, final WriteConcern writeConcern) {
         Objects.requireNonNull(payload);
         Objects.requireNonNull(earliestGet);
+        Objects.requireNonNull(writeConcern);
         if (Double.isNaN(priority)) {
             throw new IllegalArgumentException("priority was NaN");
         }
 
-        final BasicDBObject message = new BasicDBObject("payload", payload)
+        final long started = System.nanoTime();
+        final BasicDBObject message = buildMessage(payload, earliestGet, priority);
+        try {
+            collection.insert(message, writeConcern);
+        } catch (final DuplicateKeyException e) {
+            release(Collections.singletonList(message));
+            throw e;
+        } catch (final MongoException e) {
+            //the insert may have happened, such as when only the write concern failed
+            releaseIfNotInserted(Collections.singletonList(message));
+            throw e;
+        }
+
+        applyCounts(Collections.singletonList(payload), 1, 0);
+        signal();
+        listener.onSend(1, System.nanoTime() - started);
+    }
+
+    /**
+     * Send messages to queue in ordered batches of 1000 with the same earliestGet and priority
+     *
+     * @param payloads payloads. Should not be null or contain null
+     * @param earliestGet earliest instant that a call to Get() can return the messages. Should not be null
+     * @param priority priority for order out of Get(). 0 is higher priority than 1. Should not be NaN
+     * @return payloads that were not inserted, in the order given. Empty when all were inserted
+     */
+    public List<BasicDBObject> sendAll(final List<BasicDBObject> payloads, final Date earliestGet, final double priority) {
+        Objects.requireNonNull(payloads);
+
+        final List<OutgoingMessage> messages = new ArrayList<>(payloads.size());
+        for (final BasicDBObject payload : payloads) {
+            messages.add(new OutgoingMessage(payload, earliestGet, priority));
+        }
+
+        return sendAll(messages, DEFAULT_BATCH_SIZE, true);
+    }
+
+    /**
+     * Send messages to queue using multi-document inserts
+     *
+     * @param messages messages. Should not be null or contain null
+     * @param batchSize max number of messages per insert round trip. Should be positive
+     * @param ordered true to stop at the first failed message, false to continue with the rest
+     * @return payloads that were not inserted, in the order given. Empty when all were inserted, or when the write concern of this queue
+     * is unacknowledged
+     */
+    public List<BasicDBObject> sendAll(final List<OutgoingMessage> messages, final int batchSize, final boolean ordered) {
+        Objects.requireNonNull(messages);
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+
+        for (final OutgoingMessage message : messages) {
+            Objects.requireNonNull(message);
+        }
+
+        final long started = System.nanoTime();
+        final List<BasicDBObject> failed = new ArrayList<>();
+        final List<BasicDBObject> inserted = new ArrayList<>(messages.size());
+
+        for (int start = 0; start < messages.size(); start += batchSize) {
+            final List<OutgoingMessage> batch = messages.subList(start, Math.min(start + batchSize, messages.size()));
+
+            final BulkWriteOperation operation = ordered ? collection.initializeOrderedBulkOperation() : collection.initializeUnorderedBulkOperation();
+            final List<BasicDBObject> built = new ArrayList<>(batch.size());
+            for (final OutgoingMessage message : batch) {
+                final BasicDBObject builtMessage = buildMessage(message.getPayload(), message.getEarliestGet(), message.getPriority());
+                built.add(builtMessage);
+                operation.insert(builtMessage);
+            }
+
+            try {
+                operation.execute(getWriteConcern());
+                for (final OutgoingMessage message : batch) {
+                    inserted.add(message.getPayload());
+                }
+            } catch (final BulkWriteException e) {
+                if (e.getWriteConcernError() != null) {
+                    //cannot tell which messages were written so let the caller decide
+                    releaseIfNotInserted(built);
+                    throw e;
+                }
+
+                if (ordered) {
+                    //ordered inserts stop at the first error, so it and everything after it was not inserted
+                    final int firstFailed = start + e.getWriteErrors().get(0).getIndex();
+                    for (final OutgoingMessage message : messages.subList(firstFailed, messages.size())) {
+                        failed.add(message.getPayload());
+                    }
+
+                    for (final OutgoingMessage message : messages.subList(start, firstFailed)) {
+                        inserted.add(message.getPayload());
+                    }
+
+                    release(built.subList(firstFailed - start, built.size()));
+                    applyCounts(inserted, 1, 0);
+
+                    if (firstFailed > 0) {
+                        signal();
+                    }
+
+                    listener.onSend(inserted.size(), System.nanoTime() - started);
+                    return failed;
+                }
+
+                final boolean[] batchFailed = new boolean[batch.size()];
+                final List<BasicDBObject> builtFailed = new ArrayList<>();
+                for (final BulkWriteError error : e.getWriteErrors()) {
+                    failed.add(batch.get(error.getIndex()).getPayload());
+                    builtFailed.add(built.get(error.getIndex()));
+                    batchFailed[error.getIndex()] = true;
+                }
+
+                release(builtFailed);
+
+                for (int i = 0; i < batch.size(); ++i) {
+                    if (!batchFailed[i]) {
+                        inserted.add(batch.get(i).getPayload());
+                    }
+                }
+            } catch (final MongoException e) {
+                releaseIfNotInserted(built);
+                throw e;
+            }
+        }
+
+        applyCounts(inserted, 1, 0);
+
+        if (failed.size() < messages.size()) {
+            signal();
+        }
+
+        listener.onSend(inserted.size(), System.nanoTime() - started);
+        return failed;
+    }
+
+    private static List<ObjectId> getIds(final Collection<BasicDBObject> messages) {
+        Objects.requireNonNull(messages);
+
+        final List<ObjectId> ids = new ArrayList<>(messages.size());
+        for (final BasicDBObject message : messages) {
+            Objects.requireNonNull(message);
+            final Object id = message.get("id");
+            if (id.getClass() != ObjectId.class) {
+                throw new IllegalArgumentException("id must be an ObjectId");
+            }
+
+            ids.add((ObjectId) id);
+        }
+
+        return ids;
+    }
+
+    private long nextPollDelay(final BasicDBObject builtQuery, final PollStrategy pollStrategy, final int emptyPolls) {
+        if (waitForEarliestGet) {
+            final BasicDBObject delayedQuery = new BasicDBObject(builtQuery);
+            delayedQuery.removeField("earliestGet");
+            delayedQuery.removeField("stripe");
+
+            final DBCursor cursor = collection.find(delayedQuery, new BasicDBObject("earliestGet", 1))
+                    .sort(new BasicDBObject("earliestGet", 1))
+                    .limit(1);
+            try {
+                if (cursor.hasNext()) {
+                    return ((Date) cursor.next().get("earliestGet")).getTime() - System.currentTimeMillis();
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        return pollStrategy.delay(emptyPolls);
+    }
+
+    /**
+     * Wait the delay, cut short at end or by a signal when there is a channel
+     *
+     * @return signal version to give to the next wait
+     */
+    private static long waitToPoll(final long delay, final long end, final SignalChannel signals, final long signalVersion) {
+        final long duration = Math.max(Math.min(delay, end - System.currentTimeMillis()), 0);
+
+        if (signals != null) {
+            return signals.await(signalVersion, duration);
+        }
+
+        try {
+            Thread.sleep(duration);
+        } catch (final InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
+
+        return signalVersion;
+    }
+
+    /**
+     * Stripe a consumer starts claiming from. Thread ids are sequential so consumer threads start on different stripes
+     */
+    private static int startStripe(final int stripes) {
+        return (int) (Thread.currentThread().getId() % stripes);
+    }
+
+    /**
+     * @return query value matching messages of the stripe
+     */
+    static Object stripeCondition(final int stripe) {
+        return stripe == 0 ? STRIPE_ZERO : stripe;
+    }
+
+    private static BasicDBObject buildRequeueUpdate(final Date earliestGet, final double priority) {
+        return new BasicDBObject("$set", new BasicDBObject("running", false)
+                .append("resetTimestamp", new Date(Long.MAX_VALUE))
+                .append("earliestGet", earliestGet)
+                .append("priority", priority)
+                .append("created", new Date()))
+                .append("$unset", new BasicDBObject("claimId", ""));
+    }
+
+    private WriteConcern getWriteConcern() {
+        final WriteConcern writeConcern = this.writeConcern;
+        return writeConcern == null ? collection.getWriteConcern() : writeConcern;
+    }
+
+    private MaintainedCounts getMaintainedCounts() {
+        final MaintainedCounts counts = maintainedCounts;
+        if (counts == null) {
+            throw new IllegalStateException("no count collection was set");
+        }
+
+        return counts;
+    }
+
+    /**
+     * Run a write on messages by id, in chunks of 1000 per round trip, and move the counters of the messages it changed. With counters
+     * maintained each message is written on its own, since a multi write tells how many messages it changed but not which, and some
+     * may already be gone, such as when an ackAll() is retried.
+     *
+     * @param query query the ids are added to
+     * @param write runs the write for a query, returning the number of messages changed
+     * @return number of messages changed
+     */
+    private int writeByIds(
+            final BasicDBObject query,
+            final List<ObjectId> ids,
+            final List<BasicDBObject> payloads,
+            final ToIntFunction<BasicDBObject> write,
+            final int totalDelta,
+            final int runningDelta
+    ) {
+        final MaintainedCounts counts = maintainedCounts;
+        final boolean counted = counts != null && !counts.isEmpty();
+
+        int written = 0;
+        for (int start = 0; start < ids.size(); start += DEFAULT_BATCH_SIZE) {
+            final int end = Math.min(start + DEFAULT_BATCH_SIZE, ids.size());
+            if (!counted) {
+                written += write.applyAsInt(new BasicDBObject(query).append("_id", new BasicDBObject("$in", ids.subList(start, end))));
+                continue;
+            }
+
+            final List<BasicDBObject> changed = new ArrayList<>(end - start);
+            for (int i = start; i < end; ++i) {
+                if (write.applyAsInt(new BasicDBObject(query).append("_id", ids.get(i))) == 1) {
+                    changed.add(payloads.get(i));
+                }
+            }
+
+            applyCounts(changed, totalDelta, runningDelta);
+            written += changed.size();
+        }
+
+        return written;
+    }
+
+    /**
+     * Move the maintained counters after a queue write. Failures are left for recount() to correct rather than make a write that
+     * succeeded look failed.
+     */
+    private void applyCounts(final Collection<BasicDBObject> payloads, final int totalDelta, final int runningDelta) {
+        final MaintainedCounts counts = maintainedCounts;
+        if (counts == null) {
+            return;
+        }
+
+        try {
+            counts.apply(payloads, totalDelta, runningDelta);
+        } catch (final MongoException e) {
+            //the counters drift until the next recount()
+        }
+    }
+
+    /**
+     * Wake consumers waiting on the signal channel. Best effort, called after the message write succeeded so a failure must not make
+     * the write look failed and be retried into a duplicate. Consumers that miss it still find the message on their next poll.
+     */
+    private void signal() {
+        final SignalChannel signals = this.signals;
+        if (signals == null) {
+            return;
+        }
+
+        try {
+            signals.signal();
+        } catch (final MongoException e) {
+            //a missed signal only delays consumers until their next poll
+        }
+    }
+
+    /**
+     * @param fields payload fields of a query or index, dotted for nested fields
+     * @throws IllegalArgumentException a field is not kept plain by the codec, so nothing would match it
+     */
+    void checkPlain(final Collection<String> fields) {
+        final PayloadCodec payloadCodec = this.payloadCodec;
+        if (payloadCodec == null) {
+            return;
+        }
+
+        for (final String field : fields) {
+            if (!payloadCodec.isPlain(field)) {
+                throw new IllegalArgumentException("field " + field + " is not plain in the payload codec");
+            }
+        }
+    }
+
+    /**
+     * Release what the codec stored outside the queue for messages that were not inserted
+     */
+    private void release(final List<BasicDBObject> builtMessages) {
+        final PayloadCodec payloadCodec = this.payloadCodec;
+        if (payloadCodec == null || !payloadCodec.storesExternally()) {
+            return;
+        }
+
+        for (final BasicDBObject message : builtMessages) {
+            payloadCodec.release((BasicDBObject) message.get("payload"));
+        }
+    }
+
+    /**
+     * Release what the codec stored outside the queue for messages whose insert failed in a way that does not tell whether they were
+     * inserted, skipping those the collection has. When that cannot be checked either the payloads are left, orphaned rather than lost.
+     */
+    private void releaseIfNotInserted(final List<BasicDBObject> builtMessages) {
+        final PayloadCodec payloadCodec = this.payloadCodec;
+        if (payloadCodec == null || !payloadCodec.storesExternally()) {
+            return;
+        }
+
+        //the driver assigns _id before sending, a message without one was never sent
+        final List<Object> ids = new ArrayList<>(builtMessages.size());
+        for (final BasicDBObject message : builtMessages) {
+            if (message.get("_id") != null) {
+                ids.add(message.get("_id"));
+            }
+        }
+
+        final Set<Object> insertedIds = new HashSet<>();
+        try {
+            final BasicDBObject query = new BasicDBObject("_id", new BasicDBObject("$in", ids));
+            for (final DBObject message : collection.find(query, new BasicDBObject("_id", 1))) {
+                insertedIds.add(message.get("_id"));
+            }
+        } catch (final MongoException e) {
+            return;
+        }
+
+        final List<BasicDBObject> notInserted = new ArrayList<>();
+        for (final BasicDBObject message : builtMessages) {
+            if (!insertedIds.contains(message.get("_id"))) {
+                notInserted.add(message);
+            }
+        }
+
+        release(notInserted);
+    }
+
+    private BasicDBObject decode(final BasicDBObject stored) {
+        final PayloadCodec payloadCodec = this.payloadCodec;
+        return payloadCodec == null ? stored : payloadCodec.decode(stored);
+    }
+
+    private static BasicDBObject buildSoftAckUpdate() {
+        final Date now = new Date();
+        return new BasicDBObject("$set", new BasicDBObject("running", now).append("ackedAt", now));
+    }
+
+    private BasicDBObject buildMessage(final BasicDBObject payload, final Date earliestGet, final double priority) {
+        final PayloadCodec payloadCodec = this.payloadCodec;
+        final BasicDBObject message = new BasicDBObject("payload", payloadCodec == null ? payload : payloadCodec.encode(payload))
                 .append("running", false)
                 .append("resetTimestamp", new Date(Long.MAX_VALUE))
                 .append("earliestGet", earliestGet)
                 .append("priority", priority)
                 .append("created", new Date());
 
-        collection.insert(message);
+        final int stripes = this.stripes;
+        if (stripes > 1) {
+            message.append("stripe", ThreadLocalRandom.current().nextInt(stripes));
+        }
+
+        return message;
     }
 
-    private void ensureIndex(final BasicDBObject index) {
-        for (int i = 0; i < 5; ++i) {
-            for (String name = UUID.randomUUID().toString(); name.length() > 0; name = name.substring(0, name.length() - 1)) {
-                //creating an index with the same name and different spec does nothing.
-                //creating an index with different name and same spec does nothing.
-                //so we use any generated name, and then find the right spec after we have called, and just go with that name.
+    /**
+     * Create the indexes that do not exist yet in one round trip. Existing indexes are read once per instance, so indexes created or
+     * dropped by others after that are not seen.
+     */
+    private synchronized void ensureIndexes(final BasicDBObject... indexes) {
+        if (existingIndexes == null) {
+            existingIndexes = new ArrayList<>();
+            for (final DBObject existingIndex : collection.getIndexInfo()) {
+                existingIndexes.add(existingIndex.get("key"));
+            }
+        }
 
-                try {
-                    collection.ensureIndex(index, new BasicDBObject("name", name).append("background", true));
-                } catch (final CommandFailureException e) {
-                    //happens when name is too long
-                }
+        final List<DBObject> missing = new ArrayList<>();
+        for (final BasicDBObject index : indexes) {
+            //an index with the same spec and any name will do
+            if (!existingIndexes.contains(index)) {
+                final String name = indexName(collection.getFullName(), index);
+                missing.add(new BasicDBObject("key", index).append("name", name).append("background", true));
+            }
+        }
 
-                for (final DBObject existingIndex : collection.getIndexInfo()) {
+        if (missing.isEmpty()) {
+            return;
+        }
 
-                    if (existingIndex.get("key").equals(index)) {
-                        return;
-                    }
-                }
+        final CommandResult result = collection.getDB().command(
+                new BasicDBObject("createIndexes", collection.getName()).append("indexes", missing)
+        );
+        if (!result.ok()) {
+            final String error = result.getErrorMessage();
+            if (!Objects.equals(result.get("code"), 59) && (error == null || !error.startsWith("no such"))) {
+                throw new RuntimeException("couldnt create indexes: " + error);
+            }
+
+            //servers before 2.6 have no createIndexes command, so one round trip per index
+            for (final DBObject index : missing) {
+                final DBObject options = new BasicDBObject(index.toMap());
+                options.removeField("key");
+                collection.createIndex((DBObject) index.get("key"), options);
+            }
+        }
+
+        for (final DBObject index : missing) {
+            existingIndexes.add(index.get("key"));
+        }
+    }
+
+    /**
+     * Name derived from the index spec that fits in the index namespace limit. Names too long are cut and end with a hash of the full
+     * name so different specs still get different names.
+     */
+    static String indexName(final String collectionFullName, final DBObject index) {
+        //"<db>.<collection>.$<name>" must not be over 127 bytes
+        final int maxLength = MAX_INDEX_NAMESPACE_LENGTH - utf8Length(collectionFullName + ".$");
+        if (maxLength < INDEX_NAME_HASH_LENGTH + 1) {
+            throw new RuntimeException("collection name " + collectionFullName + " is too long for index names");
+        }
+
+        //same form the server and drivers use, such as running_1_payload.type_-1
+        final StringBuilder fullName = new StringBuilder();
+        for (final String field : index.keySet()) {
+            if (fullName.length() > 0) {
+                fullName.append('_');
             }
+
+            fullName.append(field).append('_').append(String.valueOf(index.get(field)).replace(' ', '_'));
+        }
+
+        final String name = fullName.toString();
+        if (utf8Length(name) <= maxLength) {
+            return name;
+        }
+
+        final String hash = sha1Hex(name).substring(0, INDEX_NAME_HASH_LENGTH);
+
+        String prefix = name.substring(0, Math.min(name.length(), maxLength - INDEX_NAME_HASH_LENGTH - 1));
+        while (utf8Length(prefix) > maxLength - INDEX_NAME_HASH_LENGTH - 1) {
+            prefix = prefix.substring(0, prefix.length() - 1);
+        }
+
+        return prefix + "_" + hash;
+    }
+
+    private static int utf8Length(final String value) {
+        return value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static String sha1Hex(final String value) {
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (final NoSuchAlgorithmException e) {
+            //every java platform has SHA-1
+            throw new IllegalStateException(e);
+        }
+
+        final StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (final byte b : digest) {
+            hex.append(String.format("%02x", b));
         }
 
-        throw new RuntimeException("couldnt create index after 5 attempts");
+        return hex.toString();
     }
 }
@@ -0,0 +1,305 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import java.io.Closeable;
+import java.util.Date;
+import java.util.Objects;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bson.types.ObjectId;
+
+/**
+ * Runs worker threads that get messages matching a query, give them to a handler, ack them when it returns and requeue them when it
+ * throws. Each worker holds at most one message, so a consumer never has more than its concurrency in flight.
+ */
+public final class QueueConsumer implements Closeable {
+
+    private static final int WAIT_DURATION = 1000;
+
+    private final Queue queue;
+    private final BasicDBObject query;
+    private final MessageHandler handler;
+    private final int concurrency;
+    private final int resetDuration;
+    private final long retryDelay;
+    private final long heartbeatInterval;
+    private final Map<ObjectId, BasicDBObject> leased = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong handled = new AtomicLong();
+    private volatile boolean running;
+    private volatile long startTime;
+    private ExecutorService workers;
+    private ScheduledExecutorService heartbeat;
+
+    /**
+     * Consumer that requeues failed messages to be available right away
+     *
+     * @param queue queue to consume. Should not be null
+     * @param query query for get(). Should not be null
+     * @param handler handler for each message. Should not be null
+     * @param concurrency number of workers. Should be positive
+     * @param resetDuration duration in seconds for get() before a message is considered abandoned
+     */
+    public QueueConsumer(
+            final Queue queue,
+            final BasicDBObject query,
+            final MessageHandler handler,
+            final int concurrency,
+            final int resetDuration
+    ) {
+        this(queue, query, handler, concurrency, resetDuration, 0, 0);
+    }
+
+    /**
+     * Consumer without heartbeats
+     *
+     * @param queue queue to consume. Should not be null
+     * @param query query for get(). Should not be null
+     * @param handler handler for each message. Should not be null
+     * @param concurrency number of workers. Should be positive
+     * @param resetDuration duration in seconds for get() before a message is considered abandoned
+     * @param retryDelay duration in milliseconds a failed message waits in the queue before it can be retried. Should not be negative
+     */
+    public QueueConsumer(
+            final Queue queue,
+            final BasicDBObject query,
+            final MessageHandler handler,
+            final int concurrency,
+            final int resetDuration,
+            final long retryDelay
+    ) {
+        this(queue, query, handler, concurrency, resetDuration, retryDelay, 0);
+    }
+
+    /**
+     * @param queue queue to consume. Should not be null
+     * @param query query for get(). Should not be null
+     * @param handler handler for each message. Should not be null
+     * @param concurrency number of workers. Should be positive
+     * @param resetDuration duration in seconds for get() before a message is considered abandoned
+     * @param retryDelay duration in milliseconds a failed message waits in the queue before it can be retried. Should not be negative
+     * @param heartbeatInterval duration in milliseconds between extending the lease of in flight messages by resetDuration, or 0 for
+     * no heartbeats. Should be well under resetDuration so a short resetDuration recovers crashed work quickly without redelivering
+     * long running messages. Should not be negative
+     */
+    public QueueConsumer(
+            final Queue queue,
+            final BasicDBObject query,
+            final MessageHandler handler,
+            final int concurrency,
+            final int resetDuration,
+            final long retryDelay,
+            final long heartbeatInterval
+    ) {
+        Objects.requireNonNull(queue);
+        Objects.requireNonNull(query);
+        Objects.requireNonNull(handler);
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("concurrency must be positive");
+        }
+        if (retryDelay < 0) {
+            throw new IllegalArgumentException("retryDelay must not be negative");
+        }
+        if (heartbeatInterval < 0) {
+            throw new IllegalArgumentException("heartbeatInterval must not be negative");
+        }
+
+        this.queue = queue;
+        this.query = query;
+        this.handler = handler;
+        this.concurrency = concurrency;
+        this.resetDuration = resetDuration;
+        this.retryDelay = retryDelay;
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
+    /**
+     * Start the workers
+     */
+    public synchronized void start() {
+        if (workers != null) {
+            throw new IllegalStateException("already started");
+        }
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(concurrency, runnable -> {
+            final Thread thread = new Thread(runnable, "mongo-queue-consumer-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        running = true;
+        startTime = System.currentTimeMillis();
+
+        for (int i = 0; i < concurrency; ++i) {
+            workers.execute(this::work);
+        }
+
+        if (heartbeatInterval > 0) {
+            heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "mongo-queue-consumer-heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            });
+            heartbeat.scheduleWithFixedDelay(this::extendLeases, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop getting messages and wait for the in flight ones to be handled
+     *
+     * @param timeout duration in milliseconds to wait
+     * @return true if all workers finished, false if the timeout passed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean shutdown(final long timeout) throws InterruptedException {
+        final ExecutorService current;
+        final ScheduledExecutorService currentHeartbeat;
+        synchronized (this) {
+            current = workers;
+            currentHeartbeat = heartbeat;
+        }
+
+        if (current == null) {
+            return true;
+        }
+
+        running = false;
+        current.shutdown();
+        final boolean terminated = current.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+
+        //keep leases alive for messages still in flight after a timeout
+        if (terminated && currentHeartbeat != null) {
+            currentHeartbeat.shutdownNow();
+        }
+
+        return terminated;
+    }
+
+    /**
+     * Same as shutdown() with no limit on the wait
+     */
+    @Override
+    public void close() {
+        try {
+            shutdown(Long.MAX_VALUE);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return number of messages being handled right now
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return number of messages handled and acked
+     */
+    public long getProcessedCount() {
+        return processed.get();
+    }
+
+    /**
+     * @return number of messages whose handler threw and were requeued, plus failed get() and ack() calls
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return messages given to the handler, whether it returned or threw, per second since start. 0 before start
+     */
+    public double getThroughput() {
+        final long start = startTime;
+        if (start == 0) {
+            return 0.0;
+        }
+
+        final long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+        return handled.get() * 1000.0 / elapsed;
+    }
+
+    private void work() {
+        while (running) {
+            final BasicDBObject message;
+            try {
+                message = queue.get(query, resetDuration, WAIT_DURATION);
+            } catch (final RuntimeException e) {
+                //such as an unavailable server or a payload that fails to decode. Wait before retrying so neither is hammered, a worker
+                //that let this end its loop would be lost for good
+                failed.incrementAndGet();
+                sleep(WAIT_DURATION);
+                continue;
+            }
+
+            if (message == null) {
+                continue;
+            }
+
+            final ObjectId id = (ObjectId) message.get("id");
+            inFlight.incrementAndGet();
+            leased.put(id, new BasicDBObject("id", id).append(Queue.CLAIM_FIELD, message.get(Queue.CLAIM_FIELD)));
+            try {
+                handle(message);
+            } finally {
+                leased.remove(id);
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private void handle(final BasicDBObject message) {
+        try {
+            handler.handle(message);
+        } catch (final Throwable e) {
+            //an Error escaping would end work() and lose the worker for good
+            handled.incrementAndGet();
+            failed.incrementAndGet();
+            try {
+                queue.requeue(message, new Date(System.currentTimeMillis() + retryDelay));
+            } catch (final RuntimeException requeueException) {
+                //the message is redelivered after resetDuration anyway
+            }
+
+            return;
+        }
+
+        handled.incrementAndGet();
+        try {
+            queue.ack(message);
+            processed.incrementAndGet();
+        } catch (final RuntimeException e) {
+            failed.incrementAndGet();
+            //the message is redelivered after resetDuration, handlers should be idempotent
+        }
+    }
+
+    private void extendLeases() {
+        for (final BasicDBObject lease : leased.values()) {
+            try {
+                queue.extendLease(lease, resetDuration);
+            } catch (final RuntimeException e) {
+                //try again on the next heartbeat, an exception escaping would cancel the heartbeat schedule
+            }
+        }
+    }
+
+    private static void sleep(final long duration) {
+        try {
+            Thread.sleep(duration);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
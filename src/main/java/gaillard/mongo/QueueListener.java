@@ -0,0 +1,89 @@
+package gaillard.mongo;
+
+/**
+ * Called by Queue with the outcome and duration of each operation, for metrics and tracing. Arguments are primitives so calls do not
+ * allocate. Methods do nothing unless overridden.
+ *
+ * Called on the thread running the operation, after it finished, so implementations should be quick, thread safe and not throw.
+ * Durations are in nanoseconds.
+ */
+public interface QueueListener {
+
+    /**
+     * Listener that does nothing, the default of a Queue
+     */
+    QueueListener NONE = new QueueListener() {
+    };
+
+    /**
+     * After send() or sendAll()
+     *
+     * @param messages number of messages inserted
+     */
+    default void onSend(final int messages, final long nanos) {
+    }
+
+    /**
+     * After each attempt of a get() or getBatch() to claim messages
+     *
+     * @param messages number of messages claimed, 0 for an empty poll
+     */
+    default void onPoll(final int messages, final long nanos) {
+    }
+
+    /**
+     * After get() or getBatch() returned
+     *
+     * @param messages number of messages returned
+     * @param polls number of attempts to claim messages
+     * @param waitNanos part of nanos spent waiting between attempts
+     */
+    default void onGet(final int messages, final int polls, final long waitNanos, final long nanos) {
+    }
+
+    /**
+     * After resetStuck(), including the call get() and getBatch() make first
+     *
+     * @param messages number of stuck messages made available again
+     */
+    default void onResetStuck(final int messages, final long nanos) {
+    }
+
+    /**
+     * After ack() or ackAll()
+     *
+     * @param messages number of messages removed
+     */
+    default void onAck(final int messages, final long nanos) {
+    }
+
+    /**
+     * After ackSend()
+     */
+    default void onAckSend(final long nanos) {
+    }
+
+    /**
+     * After requeue() or requeueAll(). A requeue() of a removed message also calls onAckSend() since it sends the message again
+     *
+     * @param messages number of messages requeued
+     */
+    default void onRequeue(final int messages, final long nanos) {
+    }
+
+    /**
+     * After extendLease()
+     *
+     * @param extended whether the message was still running and got extended
+     */
+    default void onExtendLease(final boolean extended, final long nanos) {
+    }
+
+    /**
+     * After count()
+     *
+     * @param mode where the count came from. CACHED counts that were refreshed also call this with EXACT
+     */
+    default void onCount(final CountMode mode, final long nanos) {
+    }
+}
@@ -0,0 +1,193 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.MongoException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes messages of a Queue matching a query, claiming them only as subscribers request them. Demand above one is claimed with
+ * getBatch() up to batchSize at a time and no demand means no claims, so leases only start for messages a subscriber asked for.
+ *
+ * Each subscription claims and delivers on executor tasks, one at a time. While demand is outstanding and the queue is empty it polls
+ * without waiting and schedules the next poll after the delay of the queue's poll strategy, so idle subscriptions hold no thread. Messages claimed but not delivered because of a cancel are given back in their place in the queue. The stream
+ * never completes, it ends with cancel() or with onError() when the queue fails. Subscribers ack what they receive themselves, or pass
+ * it on to an AckSubscriber.
+ */
+public final class QueuePublisher implements Flow.Publisher<BasicDBObject> {
+
+    private static final int RESET_STUCK_INTERVAL = 1000;
+
+    private final Queue queue;
+    private final BasicDBObject query;
+    private final int resetDuration;
+    private final int batchSize;
+    private final ScheduledExecutorService executor;
+
+    /**
+     * @param queue queue to claim messages from. Should not be null
+     * @param query query for get(). Should not be null
+     * @param resetDuration duration in seconds for get() before a message is considered abandoned
+     * @param batchSize max number of messages claimed at once. Should be positive
+     * @param executor executor running the claims and deliveries and scheduling the polls of empty queues. Should not be null
+     */
+    public QueuePublisher(
+            final Queue queue,
+            final BasicDBObject query,
+            final int resetDuration,
+            final int batchSize,
+            final ScheduledExecutorService executor
+    ) {
+        Objects.requireNonNull(queue);
+        Objects.requireNonNull(query);
+        Objects.requireNonNull(executor);
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+
+        this.queue = queue;
+        this.query = query;
+        this.resetDuration = resetDuration;
+        this.batchSize = batchSize;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(final Flow.Subscriber<? super BasicDBObject> subscriber) {
+        Objects.requireNonNull(subscriber);
+
+        subscriber.onSubscribe(new QueueSubscription(subscriber));
+    }
+
+    private final class QueueSubscription implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super BasicDBObject> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        //number of drain requests, only the request taking it from 0 runs a task so deliveries never overlap
+        private final AtomicInteger work = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile IllegalArgumentException badRequest;
+        //only used by the drain task
+        private int emptyPolls;
+        private long lastResetStuck;
+
+        private QueueSubscription(final Flow.Subscriber<? super BasicDBObject> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(final long n) {
+            if (n <= 0) {
+                badRequest = new IllegalArgumentException("requested number of messages must be positive");
+            } else {
+                //Long.MAX_VALUE means unbounded
+                demand.getAndUpdate(requested -> requested + n < 0 ? Long.MAX_VALUE : requested + n);
+            }
+
+            if (work.getAndIncrement() == 0) {
+                executor.execute(() -> drain(1));
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * @param carried drain requests this task accounts for, more than 1 when it was scheduled after an empty poll
+         */
+        private void drain(final int carried) {
+            int missed = carried;
+            do {
+                while (!cancelled) {
+                    if (badRequest != null) {
+                        cancelled = true;
+                        subscriber.onError(badRequest);
+                        return;
+                    }
+
+                    final long requested = demand.get();
+                    if (requested == 0) {
+                        break;
+                    }
+
+                    final List<BasicDBObject> messages;
+                    try {
+                        messages = claim((int) Math.min(requested, batchSize));
+                    } catch (final RuntimeException e) {
+                        cancelled = true;
+                        subscriber.onError(e);
+                        return;
+                    }
+
+                    if (messages.isEmpty()) {
+                        //keep the drain requests and come back later instead of blocking a thread while the queue is empty
+                        final int stillMissed = missed;
+                        final long delay = queue.getPollStrategy().delay(++emptyPolls);
+                        executor.schedule(() -> drain(stillMissed), delay, TimeUnit.MILLISECONDS);
+                        return;
+                    }
+
+                    emptyPolls = 0;
+                    if (requested != Long.MAX_VALUE) {
+                        demand.addAndGet(-messages.size());
+                    }
+
+                    deliver(messages);
+                }
+
+                missed = work.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private List<BasicDBObject> claim(final int count) {
+            //polls run back to back, so reset stuck messages about as often as a blocking get() waiting a second would
+            final long now = System.currentTimeMillis();
+            final boolean resetStuck = now - lastResetStuck >= RESET_STUCK_INTERVAL;
+            if (resetStuck) {
+                lastResetStuck = now;
+            }
+
+            if (count == 1) {
+                final BasicDBObject message = queue.get(query, resetDuration, 0, queue.getPollStrategy(), resetStuck);
+                return message == null ? Collections.<BasicDBObject>emptyList() : Collections.singletonList(message);
+            }
+
+            return queue.getBatch(query, resetDuration, count, 0, queue.getPollStrategy(), resetStuck);
+        }
+
+        private void deliver(final List<BasicDBObject> messages) {
+            for (int i = 0; i < messages.size(); ++i) {
+                if (cancelled) {
+                    giveBack(messages.subList(i, messages.size()));
+                    return;
+                }
+
+                try {
+                    subscriber.onNext(messages.get(i));
+                } catch (final RuntimeException e) {
+                    //a subscriber that throws is treated as cancelled, the message it failed on included
+                    cancelled = true;
+                    giveBack(messages.subList(i, messages.size()));
+                    return;
+                }
+            }
+        }
+
+        private void giveBack(final List<BasicDBObject> messages) {
+            for (final BasicDBObject message : messages) {
+                try {
+                    queue.giveBack(message);
+                } catch (final MongoException e) {
+                    //left running, get() gives it out again after resetDuration
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package gaillard.mongo;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps counting empty polls across get() calls and only starts the wrapped strategy over when a message is found, so a consumer that
+ * stays idle keeps its long waits while a busy one polls again right away. Meant for one consumer, give each its own instance.
+ */
+public final class ResetOnHitPollStrategy implements PollStrategy {
+
+    private final PollStrategy strategy;
+    private final AtomicInteger emptyPolls = new AtomicInteger();
+
+    /**
+     * @param strategy strategy to give the count of empty polls since the last hit. Should not be null
+     */
+    public ResetOnHitPollStrategy(final PollStrategy strategy) {
+        Objects.requireNonNull(strategy);
+
+        this.strategy = strategy;
+    }
+
+    @Override
+    public long delay(final int emptyPolls) {
+        int count;
+        do {
+            count = this.emptyPolls.get();
+        } while (count < Integer.MAX_VALUE && !this.emptyPolls.compareAndSet(count, count + 1));
+
+        return strategy.delay(count == Integer.MAX_VALUE ? count : count + 1);
+    }
+
+    @Override
+    public void onHit() {
+        emptyPolls.set(0);
+        strategy.onHit();
+    }
+}
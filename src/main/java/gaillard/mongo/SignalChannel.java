@@ -0,0 +1,189 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.CommandFailureException;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.MongoException;
+import java.io.Closeable;
+import java.util.Objects;
+import org.bson.types.ObjectId;
+
+/**
+ * Capped collection that producers write a small document to after sending, so idle consumers wake up as soon as work might exist
+ * instead of sleeping a fixed poll duration.
+ *
+ * One daemon thread per channel tails the collection with a tailable, await-data cursor and wakes the threads blocked in await(), so
+ * waiting consumers cost no round trips.
+ */
+public final class SignalChannel implements Closeable {
+
+    private static final long SIZE = 1024 * 1024;
+
+    private final DBCollection signals;
+    private final Object lock = new Object();
+    private long version;
+    private volatile boolean closed;
+    private volatile DBCursor cursor;
+
+    /**
+     * Use the named capped collection, creating it with a size of 1 MB if it does not exist, and start tailing it
+     *
+     * @param db database for the collection. Should not be null
+     * @param name collection name. Should not be null
+     */
+    public SignalChannel(final DB db, final String name) {
+        Objects.requireNonNull(db);
+        Objects.requireNonNull(name);
+
+        if (!db.collectionExists(name)) {
+            try {
+                db.createCollection(name, new BasicDBObject("capped", true).append("size", SIZE));
+                //a tailable cursor on an empty collection is closed immediately, so always keep a document in it
+                db.getCollection(name).insert(new BasicDBObject());
+            } catch (final CommandFailureException e) {
+                //created by someone else in between
+            }
+        }
+
+        signals = db.getCollection(name);
+        if (!signals.isCapped()) {
+            throw new IllegalArgumentException("collection must be capped");
+        }
+
+        final Thread tailer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                tail();
+            }
+        }, "mongo-queue-signals-" + name);
+        tailer.setDaemon(true);
+        tailer.start();
+    }
+
+    /**
+     * Wake consumers waiting in await() on every channel tailing this collection
+     */
+    public void signal() {
+        signals.insert(new BasicDBObject());
+    }
+
+    /**
+     * @return number of signals seen by this channel so far, to give to await()
+     */
+    public long version() {
+        synchronized (lock) {
+            return version;
+        }
+    }
+
+    /**
+     * Block until a signal arrives after the given version, or timeout passes
+     *
+     * @param version value from version() or a previous await(), taken before looking for work
+     * @param timeout duration in milliseconds to wait
+     * @return the current version
+     */
+    public long await(final long version, final long timeout) {
+        final long end = System.currentTimeMillis() + timeout;
+
+        synchronized (lock) {
+            for (long remaining = timeout; this.version == version && remaining > 0 && !closed; remaining = end - System.currentTimeMillis()) {
+                try {
+                    lock.wait(remaining);
+                } catch (final InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+
+            return this.version;
+        }
+    }
+
+    /**
+     * Stop tailing. Threads in await() return right away
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        final DBCursor current = cursor;
+        if (current != null) {
+            current.close();
+        }
+
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    private void tail() {
+        ObjectId last = null;
+        final DBCursor latest = signals.find().sort(new BasicDBObject("$natural", -1)).limit(1);
+        try {
+            if (latest.hasNext()) {
+                last = (ObjectId) latest.next().get("_id");
+            }
+        } finally {
+            latest.close();
+        }
+
+        while (!closed) {
+            //resume in natural order, the insertion order of a capped collection, skipping up to the last signal seen. _id order is not
+            //insertion order across producers, so an _id predicate could skip a signal inserted later with a smaller id
+            try {
+                long skip = 0;
+                if (last != null) {
+                    if (signals.findOne(new BasicDBObject("_id", last)) == null) {
+                        //overwritten when the collection wrapped, so what is left may be new
+                        wake();
+                    } else {
+                        //at most this many signals come before it, so the skip ends even if it is overwritten meanwhile
+                        skip = signals.count();
+                    }
+                }
+
+                cursor = signals.find().addOption(Bytes.QUERYOPTION_TAILABLE).addOption(Bytes.QUERYOPTION_AWAITDATA);
+                while (!closed && cursor.hasNext()) {
+                    final ObjectId id = (ObjectId) cursor.next().get("_id");
+                    if (skip > 0) {
+                        --skip;
+                        if (id.equals(last)) {
+                            skip = 0;
+                        }
+
+                        continue;
+                    }
+
+                    last = id;
+                    wake();
+                }
+            } catch (final MongoException e) {
+                //cursor was killed by close() or the server, or the server is unreachable, reopen unless closed
+            } finally {
+                final DBCursor current = cursor;
+                if (current != null) {
+                    current.close();
+                }
+            }
+
+            if (!closed) {
+                try {
+                    //cursor ended, such as when the capped collection wrapped past it
+                    Thread.sleep(100);
+                } catch (final InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void wake() {
+        synchronized (lock) {
+            ++version;
+            lock.notifyAll();
+        }
+    }
+}
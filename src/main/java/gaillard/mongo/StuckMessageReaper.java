@@ -0,0 +1,186 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DuplicateKeyException;
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resets stuck messages of a Queue on a schedule so get() does not have to.
+ *
+ * Run one per JVM, or give every JVM a reaper with the same lease collection and name so that only the current lease holder sweeps.
+ * A lease lasts three intervals and is renewed on each sweep, so another reaper takes over within that long after the holder dies.
+ */
+public final class StuckMessageReaper implements Closeable {
+
+    private final Queue queue;
+    private final long interval;
+    private final DBCollection leases;
+    private final String leaseName;
+    private final String owner = UUID.randomUUID().toString();
+    private final AtomicLong totalResetCount = new AtomicLong();
+    private volatile int lastResetCount;
+    private volatile boolean leader;
+    private ScheduledExecutorService executor;
+
+    /**
+     * Reaper that always sweeps
+     *
+     * @param queue queue to reset stuck messages in. Should not be null
+     * @param interval duration in milliseconds between sweeps. Should be positive
+     */
+    public StuckMessageReaper(final Queue queue, final long interval) {
+        Objects.requireNonNull(queue);
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+
+        this.queue = queue;
+        this.interval = interval;
+        this.leases = null;
+        this.leaseName = null;
+    }
+
+    /**
+     * Reaper that only sweeps while it holds the named lease
+     *
+     * @param queue queue to reset stuck messages in. Should not be null
+     * @param interval duration in milliseconds between sweeps. Should be positive
+     * @param leases collection holding lease documents. Should not be null
+     * @param leaseName _id of the lease document shared by all reapers of the queue. Should not be null
+     */
+    public StuckMessageReaper(final Queue queue, final long interval, final DBCollection leases, final String leaseName) {
+        Objects.requireNonNull(queue);
+        Objects.requireNonNull(leases);
+        Objects.requireNonNull(leaseName);
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+
+        this.queue = queue;
+        this.interval = interval;
+        this.leases = leases;
+        this.leaseName = leaseName;
+    }
+
+    /**
+     * Stop resetting stuck messages in get() and start sweeping every interval on a daemon thread
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            throw new IllegalStateException("already started");
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "mongo-queue-reaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        queue.setResetStuckOnGet(false);
+
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweep();
+                } catch (final RuntimeException e) {
+                    //keep the schedule alive, an escaping exception would cancel it for good. The next sweep will try again
+                }
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop sweeping, give up the lease if held and go back to resetting stuck messages in get()
+     */
+    @Override
+    public synchronized void close() {
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdownNow();
+        executor = null;
+
+        if (leader) {
+            leases.update(new BasicDBObject("_id", leaseName).append("owner", owner),
+                    new BasicDBObject("$set", new BasicDBObject("expires", new Date(0))));
+            leader = false;
+        }
+
+        queue.setResetStuckOnGet(true);
+    }
+
+    /**
+     * Reset stuck messages now if this reaper holds the lease or has none
+     *
+     * @return number of messages reset
+     */
+    public int sweep() {
+        if (leases != null && !acquireLease()) {
+            lastResetCount = 0;
+            return 0;
+        }
+
+        final int count = queue.resetStuck();
+        lastResetCount = count;
+        totalResetCount.addAndGet(count);
+        return count;
+    }
+
+    /**
+     * @return number of messages reset by the last sweep
+     */
+    public int getLastResetCount() {
+        return lastResetCount;
+    }
+
+    /**
+     * @return number of messages reset by all sweeps of this reaper
+     */
+    public long getTotalResetCount() {
+        return totalResetCount.get();
+    }
+
+    /**
+     * @return whether this reaper held the lease at its last sweep. Always true without a lease
+     */
+    public boolean isLeader() {
+        return leases == null || leader;
+    }
+
+    private boolean acquireLease() {
+        final Date now = new Date();
+        final BasicDBObject query = new BasicDBObject("_id", leaseName).append(
+                "$or",
+                Arrays.asList(new BasicDBObject("owner", owner), new BasicDBObject("expires", new BasicDBObject("$lte", now)))
+        );
+        final BasicDBObject update = new BasicDBObject(
+                "$set",
+                new BasicDBObject("owner", owner).append("expires", new Date(now.getTime() + interval * 3))
+        );
+
+        try {
+            //another owner with an unexpired lease makes the upsert collide on _id
+            leases.update(query, update, true, false);
+            leader = true;
+        } catch (final DuplicateKeyException e) {
+            leader = false;
+        }
+
+        return leader;
+    }
+}
@@ -0,0 +1,154 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoClient;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.Before;
+
+public class AckPurgerTest {
+
+    private DBCollection collection;
+    private Queue queue;
+
+    @Before
+    public void setup() throws UnknownHostException {
+        collection = new MongoClient().getDB("testing").getCollection("messages");
+        collection.drop();
+
+        queue = new Queue(collection);
+        queue.setSoftAck(true);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void construct_nullQueue() {
+        new AckPurger(null, 100, 100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void construct_badBatchSize() {
+        new AckPurger(queue, 0, 100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void construct_badInterval() {
+        new AckPurger(queue, 100, 0);
+    }
+
+    @Test
+    public void purge() {
+        final AckPurger purger = new AckPurger(queue, 2, 100);
+
+        for (int i = 0; i < 3; ++i) {
+            queue.send(new BasicDBObject());
+            queue.ack(queue.get(new BasicDBObject(), Integer.MAX_VALUE));
+        }
+
+        queue.send(new BasicDBObject());
+
+        assertEquals(2, purger.purge());
+        assertEquals(2, purger.getLastPurgedCount());
+        assertEquals(1, purger.purge());
+        assertEquals(0, purger.purge());
+        assertEquals(0, purger.getLastPurgedCount());
+        assertEquals(3, purger.getTotalPurgedCount());
+        assertEquals(1, collection.count());
+    }
+
+    @Test
+    public void startAndClose() throws InterruptedException {
+        final AckPurger purger = new AckPurger(queue, 10, 50);
+        purger.start();
+
+        queue.send(new BasicDBObject());
+        queue.ack(queue.get(new BasicDBObject(), Integer.MAX_VALUE));
+
+        final long end = System.currentTimeMillis() + 5000;
+        while (collection.count() > 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(20);
+        }
+
+        assertEquals(0, collection.count());
+        assertEquals(1, purger.getTotalPurgedCount());
+
+        purger.close();
+        purger.close();
+
+        queue.send(new BasicDBObject());
+        queue.ack(queue.get(new BasicDBObject(), Integer.MAX_VALUE));
+        Thread.sleep(200);
+        assertEquals(1, collection.count());
+    }
+
+    @Test
+    public void start_survivesFailure() throws InterruptedException {
+        final AtomicInteger releases = new AtomicInteger();
+        queue.setPayloadCodec(new PayloadCodec() {
+            @Override
+            public BasicDBObject encode(final BasicDBObject payload) {
+                return payload;
+            }
+
+            @Override
+            public BasicDBObject decode(final BasicDBObject stored) {
+                return stored;
+            }
+
+            @Override
+            public boolean storesExternally() {
+                return true;
+            }
+
+            @Override
+            public void release(final BasicDBObject stored) {
+                releases.incrementAndGet();
+                throw new IllegalStateException("release failed");
+            }
+        });
+
+        queue.send(new BasicDBObject());
+        queue.send(new BasicDBObject());
+        queue.ackAll(queue.getBatch(new BasicDBObject(), Integer.MAX_VALUE, 2));
+
+        //one message per batch, so the second is only purged if the schedule outlives the first failure
+        final AckPurger purger = new AckPurger(queue, 1, 50);
+        purger.start();
+
+        final long end = System.currentTimeMillis() + 5000;
+        while (collection.count() > 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(20);
+        }
+
+        purger.close();
+
+        assertEquals(0, collection.count());
+        assertEquals(2, releases.get());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void start_twice() {
+        final AckPurger purger = new AckPurger(queue, 10, 50);
+        purger.start();
+        try {
+            purger.start();
+        } finally {
+            purger.close();
+        }
+    }
+
+    @Test
+    public void purge_ignoresNotAcked() {
+        final AckPurger purger = new AckPurger(queue, 10, 100);
+        queue.send(new BasicDBObject());
+        queue.get(new BasicDBObject(), Integer.MAX_VALUE);
+        queue.send(new BasicDBObject());
+
+        assertEquals(0, purger.purge());
+        assertTrue(collection.count() == 2);
+    }
+}
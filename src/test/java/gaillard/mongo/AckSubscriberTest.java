@@ -0,0 +1,134 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoClient;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.Before;
+
+public class AckSubscriberTest {
+
+    private DBCollection collection;
+    private Queue queue;
+    private ScheduledExecutorService executor;
+
+    @Before
+    public void setup() throws UnknownHostException {
+        collection = new MongoClient().getDB("testing").getCollection("messages");
+        collection.drop();
+
+        queue = new Queue(collection);
+        executor = Executors.newScheduledThreadPool(2);
+    }
+
+    @After
+    public void teardown() {
+        executor.shutdownNow();
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void construct_nullQueue() {
+        new AckSubscriber(null, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void construct_badBatchSize() {
+        new AckSubscriber(queue, 0);
+    }
+
+    @Test
+    public void ackPublished() throws InterruptedException {
+        for (int i = 0; i < 25; ++i) {
+            queue.send(new BasicDBObject("key", i));
+        }
+
+        final AckSubscriber subscriber = new AckSubscriber(queue, 10);
+        new QueuePublisher(queue, new BasicDBObject(), 60, 4, executor).subscribe(subscriber);
+
+        final long end = System.currentTimeMillis() + 5000;
+        while (subscriber.getAckedCount() < 25 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(25, subscriber.getAckedCount());
+        assertEquals(0, queue.count(new BasicDBObject()));
+        assertNull(subscriber.getError());
+    }
+
+    @Test
+    public void onSubscribe_requestsBatches() {
+        final RecordingSubscription subscription = new RecordingSubscription();
+        final AckSubscriber subscriber = new AckSubscriber(queue, 2);
+        subscriber.onSubscribe(subscription);
+
+        for (int i = 0; i < 3; ++i) {
+            queue.send(new BasicDBObject("key", i));
+            subscriber.onNext(queue.get(new BasicDBObject(), 60));
+        }
+
+        final List<Long> expected = new ArrayList<>();
+        expected.add(2L);
+        expected.add(2L);
+        assertEquals(expected, subscription.requests);
+        assertEquals(3, subscriber.getAckedCount());
+    }
+
+    @Test
+    public void onSubscribe_second() {
+        final AckSubscriber subscriber = new AckSubscriber(queue, 10);
+        subscriber.onSubscribe(new RecordingSubscription());
+
+        final RecordingSubscription second = new RecordingSubscription();
+        subscriber.onSubscribe(second);
+        assertTrue(second.cancelled);
+        assertTrue(second.requests.isEmpty());
+    }
+
+    @Test
+    public void onNext_ackFails() {
+        final RecordingSubscription subscription = new RecordingSubscription();
+        final AckSubscriber subscriber = new AckSubscriber(queue, 10);
+        subscriber.onSubscribe(subscription);
+        subscriber.onNext(new BasicDBObject("id", "abc"));
+
+        assertTrue(subscription.cancelled);
+        assertTrue(subscriber.getError() instanceof IllegalArgumentException);
+        assertEquals(0, subscriber.getAckedCount());
+    }
+
+    @Test
+    public void onComplete() {
+        final AckSubscriber subscriber = new AckSubscriber(queue, 10);
+        assertFalse(subscriber.isCompleted());
+
+        subscriber.onComplete();
+        assertTrue(subscriber.isCompleted());
+    }
+
+    private static final class RecordingSubscription implements Flow.Subscription {
+
+        final List<Long> requests = new ArrayList<>();
+        boolean cancelled;
+
+        @Override
+        public void request(final long n) {
+            requests.add(n);
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoClient;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.Before;
+
+public class AsyncQueueTest {
+
+    private DBCollection collection;
+    private Queue queue;
+    private ScheduledExecutorService executor;
+    private AsyncQueue asyncQueue;
+
+    @Before
+    public void setup() throws UnknownHostException {
+        collection = new MongoClient().getDB("testing").getCollection("messages");
+        collection.drop();
+
+        queue = new Queue(collection);
+        executor = Executors.newScheduledThreadPool(2);
+        asyncQueue = new AsyncQueue(queue, executor);
+    }
+
+    @After
+    public void teardown() {
+        executor.shutdownNow();
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void construct_nullQueue() {
+        new AsyncQueue(null, executor);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void construct_nullExecutor() {
+        new AsyncQueue(queue, null);
+    }
+
+    @Test
+    public void sendGetAck() throws InterruptedException, ExecutionException {
+        asyncQueue.send(new BasicDBObject("key", 0)).get();
+        assertEquals(Long.valueOf(1), asyncQueue.count(new BasicDBObject(), false).get());
+
+        final BasicDBObject message = asyncQueue.get(new BasicDBObject(), Integer.MAX_VALUE).get();
+        assertEquals(0, message.get("key"));
+        assertEquals(Long.valueOf(1), asyncQueue.count(new BasicDBObject(), true).get());
+
+        asyncQueue.ack(message).get();
+        assertEquals(Long.valueOf(0), asyncQueue.count(new BasicDBObject()).get());
+    }
+
+    @Test
+    public void ackSendAndRequeue() throws InterruptedException, ExecutionException {
+        asyncQueue.send(new BasicDBObject("key", 0)).get();
+
+        final BasicDBObject message = asyncQueue.get(new BasicDBObject(), Integer.MAX_VALUE).get();
+        asyncQueue.ackSend(message, new BasicDBObject("key", 1)).get();
+
+        final BasicDBObject sent = asyncQueue.get(new BasicDBObject(), Integer.MAX_VALUE).get();
+        assertEquals(1, sent.get("key"));
+
+        asyncQueue.requeue(sent, new Date(), 0.5).get();
+        assertEquals(Long.valueOf(1), asyncQueue.count(new BasicDBObject(), false).get());
+    }
+
+    @Test
+    public void get_wait() throws InterruptedException, ExecutionException {
+        final Date start = new Date();
+
+        assertNull(asyncQueue.get(new BasicDBObject(), Integer.MAX_VALUE, 200).get());
+
+        final long elapsed = new Date().getTime() - start.getTime();
+
+        assertTrue(elapsed >= 200);
+        assertTrue(elapsed < 400);
+    }
+
+    @Test
+    public void get_queuePollStrategy() throws InterruptedException, ExecutionException {
+        final AtomicInteger emptyPolls = new AtomicInteger();
+        queue.setPollStrategy(new PollStrategy() {
+            @Override
+            public long delay(final int polls) {
+                emptyPolls.set(polls);
+                return 50;
+            }
+
+            @Override
+            public void onHit() {
+            }
+        });
+
+        assertNull(asyncQueue.get(new BasicDBObject(), Integer.MAX_VALUE, 300).get());
+        assertTrue(emptyPolls.get() >= 3);
+    }
+
+    @Test
+    public void get_manyWaitingOnFewThreads() throws InterruptedException, ExecutionException {
+        final List<CompletableFuture<BasicDBObject>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; ++i) {
+            futures.add(asyncQueue.get(new BasicDBObject(), Integer.MAX_VALUE, 5000, 50));
+        }
+
+        Thread.sleep(200);
+
+        for (int i = 0; i < 50; ++i) {
+            queue.send(new BasicDBObject("key", i));
+        }
+
+        final Set<Object> keys = new HashSet<>();
+        for (final CompletableFuture<BasicDBObject> future : futures) {
+            final BasicDBObject message = future.get();
+            assertNotNull(message);
+            keys.add(message.get("key"));
+        }
+
+        assertEquals(50, keys.size());
+    }
+
+    @Test
+    public void get_cancel() throws InterruptedException {
+        final CompletableFuture<BasicDBObject> future = asyncQueue.get(new BasicDBObject(), Integer.MAX_VALUE, 5000, 50);
+        future.cancel(false);
+
+        Thread.sleep(100);
+        queue.send(new BasicDBObject());
+        Thread.sleep(200);
+
+        assertEquals(1, queue.count(new BasicDBObject(), false));
+    }
+
+    @Test(expected = ExecutionException.class)
+    public void send_nanPriority() throws InterruptedException, ExecutionException {
+        asyncQueue.send(new BasicDBObject(), new Date(), Double.NaN).get();
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void get_nullQuery() {
+        asyncQueue.get(null, Integer.MAX_VALUE);
+    }
+}
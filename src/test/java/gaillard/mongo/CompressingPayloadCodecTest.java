@@ -0,0 +1,92 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import java.util.Arrays;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CompressingPayloadCodecTest {
+
+    private static String repeat(final String value, final int times) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; ++i) {
+            builder.append(value);
+        }
+
+        return builder.toString();
+    }
+
+    @Test
+    public void encode_belowThreshold() {
+        final BasicDBObject payload = new BasicDBObject("type", "a").append("body", "small");
+
+        assertSame(payload, new CompressingPayloadCodec("type").encode(payload));
+    }
+
+    @Test
+    public void encodeDecode() {
+        final BasicDBObject payload = new BasicDBObject("type", "a")
+                .append("nested", new BasicDBObject("key", 1).append("other", 2))
+                .append("body", repeat("{\"repetitive\": true}", 500))
+                .append("list", Arrays.asList(1, 2, 3));
+
+        final CompressingPayloadCodec codec = new CompressingPayloadCodec("type", "nested.key");
+        final BasicDBObject stored = codec.encode(payload);
+
+        assertEquals("a", stored.get("type"));
+        assertEquals(payload.get("nested"), stored.get("nested"));
+        assertFalse(stored.containsField("body"));
+        assertTrue(stored.get(CompressingPayloadCodec.COMPRESSED_FIELD) instanceof byte[]);
+
+        final BasicDBObject decoded = codec.decode(stored);
+        assertEquals(payload, decoded);
+        assertTrue(decoded.get("nested") instanceof BasicDBObject);
+    }
+
+    @Test
+    public void decode_notCompressed() {
+        final BasicDBObject stored = new BasicDBObject("type", "a");
+
+        assertSame(stored, new CompressingPayloadCodec().decode(stored));
+    }
+
+    @Test
+    public void encode_zeroThreshold() {
+        final BasicDBObject payload = new BasicDBObject("body", repeat("a", 100));
+
+        final CompressingPayloadCodec codec = new CompressingPayloadCodec(9, 0);
+        final BasicDBObject stored = codec.encode(payload);
+
+        assertEquals(1, stored.size());
+        assertEquals(payload, codec.decode(stored));
+    }
+
+    @Test
+    public void isPlain() {
+        final CompressingPayloadCodec codec = new CompressingPayloadCodec("type", "meta.key");
+
+        assertTrue(codec.isPlain("type"));
+        assertTrue(codec.isPlain("meta.other"));
+        assertFalse(codec.isPlain("body"));
+        assertFalse(codec.isPlain("types"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void construct_badLevel() {
+        new CompressingPayloadCodec(10, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void construct_negativeThreshold() {
+        new CompressingPayloadCodec(-1, -1);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void construct_nullField() {
+        new CompressingPayloadCodec("type", null);
+    }
+}
@@ -0,0 +1,44 @@
+package gaillard.mongo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class CountCacheTest {
+
+    @Test
+    public void get_cachesUntilTtl() throws InterruptedException {
+        final CountCache cache = new CountCache();
+        final AtomicLong calls = new AtomicLong();
+
+        assertEquals(1, cache.get("a", 100, calls::incrementAndGet));
+        assertEquals(1, cache.get("a", 100, calls::incrementAndGet));
+        assertEquals(1, calls.get());
+
+        //expired counts are served stale while a refresh runs
+        Thread.sleep(150);
+        assertEquals(1, cache.get("a", 100, calls::incrementAndGet));
+
+        final long end = System.currentTimeMillis() + 5000;
+        while (cache.get("a", 100000, calls::incrementAndGet) != 2 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(2, cache.get("a", 100000, calls::incrementAndGet));
+    }
+
+    @Test
+    public void get_bounded() {
+        final CountCache cache = new CountCache();
+        for (int i = 0; i < CountCache.MAX_ENTRIES; ++i) {
+            cache.get("key" + i, 100000, () -> 0);
+        }
+
+        //entries just read are not idle, so the new query is counted without caching
+        final AtomicLong calls = new AtomicLong();
+        assertEquals(1, cache.get("other", 100000, calls::incrementAndGet));
+        assertEquals(2, cache.get("other", 100000, calls::incrementAndGet));
+        assertEquals(CountCache.MAX_ENTRIES, cache.size());
+    }
+}
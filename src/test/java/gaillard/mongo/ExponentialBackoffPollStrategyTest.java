@@ -0,0 +1,71 @@
+package gaillard.mongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ExponentialBackoffPollStrategyTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void construct_negativeMin() {
+        new ExponentialBackoffPollStrategy(-1, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void construct_zeroMin() {
+        new ExponentialBackoffPollStrategy(0, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void construct_maxLessThanMin() {
+        new ExponentialBackoffPollStrategy(10, 9);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void construct_badJitter() {
+        new ExponentialBackoffPollStrategy(10, 100, 1.5);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void construct_nanJitter() {
+        new ExponentialBackoffPollStrategy(10, 100, Double.NaN);
+    }
+
+    @Test
+    public void delay_noJitter() {
+        final PollStrategy strategy = new ExponentialBackoffPollStrategy(10, 100, 0.0);
+
+        assertEquals(10, strategy.delay(1));
+        assertEquals(20, strategy.delay(2));
+        assertEquals(40, strategy.delay(3));
+        assertEquals(80, strategy.delay(4));
+        assertEquals(100, strategy.delay(5));
+        assertEquals(100, strategy.delay(1000));
+        assertEquals(100, strategy.delay(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void delay_minOne() {
+        final PollStrategy strategy = new ExponentialBackoffPollStrategy(1, 100, 0.0);
+
+        assertEquals(1, strategy.delay(1));
+        assertEquals(2, strategy.delay(2));
+        assertEquals(100, strategy.delay(50));
+    }
+
+    @Test
+    public void delay_jitter() {
+        final PollStrategy strategy = new ExponentialBackoffPollStrategy(100, 1000);
+
+        boolean varied = false;
+        final long first = strategy.delay(3);
+        for (int i = 0; i < 100; ++i) {
+            final long delay = strategy.delay(3);
+            assertTrue(delay > 200 && delay <= 400);
+            varied |= delay != first;
+        }
+
+        assertTrue(varied);
+    }
+}
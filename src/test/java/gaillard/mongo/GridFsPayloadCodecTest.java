@@ -0,0 +1,113 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.MongoClient;
+import com.mongodb.gridfs.GridFS;
+import com.mongodb.gridfs.GridFSInputFile;
+import java.net.UnknownHostException;
+import org.bson.types.ObjectId;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.Before;
+
+public class GridFsPayloadCodecTest {
+
+    private DB db;
+    private GridFsPayloadCodec codec;
+
+    @Before
+    public void setup() throws UnknownHostException {
+        db = new MongoClient().getDB("testing");
+        db.getCollection("payloads.files").drop();
+        db.getCollection("payloads.chunks").drop();
+
+        codec = new GridFsPayloadCodec(db, "payloads", 100, "type");
+    }
+
+    private ObjectId saveCorruptFile() {
+        final ObjectId fileId = ObjectId.get();
+        final GridFSInputFile file = new GridFS(db, "payloads").createFile(new byte[] {1, 2, 3});
+        file.setId(fileId);
+        file.save();
+        return fileId;
+    }
+
+    @Test
+    public void encode_belowThreshold() {
+        final BasicDBObject payload = new BasicDBObject("type", "a").append("body", "small");
+
+        assertSame(payload, codec.encode(payload));
+        assertEquals(0, db.getCollection("payloads.files").count());
+    }
+
+    @Test
+    public void encodeDecodeRelease() {
+        final StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 1000; ++i) {
+            body.append(i);
+        }
+
+        final BasicDBObject payload = new BasicDBObject("type", "a").append("body", body.toString());
+
+        final BasicDBObject stored = codec.encode(payload);
+        assertEquals("a", stored.get("type"));
+        assertFalse(stored.containsField("body"));
+        assertTrue(stored.get(GridFsPayloadCodec.FILE_FIELD) instanceof ObjectId);
+        assertEquals(1, db.getCollection("payloads.files").count());
+
+        assertEquals(payload, codec.decode(stored));
+
+        codec.release(stored);
+        assertEquals(0, db.getCollection("payloads.files").count());
+        assertEquals(0, db.getCollection("payloads.chunks").count());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void decode_missingFile() {
+        codec.decode(new BasicDBObject("type", "a").append(GridFsPayloadCodec.FILE_FIELD, new ObjectId()));
+    }
+
+    @Test
+    public void decode_missingFileReturnUnreadable() {
+        codec.setReturnUnreadable(true);
+        final BasicDBObject payload = codec.decode(new BasicDBObject("type", "a").append(GridFsPayloadCodec.FILE_FIELD, new ObjectId()));
+
+        assertEquals("a", payload.get("type"));
+        assertFalse(payload.containsField(GridFsPayloadCodec.FILE_FIELD));
+        assertTrue(GridFsPayloadCodec.getDecodeError(payload).contains("does not exist"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void decode_corruptFile() {
+        codec.decode(new BasicDBObject(GridFsPayloadCodec.FILE_FIELD, saveCorruptFile()));
+    }
+
+    @Test
+    public void decode_corruptFileReturnUnreadable() {
+        codec.setReturnUnreadable(true);
+
+        final BasicDBObject payload = codec.decode(new BasicDBObject(GridFsPayloadCodec.FILE_FIELD, saveCorruptFile()));
+        assertTrue(GridFsPayloadCodec.getDecodeError(payload).contains("not BSON"));
+    }
+
+    @Test
+    public void getDecodeError_whole() {
+        assertNull(GridFsPayloadCodec.getDecodeError(codec.decode(new BasicDBObject("type", "a"))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void construct_negativeThreshold() {
+        new GridFsPayloadCodec(db, "payloads", -1);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void construct_nullDb() {
+        new GridFsPayloadCodec(null, "payloads", 0);
+    }
+}
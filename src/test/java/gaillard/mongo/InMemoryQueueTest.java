@@ -0,0 +1,291 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.bson.types.ObjectId;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.Before;
+
+public class InMemoryQueueTest {
+
+    private InMemoryQueue queue;
+
+    @Before
+    public void setup() {
+        queue = new InMemoryQueue();
+    }
+
+    @Test
+    public void get_priorityThenCreated() {
+        queue.send(new BasicDBObject("key", 0), new Date(), 0.5);
+        queue.send(new BasicDBObject("key", 1), new Date(), 0.4);
+        queue.send(new BasicDBObject("key", 2), new Date(), 0.4);
+
+        assertEquals(1, queue.get(new BasicDBObject(), Integer.MAX_VALUE).get("key"));
+        assertEquals(2, queue.get(new BasicDBObject(), Integer.MAX_VALUE).get("key"));
+        assertEquals(0, queue.get(new BasicDBObject(), Integer.MAX_VALUE).get("key"));
+        assertNull(queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0));
+    }
+
+    @Test
+    public void get_query() {
+        queue.send(new BasicDBObject("type", "a").append("nested", new BasicDBObject("n", 1)).append("tags", Arrays.asList("x", "y")));
+        queue.send(new BasicDBObject("type", "b").append("nested", new BasicDBObject("n", 5)));
+        queue.send(new BasicDBObject("type", "c"));
+
+        assertNull(queue.get(new BasicDBObject("type", "d"), Integer.MAX_VALUE, 0));
+        assertEquals("b", queue.get(new BasicDBObject("nested.n", new BasicDBObject("$gt", 2L)), Integer.MAX_VALUE, 0).get("type"));
+        assertEquals("a", queue.get(new BasicDBObject("tags", "y").append("nested.n", 1.0), Integer.MAX_VALUE, 0).get("type"));
+        assertEquals("c", queue.get(new BasicDBObject("nested", new BasicDBObject("$exists", false)), Integer.MAX_VALUE, 0).get("type"));
+    }
+
+    @Test
+    public void get_operators() {
+        for (int i = 0; i < 5; ++i) {
+            queue.send(new BasicDBObject("key", i));
+        }
+
+        final BasicDBObject query = new BasicDBObject("key", new BasicDBObject("$gte", 1).append("$lt", 4).append("$nin", Arrays.asList(2)));
+        assertEquals(2, queue.count(query));
+        assertEquals(1, queue.count(new BasicDBObject("key", new BasicDBObject("$in", Arrays.asList(3, "3")))));
+        assertEquals(4, queue.count(new BasicDBObject("key", new BasicDBObject("$ne", 0))));
+        assertEquals(0, queue.count(new BasicDBObject("key", new BasicDBObject("$gt", "a"))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void get_topLevelOperator() {
+        queue.get(new BasicDBObject("$and", Arrays.asList(new BasicDBObject("a", 1))), Integer.MAX_VALUE, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void get_unsupportedOperator() {
+        queue.get(new BasicDBObject("a", new BasicDBObject("$regex", "x")), Integer.MAX_VALUE, 0);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void get_nullQuery() {
+        queue.get(null, Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void get_earliestGet() throws InterruptedException {
+        queue.send(new BasicDBObject("key", 0), new Date(System.currentTimeMillis() + 200));
+
+        assertNull(queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0));
+
+        final long start = System.currentTimeMillis();
+        assertNotNull(queue.get(new BasicDBObject(), Integer.MAX_VALUE, 1000));
+        final long elapsed = System.currentTimeMillis() - start;
+        assertTrue(elapsed >= 150);
+        assertTrue(elapsed < 500);
+    }
+
+    @Test
+    public void get_resetStuck() throws InterruptedException {
+        queue.send(new BasicDBObject("key", 0));
+
+        assertNotNull(queue.get(new BasicDBObject(), 0));
+        assertEquals(1, queue.count(new BasicDBObject(), true));
+
+        Thread.sleep(10);
+        assertEquals(0, queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0).get("key"));
+        assertNull(queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0));
+    }
+
+    @Test
+    public void get_waitWokenBySend() throws InterruptedException {
+        final Thread sender = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (final InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+
+            queue.send(new BasicDBObject("key", 0));
+        });
+
+        final long start = System.currentTimeMillis();
+        sender.start();
+        assertNotNull(queue.get(new BasicDBObject(), Integer.MAX_VALUE, 5000));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        sender.join();
+    }
+
+    @Test
+    public void get_wait() {
+        final long start = System.currentTimeMillis();
+        assertNull(queue.get(new BasicDBObject(), Integer.MAX_VALUE, 200));
+
+        final long elapsed = System.currentTimeMillis() - start;
+        assertTrue(elapsed >= 200);
+        assertTrue(elapsed < 400);
+    }
+
+    @Test
+    public void get_payloadCopied() {
+        final BasicDBObject payload = new BasicDBObject("nested", new BasicDBObject("n", 1));
+        queue.send(payload);
+        ((BasicDBObject) payload.get("nested")).put("n", 2);
+
+        final BasicDBObject message = queue.get(new BasicDBObject(), Integer.MAX_VALUE);
+        assertEquals(1, ((BasicDBObject) message.get("nested")).get("n"));
+        assertTrue(message.get("id") instanceof ObjectId);
+    }
+
+    @Test
+    public void get_concurrent() throws InterruptedException {
+        for (int i = 0; i < 1000; ++i) {
+            queue.send(new BasicDBObject("key", i));
+        }
+
+        final Set<Object> keys = Collections.synchronizedSet(new HashSet<>());
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; ++t) {
+            threads.add(new Thread(() -> {
+                BasicDBObject message;
+                while ((message = queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0)) != null) {
+                    assertTrue(keys.add(message.get("key")));
+                    queue.ack(message);
+                }
+            }));
+        }
+
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1000, keys.size());
+        assertEquals(0, queue.count(new BasicDBObject()));
+    }
+
+    @Test
+    public void ensureGetIndex() {
+        queue.send(new BasicDBObject("type", "a").append("key", 0), new Date(), 0.5);
+        queue.ensureGetIndex(new BasicDBObject("type", 1));
+        queue.ensureGetIndex(new BasicDBObject("type", 1));
+
+        queue.send(new BasicDBObject("type", "b").append("key", 1));
+        queue.send(new BasicDBObject("type", "a").append("key", 2));
+        queue.send(new BasicDBObject("type", Arrays.asList("a", "b")).append("key", 3), new Date(), 1.0);
+        queue.send(new BasicDBObject("type", 1).append("key", 4));
+
+        assertEquals(2, queue.get(new BasicDBObject("type", "a"), Integer.MAX_VALUE, 0).get("key"));
+        assertEquals(0, queue.get(new BasicDBObject("type", "a"), Integer.MAX_VALUE, 0).get("key"));
+        assertEquals(3, queue.get(new BasicDBObject("type", "a"), Integer.MAX_VALUE, 0).get("key"));
+        assertNull(queue.get(new BasicDBObject("type", "a"), Integer.MAX_VALUE, 0));
+        assertEquals(4, queue.get(new BasicDBObject("type", 1L), Integer.MAX_VALUE, 0).get("key"));
+        assertEquals(1, queue.get(new BasicDBObject("type", "b").append("key", 1), Integer.MAX_VALUE, 0).get("key"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ensureGetIndex_badValue() {
+        queue.ensureGetIndex(new BasicDBObject("type", 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ensureCountIndex_badValue() {
+        queue.ensureCountIndex(new BasicDBObject("type", "1"), false);
+    }
+
+    @Test
+    public void count() {
+        queue.send(new BasicDBObject("type", "a"));
+        queue.send(new BasicDBObject("type", "a"), new Date(System.currentTimeMillis() + 60000));
+        queue.send(new BasicDBObject("type", "b"));
+        queue.get(new BasicDBObject("type", "b"), Integer.MAX_VALUE);
+
+        assertEquals(3, queue.count(new BasicDBObject()));
+        assertEquals(2, queue.count(new BasicDBObject("type", "a")));
+        assertEquals(2, queue.count(new BasicDBObject("type", "a"), false));
+        assertEquals(1, queue.count(new BasicDBObject(), true));
+    }
+
+    @Test
+    public void ack() {
+        queue.send(new BasicDBObject("key", 0));
+        queue.send(new BasicDBObject("key", 1));
+
+        final BasicDBObject message = queue.get(new BasicDBObject(), Integer.MAX_VALUE);
+        queue.ack(message);
+        queue.ack(message);
+
+        assertEquals(1, queue.count(new BasicDBObject()));
+        assertEquals(1, queue.count(new BasicDBObject("key", 1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ack_badId() {
+        queue.ack(new BasicDBObject("id", "abc"));
+    }
+
+    @Test
+    public void ackSend() {
+        queue.send(new BasicDBObject("key", 0));
+
+        final BasicDBObject message = queue.get(new BasicDBObject(), Integer.MAX_VALUE);
+        queue.ackSend(message, new BasicDBObject("key", 1), new Date(), 0.5);
+
+        assertEquals(1, queue.count(new BasicDBObject()));
+        final BasicDBObject sent = queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0);
+        assertEquals(1, sent.get("key"));
+        assertEquals(message.get("id"), sent.get("id"));
+    }
+
+    @Test
+    public void requeue() {
+        queue.send(new BasicDBObject("key", 0));
+        queue.send(new BasicDBObject("key", 1));
+
+        final BasicDBObject message = queue.get(new BasicDBObject(), Integer.MAX_VALUE);
+        message.put("key", 5);
+        queue.requeue(message);
+
+        assertEquals(0, queue.count(new BasicDBObject(), true));
+        //requeued behind the other message, with its payload unchanged
+        assertEquals(1, queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0).get("key"));
+        assertEquals(0, queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0).get("key"));
+    }
+
+    @Test
+    public void requeue_acked() {
+        queue.send(new BasicDBObject("key", 0));
+
+        final BasicDBObject message = queue.get(new BasicDBObject(), Integer.MAX_VALUE);
+        queue.ack(message);
+        queue.requeue(message, new Date(), 0.0);
+
+        final BasicDBObject requeued = queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0);
+        assertEquals(0, requeued.get("key"));
+        assertEquals(message.get("id"), requeued.get("id"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void send_nanPriority() {
+        queue.send(new BasicDBObject(), new Date(), Double.NaN);
+    }
+
+    @Test
+    public void messageQueue() {
+        final MessageQueue messageQueue = queue;
+        messageQueue.send(new BasicDBObject("key", 0));
+        messageQueue.ackSend(messageQueue.get(new BasicDBObject(), Integer.MAX_VALUE), new BasicDBObject("key", 1));
+        messageQueue.requeue(messageQueue.get(new BasicDBObject(), Integer.MAX_VALUE), new Date());
+
+        assertEquals(1, messageQueue.count(new BasicDBObject("key", 1), false));
+    }
+}
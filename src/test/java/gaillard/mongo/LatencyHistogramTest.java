@@ -0,0 +1,101 @@
+package gaillard.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void empty() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0.0, histogram.getMean(), 0.0);
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(99.0));
+    }
+
+    @Test
+    public void record() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; ++i) {
+            histogram.record(i * 1000L);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500.0, histogram.getMean(), 0.0);
+        assertEquals(1000000, histogram.getMax());
+
+        final long median = histogram.getPercentile(50.0);
+        assertTrue(median >= 500000 && median <= 500000 * 1.125);
+        final long p99 = histogram.getPercentile(99.0);
+        assertTrue(p99 >= 990000 && p99 <= 1000000);
+        assertEquals(1000000, histogram.getPercentile(100.0));
+    }
+
+    @Test
+    public void record_negative() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void record_concurrent() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; ++t) {
+            final int offset = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 10000; ++i) {
+                    histogram.record(i * 4 + offset);
+                }
+            }));
+        }
+
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(40000, histogram.getCount());
+        assertEquals(39999, histogram.getMax());
+    }
+
+    @Test
+    public void reset() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100);
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(50.0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void getPercentile_outOfRange() {
+        new LatencyHistogram().getPercentile(101.0);
+    }
+
+    @Test
+    public void index() {
+        for (long value = 0; value < 100000; ++value) {
+            final int index = LatencyHistogram.index(value);
+            assertTrue(value <= LatencyHistogram.upperBound(index));
+            assertTrue(index == 0 || value > LatencyHistogram.upperBound(index - 1));
+        }
+
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(LatencyHistogram.index(Long.MAX_VALUE)));
+    }
+}
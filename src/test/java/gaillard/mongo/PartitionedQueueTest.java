@@ -0,0 +1,235 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoClient;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.Before;
+
+public class PartitionedQueueTest {
+
+    private final List<DBCollection> collections = new ArrayList<>();
+    private final List<Queue> partitions = new ArrayList<>();
+
+    @Before
+    public void setup() throws UnknownHostException {
+        final DB db = new MongoClient().getDB("testing");
+        for (int i = 0; i < 3; ++i) {
+            final DBCollection collection = db.getCollection("messages" + i);
+            collection.drop();
+
+            collections.add(collection);
+            partitions.add(new Queue(collection));
+        }
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void construct_nullPartitions() {
+        new PartitionedQueue(null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void construct_noPartitions() {
+        new PartitionedQueue(new ArrayList<>());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void construct_nullPartition() {
+        new PartitionedQueue(Collections.singletonList(null));
+    }
+
+    @Test
+    public void send_roundRobin() {
+        final PartitionedQueue queue = new PartitionedQueue(partitions);
+        for (int i = 0; i < 6; ++i) {
+            queue.send(new BasicDBObject("key", i));
+        }
+
+        for (final DBCollection collection : collections) {
+            assertEquals(2, collection.count());
+        }
+
+        assertEquals(6, queue.count(new BasicDBObject()));
+        assertEquals(6, queue.count(new BasicDBObject(), false));
+        assertEquals(1, queue.count(new BasicDBObject("key", 3), CountMode.EXACT));
+    }
+
+    @Test
+    public void send_keyField() {
+        final PartitionedQueue queue = new PartitionedQueue(partitions, "account.id");
+        for (int i = 0; i < 5; ++i) {
+            queue.send(new BasicDBObject("account", new BasicDBObject("id", "abc")).append("i", i));
+        }
+
+        int used = 0;
+        for (final DBCollection collection : collections) {
+            if (collection.count() > 0) {
+                assertEquals(5, collection.count());
+                ++used;
+            }
+        }
+
+        assertEquals(1, used);
+
+        //messages of one key come out in order
+        for (int i = 0; i < 5; ++i) {
+            final BasicDBObject message = queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0);
+            assertEquals(i, message.get("i"));
+            queue.ack(message);
+        }
+    }
+
+    @Test
+    public void getAck() {
+        final PartitionedQueue queue = new PartitionedQueue(partitions);
+        for (int i = 0; i < 6; ++i) {
+            queue.send(new BasicDBObject("key", i));
+        }
+
+        final Set<Object> keys = new HashSet<>();
+        for (int i = 0; i < 6; ++i) {
+            final BasicDBObject message = queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0);
+            assertNotNull(message);
+            keys.add(message.get("key"));
+            queue.ack(message);
+        }
+
+        assertEquals(6, keys.size());
+        assertNull(queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0));
+        assertEquals(0, queue.count(new BasicDBObject()));
+    }
+
+    @Test
+    public void get_wait() {
+        final PartitionedQueue queue = new PartitionedQueue(partitions);
+        queue.setPollStrategy(new FixedPollStrategy(50));
+
+        final long start = System.currentTimeMillis();
+        assertNull(queue.get(new BasicDBObject(), Integer.MAX_VALUE, 200));
+
+        final long elapsed = System.currentTimeMillis() - start;
+        assertTrue(elapsed >= 200);
+        assertTrue(elapsed < 400);
+    }
+
+    @Test
+    public void get_affinity() {
+        final PartitionedQueue queue = new PartitionedQueue(partitions);
+        queue.setAffinity(true);
+
+        partitions.get(2).send(new BasicDBObject("key", 0));
+        partitions.get(2).send(new BasicDBObject("key", 1));
+        assertEquals(2, queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0).get(PartitionedQueue.PARTITION_FIELD));
+
+        partitions.get(0).send(new BasicDBObject("key", 2));
+        //starts again at the partition of the last hit rather than partition 0
+        assertEquals(1, queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0).get("key"));
+    }
+
+    @Test
+    public void requeue() {
+        final PartitionedQueue queue = new PartitionedQueue(partitions);
+        queue.send(new BasicDBObject("key", 0));
+
+        final BasicDBObject message = queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0);
+        assertTrue(queue.extendLease(message, 60));
+        assertEquals(1, queue.count(new BasicDBObject(), true));
+
+        queue.requeue(message);
+        assertEquals(1, queue.count(new BasicDBObject(), false));
+
+        final BasicDBObject requeued = queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0);
+        assertEquals(0, requeued.get("key"));
+        final DBCollection collection = collections.get((Integer) requeued.get(PartitionedQueue.PARTITION_FIELD));
+        assertFalse(((BasicDBObject) collection.findOne().get("payload")).containsField(PartitionedQueue.PARTITION_FIELD));
+    }
+
+    @Test
+    public void ackSend() {
+        final PartitionedQueue queue = new PartitionedQueue(partitions);
+        queue.send(new BasicDBObject("key", 0));
+
+        final BasicDBObject message = queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0);
+        queue.ackSend(message, new BasicDBObject("key", 1));
+
+        final BasicDBObject sent = queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0);
+        assertEquals(1, sent.get("key"));
+        assertEquals(message.get(PartitionedQueue.PARTITION_FIELD), sent.get(PartitionedQueue.PARTITION_FIELD));
+    }
+
+    @Test
+    public void sendAllGetBatch() {
+        final PartitionedQueue queue = new PartitionedQueue(partitions, "key");
+
+        final List<OutgoingMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 30; ++i) {
+            messages.add(new OutgoingMessage(new BasicDBObject("key", i), new Date(), 0.0));
+        }
+
+        assertTrue(queue.sendAll(messages, 10, true).isEmpty());
+        assertEquals(30, queue.count(new BasicDBObject()));
+
+        final List<BasicDBObject> batch = queue.getBatch(new BasicDBObject(), Integer.MAX_VALUE, 20);
+        assertEquals(20, batch.size());
+        assertEquals(20, queue.count(new BasicDBObject(), true));
+
+        assertEquals(5, queue.requeueAll(batch.subList(0, 5)));
+        assertEquals(15, queue.ackAll(batch.subList(5, 20)));
+        assertEquals(15, queue.count(new BasicDBObject()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ack_noPartition() {
+        final PartitionedQueue queue = new PartitionedQueue(partitions);
+        queue.send(new BasicDBObject());
+
+        final BasicDBObject message = partitions.get(0).get(new BasicDBObject(), Integer.MAX_VALUE, 0);
+        queue.ack(message);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ack_badPartition() {
+        new PartitionedQueue(partitions).ack(new BasicDBObject(PartitionedQueue.PARTITION_FIELD, 3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void send_reservedField() {
+        new PartitionedQueue(partitions).send(new BasicDBObject(PartitionedQueue.PARTITION_FIELD, 0));
+    }
+
+    @Test
+    public void get_payloadPartitionField() {
+        final MessageQueue queue = new PartitionedQueue(partitions);
+        queue.send(new BasicDBObject("partition", "users"));
+
+        final BasicDBObject message = queue.get(new BasicDBObject("partition", "users"), Integer.MAX_VALUE);
+        assertEquals("users", message.get("partition"));
+
+        queue.ack(message);
+        assertEquals(0, queue.count(new BasicDBObject()));
+    }
+
+    @Test
+    public void ensureGetIndex() {
+        final PartitionedQueue queue = new PartitionedQueue(Arrays.asList(partitions.get(0), partitions.get(1)));
+        queue.ensureGetIndex(new BasicDBObject("type", 1), new BasicDBObject());
+
+        assertEquals(3, collections.get(0).getIndexInfo().size());
+        assertEquals(3, collections.get(1).getIndexInfo().size());
+    }
+}
@@ -0,0 +1,97 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import java.net.UnknownHostException;
+import java.util.Date;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.Before;
+
+public class PreparedGetTest {
+
+    private DBCollection collection;
+    private Queue queue;
+
+    @Before
+    public void setup() throws UnknownHostException {
+        collection = new MongoClient().getDB("testing").getCollection("messages");
+        collection.drop();
+
+        queue = new Queue(collection);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void prepareGet_nullQuery() {
+        queue.prepareGet(null, 60);
+    }
+
+    @Test
+    public void get_reused() {
+        queue.send(new BasicDBObject("type", "a").append("key", 0));
+        queue.send(new BasicDBObject("type", "b").append("key", 1));
+        queue.send(new BasicDBObject("type", "a").append("key", 2), new Date(), 0.5);
+
+        final BasicDBObject query = new BasicDBObject("type", "a");
+        final PreparedGet prepared = queue.prepareGet(query, 60);
+
+        //changes after preparing are not seen
+        query.put("type", "b");
+
+        assertEquals(0, prepared.get().get("key"));
+        assertEquals(2, prepared.get().get("key"));
+        assertNull(prepared.get(0));
+
+        assertEquals(1, queue.count(new BasicDBObject("type", "b"), false));
+    }
+
+    @Test
+    public void get_resetTimestampPerCall() throws InterruptedException {
+        final PreparedGet prepared = queue.prepareGet(new BasicDBObject(), 60);
+
+        queue.send(new BasicDBObject("key", 0));
+        final long start = System.currentTimeMillis();
+        prepared.get();
+
+        Thread.sleep(100);
+
+        queue.send(new BasicDBObject("key", 1));
+        prepared.get();
+
+        final DBObject first = collection.findOne(new BasicDBObject("payload.key", 0));
+        final DBObject second = collection.findOne(new BasicDBObject("payload.key", 1));
+
+        final long firstReset = ((Date) first.get("resetTimestamp")).getTime();
+        final long secondReset = ((Date) second.get("resetTimestamp")).getTime();
+        assertTrue(firstReset >= start + 60000);
+        assertTrue(secondReset >= firstReset + 100);
+    }
+
+    @Test
+    public void get_wait() {
+        final PreparedGet prepared = queue.prepareGet(new BasicDBObject(), 60);
+
+        final long start = System.currentTimeMillis();
+        assertNull(prepared.get(200, new FixedPollStrategy(50)));
+
+        final long elapsed = System.currentTimeMillis() - start;
+        assertTrue(elapsed >= 200);
+        assertTrue(elapsed < 400);
+    }
+
+    @Test
+    public void get_earliestGetRefreshed() throws InterruptedException {
+        final PreparedGet prepared = queue.prepareGet(new BasicDBObject(), 60);
+
+        queue.send(new BasicDBObject(), new Date(System.currentTimeMillis() + 200));
+        assertNull(prepared.get(0));
+
+        assertNotNull(prepared.get(1000, new FixedPollStrategy(50)));
+    }
+}
@@ -0,0 +1,207 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoClient;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.Before;
+
+public class QueueConsumerTest {
+
+    private DBCollection collection;
+    private Queue queue;
+
+    @Before
+    public void setup() throws UnknownHostException {
+        collection = new MongoClient().getDB("testing").getCollection("messages");
+        collection.drop();
+
+        queue = new Queue(collection);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void construct_nullHandler() {
+        new QueueConsumer(queue, new BasicDBObject(), null, 1, 60);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void construct_badConcurrency() {
+        new QueueConsumer(queue, new BasicDBObject(), message -> { }, 0, 60);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void construct_negativeRetryDelay() {
+        new QueueConsumer(queue, new BasicDBObject(), message -> { }, 1, 60, -1);
+    }
+
+    @Test
+    public void consume() throws InterruptedException {
+        for (int i = 0; i < 20; ++i) {
+            queue.send(new BasicDBObject("key", i));
+        }
+        queue.send(new BasicDBObject("other", 0));
+
+        final Set<Object> keys = Collections.synchronizedSet(new HashSet<>());
+        final CountDownLatch latch = new CountDownLatch(20);
+        final QueueConsumer consumer = new QueueConsumer(queue, new BasicDBObject("key", new BasicDBObject("$exists", true)), message -> {
+            keys.add(message.get("key"));
+            latch.countDown();
+        }, 4, 60);
+
+        consumer.start();
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertTrue(consumer.shutdown(5000));
+
+        assertEquals(20, keys.size());
+        assertEquals(20, consumer.getProcessedCount());
+        assertEquals(0, consumer.getFailedCount());
+        assertTrue(consumer.getThroughput() > 0.0);
+        assertEquals(1, collection.count());
+    }
+
+    @Test
+    public void consume_failureRequeues() throws InterruptedException {
+        queue.send(new BasicDBObject("key", 0));
+
+        final AtomicInteger attempts = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(2);
+        final QueueConsumer consumer = new QueueConsumer(queue, new BasicDBObject(), message -> {
+            latch.countDown();
+            if (attempts.incrementAndGet() == 1) {
+                throw new Exception("first attempt fails");
+            }
+        }, 1, 60, 200);
+
+        final long start = System.currentTimeMillis();
+        consumer.start();
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 200);
+        assertTrue(consumer.shutdown(5000));
+
+        assertEquals(1, consumer.getFailedCount());
+        assertEquals(1, consumer.getProcessedCount());
+        assertEquals(0, collection.count());
+    }
+
+    @Test
+    public void consume_getFailureKeepsWorker() throws InterruptedException {
+        queue.setPayloadCodec(new PayloadCodec() {
+            @Override
+            public BasicDBObject encode(final BasicDBObject payload) {
+                return payload;
+            }
+
+            @Override
+            public BasicDBObject decode(final BasicDBObject stored) {
+                throw new IllegalStateException("undecodable");
+            }
+        });
+        queue.send(new BasicDBObject("key", 0));
+
+        //a resetDuration of 0 gives the message out again on every get(), failing each time
+        final QueueConsumer consumer = new QueueConsumer(queue, new BasicDBObject(), message -> { }, 1, 0);
+
+        consumer.start();
+        Thread.sleep(1500);
+        assertTrue(consumer.shutdown(5000));
+
+        assertTrue(consumer.getFailedCount() >= 2);
+        assertEquals(0, consumer.getProcessedCount());
+        assertEquals(0.0, consumer.getThroughput(), 0.0);
+    }
+
+    @Test
+    public void consume_errorKeepsWorker() throws InterruptedException {
+        queue.send(new BasicDBObject("key", 0));
+
+        final AtomicInteger attempts = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(2);
+        final QueueConsumer consumer = new QueueConsumer(queue, new BasicDBObject(), message -> {
+            latch.countDown();
+            if (attempts.incrementAndGet() == 1) {
+                throw new AssertionError("first attempt fails");
+            }
+        }, 1, 60);
+
+        consumer.start();
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertTrue(consumer.shutdown(5000));
+
+        assertEquals(1, consumer.getFailedCount());
+        assertEquals(1, consumer.getProcessedCount());
+        assertEquals(0, collection.count());
+    }
+
+    @Test
+    public void shutdown_finishesInFlight() throws InterruptedException {
+        queue.send(new BasicDBObject());
+
+        final CountDownLatch handling = new CountDownLatch(1);
+        final QueueConsumer consumer = new QueueConsumer(queue, new BasicDBObject(), message -> {
+            handling.countDown();
+            Thread.sleep(300);
+        }, 2, 60);
+
+        consumer.start();
+        assertTrue(handling.await(10, TimeUnit.SECONDS));
+        assertEquals(1, consumer.getInFlight());
+
+        assertTrue(consumer.shutdown(5000));
+
+        assertEquals(0, consumer.getInFlight());
+        assertEquals(1, consumer.getProcessedCount());
+        assertEquals(0, collection.count());
+    }
+
+    @Test
+    public void heartbeat() throws InterruptedException {
+        queue.send(new BasicDBObject());
+
+        final AtomicInteger handled = new AtomicInteger();
+        final CountDownLatch handling = new CountDownLatch(1);
+        final QueueConsumer consumer = new QueueConsumer(queue, new BasicDBObject(), message -> {
+            handled.incrementAndGet();
+            handling.countDown();
+            Thread.sleep(2500);
+        }, 1, 1, 0, 300);
+
+        consumer.start();
+        assertTrue(handling.await(10, TimeUnit.SECONDS));
+
+        //past the 1 second resetDuration the message is still leased
+        Thread.sleep(1500);
+        assertNull(queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0));
+
+        assertTrue(consumer.shutdown(5000));
+        assertEquals(1, handled.get());
+        assertEquals(1, consumer.getProcessedCount());
+        assertEquals(0, collection.count());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void construct_negativeHeartbeat() {
+        new QueueConsumer(queue, new BasicDBObject(), message -> { }, 1, 60, 0, -1);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void start_twice() {
+        final QueueConsumer consumer = new QueueConsumer(queue, new BasicDBObject(), message -> { }, 1, 60);
+        consumer.start();
+        try {
+            consumer.start();
+        } finally {
+            consumer.close();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import java.net.UnknownHostException;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.Before;
+
+public class QueuePublisherTest {
+
+    private DBCollection collection;
+    private Queue queue;
+    private ScheduledExecutorService executor;
+    private QueuePublisher publisher;
+
+    @Before
+    public void setup() throws UnknownHostException {
+        collection = new MongoClient().getDB("testing").getCollection("messages");
+        collection.drop();
+
+        queue = new Queue(collection);
+        executor = Executors.newScheduledThreadPool(2);
+        publisher = new QueuePublisher(queue, new BasicDBObject(), 60, 4, executor);
+    }
+
+    @After
+    public void teardown() {
+        executor.shutdownNow();
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void construct_nullQueue() {
+        new QueuePublisher(null, new BasicDBObject(), 60, 4, executor);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void construct_nullQuery() {
+        new QueuePublisher(queue, null, 60, 4, executor);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void construct_nullExecutor() {
+        new QueuePublisher(queue, new BasicDBObject(), 60, 4, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void construct_badBatchSize() {
+        new QueuePublisher(queue, new BasicDBObject(), 60, 0, executor);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void subscribe_null() {
+        publisher.subscribe(null);
+    }
+
+    @Test
+    public void subscribe_noDemand() throws InterruptedException {
+        queue.send(new BasicDBObject("key", 0));
+
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        assertNotNull(subscriber.subscription);
+
+        Thread.sleep(200);
+        assertNull(subscriber.messages.poll());
+        assertEquals(0, queue.count(new BasicDBObject(), true));
+    }
+
+    @Test
+    public void request() throws InterruptedException {
+        for (int i = 0; i < 10; ++i) {
+            queue.send(new BasicDBObject("key", i));
+        }
+
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(6);
+
+        for (int i = 0; i < 6; ++i) {
+            assertEquals(i, subscriber.next().get("key"));
+        }
+
+        //only the requested messages are claimed
+        Thread.sleep(200);
+        assertNull(subscriber.messages.poll());
+        assertEquals(6, queue.count(new BasicDBObject(), true));
+        assertEquals(4, queue.count(new BasicDBObject(), false));
+
+        subscriber.subscription.request(1);
+        assertEquals(6, subscriber.next().get("key"));
+    }
+
+    @Test
+    public void request_waitsForMessages() throws InterruptedException {
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(2);
+
+        Thread.sleep(100);
+        queue.send(new BasicDBObject("key", 0));
+        queue.send(new BasicDBObject("key", 1));
+
+        final Set<Object> keys = new HashSet<>();
+        keys.add(subscriber.next().get("key"));
+        keys.add(subscriber.next().get("key"));
+        assertEquals(2, keys.size());
+    }
+
+    @Test
+    public void request_unbounded() throws InterruptedException {
+        for (int i = 0; i < 10; ++i) {
+            queue.send(new BasicDBObject("key", i));
+        }
+
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        subscriber.subscription.request(1);
+
+        for (int i = 0; i < 10; ++i) {
+            assertEquals(i, subscriber.next().get("key"));
+        }
+    }
+
+    @Test
+    public void request_notPositive() throws InterruptedException {
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(0);
+
+        assertTrue(subscriber.errors.poll(5, TimeUnit.SECONDS) instanceof IllegalArgumentException);
+    }
+
+    @Test
+    public void cancel() throws InterruptedException {
+        queue.send(new BasicDBObject("key", 0));
+
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.cancel();
+        subscriber.subscription.request(1);
+
+        Thread.sleep(200);
+        assertNull(subscriber.messages.poll());
+        assertEquals(0, queue.count(new BasicDBObject(), true));
+    }
+
+    @Test
+    public void request_emptyQueueHoldsNoThread() throws InterruptedException {
+        final ScheduledExecutorService single = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final RecordingSubscriber idle = new RecordingSubscriber();
+            final RecordingSubscriber busy = new RecordingSubscriber();
+            new QueuePublisher(queue, new BasicDBObject("type", "a"), 60, 4, single).subscribe(idle);
+            new QueuePublisher(queue, new BasicDBObject("type", "b"), 60, 4, single).subscribe(busy);
+            idle.subscription.request(1);
+            busy.subscription.request(1);
+
+            //the idle subscription keeps polling for a message that never comes without keeping the one thread
+            Thread.sleep(500);
+            queue.send(new BasicDBObject("type", "b"));
+
+            assertEquals("b", busy.next().get("type"));
+            assertNull(idle.messages.poll());
+        } finally {
+            single.shutdownNow();
+        }
+    }
+
+    @Test
+    public void cancel_givesBackUndelivered() throws InterruptedException {
+        for (int i = 0; i < 3; ++i) {
+            queue.send(new BasicDBObject("key", i), new Date(), 0.5);
+        }
+
+        final RecordingSubscriber subscriber = new RecordingSubscriber() {
+            @Override
+            public void onNext(final BasicDBObject message) {
+                super.onNext(message);
+                subscription.cancel();
+            }
+        };
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(3);
+
+        assertEquals(0, subscriber.next().get("key"));
+        Thread.sleep(200);
+        assertNull(subscriber.messages.poll());
+        assertEquals(1, queue.count(new BasicDBObject(), true));
+        assertEquals(2, queue.count(new BasicDBObject(), false));
+
+        //given back in place rather than requeued at priority 0.0
+        for (final DBObject message : collection.find()) {
+            assertEquals(0.5, (Double) message.get("priority"), 0.0);
+        }
+    }
+
+    @Test
+    public void onNext_throws() throws InterruptedException {
+        for (int i = 0; i < 3; ++i) {
+            queue.send(new BasicDBObject("key", i));
+        }
+
+        final RecordingSubscriber subscriber = new RecordingSubscriber() {
+            @Override
+            public void onNext(final BasicDBObject message) {
+                super.onNext(message);
+                throw new RuntimeException();
+            }
+        };
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(3);
+
+        assertEquals(0, subscriber.next().get("key"));
+        Thread.sleep(200);
+        assertNull(subscriber.messages.poll());
+        assertNull(subscriber.errors.poll());
+        assertEquals(0, queue.count(new BasicDBObject(), true));
+        assertEquals(3, queue.count(new BasicDBObject(), false));
+    }
+
+    private static class RecordingSubscriber implements Flow.Subscriber<BasicDBObject> {
+
+        final BlockingQueue<BasicDBObject> messages = new LinkedBlockingQueue<>();
+        final BlockingQueue<Throwable> errors = new LinkedBlockingQueue<>();
+        volatile Flow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(final Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(final BasicDBObject message) {
+            messages.add(message);
+        }
+
+        @Override
+        public void onError(final Throwable throwable) {
+            errors.add(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+        }
+
+        BasicDBObject next() throws InterruptedException {
+            final BasicDBObject message = messages.poll(5, TimeUnit.SECONDS);
+            assertNotNull(message);
+            return message;
+        }
+    }
+}
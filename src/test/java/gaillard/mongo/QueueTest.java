@@ -4,11 +4,17 @@ import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
+import com.mongodb.WriteConcern;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import org.bson.types.ObjectId;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -78,6 +84,19 @@ public class QueueTest {
         assertEquals(expectedTwo, indexInfo.get(2).get("key"));
     }
 
+    @Test
+    public void ensureGetIndex_waitForEarliestGet() {
+        queue.setWaitForEarliestGet(true);
+        queue.ensureGetIndex(new BasicDBObject("type", 1), new BasicDBObject("boo", -1));
+
+        final List<DBObject> indexInfo = collection.getIndexInfo();
+
+        assertEquals(4, indexInfo.size());
+
+        final BasicDBObject expected = new BasicDBObject("running", 1).append("payload.type", 1).append("payload.boo", 1).append("earliestGet", 1);
+        assertEquals(expected, indexInfo.get(3).get("key"));
+    }
+
     @Test(expected = RuntimeException.class)
     public void ensureGetIndex_tooLongCollectionName() throws UnknownHostException {
         //121 chars
@@ -89,6 +108,55 @@ public class QueueTest {
         queue.ensureGetIndex();
     }
 
+    @Test
+    public void ensureGetIndex_twice() {
+        queue.ensureGetIndex(new BasicDBObject("type", 1));
+        new Queue(collection).ensureGetIndex(new BasicDBObject("type", 1));
+
+        final List<DBObject> indexInfo = collection.getIndexInfo();
+
+        assertEquals(3, indexInfo.size());
+        assertEquals("running_1_payload.type_1_priority_1_created_1_earliestGet_1", indexInfo.get(1).get("name"));
+        assertEquals("running_1_resetTimestamp_1", indexInfo.get(2).get("name"));
+    }
+
+    @Test
+    public void ensureGetIndex_cached() {
+        queue.ensureGetIndex(new BasicDBObject("type", 1));
+        collection.dropIndexes();
+
+        //indexes are read once per instance, so a second call makes no round trip and does not see the drop
+        queue.ensureGetIndex(new BasicDBObject("type", 1));
+        assertEquals(1, collection.getIndexInfo().size());
+
+        new Queue(collection).ensureGetIndex(new BasicDBObject("type", 1));
+        assertEquals(3, collection.getIndexInfo().size());
+    }
+
+    @Test
+    public void indexName() {
+        final BasicDBObject index = new BasicDBObject("running", 1).append("payload.type", -1).append("earliestGet", 1);
+
+        assertEquals("running_1_payload.type_-1_earliestGet_1", Queue.indexName("testing.messages", index));
+    }
+
+    @Test
+    public void indexName_long() {
+        final BasicDBObject index = new BasicDBObject("running", 1);
+        final BasicDBObject otherIndex = new BasicDBObject("running", 1);
+        for (int i = 0; i < 20; ++i) {
+            index.append("payload.someLongFieldName" + i, 1);
+            otherIndex.append("payload.someLongFieldName" + i, -1);
+        }
+
+        final String name = Queue.indexName("testing.messages", index);
+
+        assertEquals(127, "testing.messages.$".length() + name.length());
+        assertEquals(name, Queue.indexName("testing.messages", index));
+        assertNotEquals(name, Queue.indexName("testing.messages", otherIndex));
+        assertTrue(name.startsWith("running_1_payload.someLongFieldName0_1_"));
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void ensureGetIndex_badBeforeSortValue() {
         queue.ensureGetIndex(new BasicDBObject("field", "NotAnInt"));
@@ -158,6 +226,7 @@ public class QueueTest {
         assertNotEquals(message.get("id"), result.get("id"));
 
         message.put("id", result.get("id"));
+        message.put(Queue.CLAIM_FIELD, result.get(Queue.CLAIM_FIELD));
         assertEquals(message, result);
     }
 
@@ -172,6 +241,7 @@ public class QueueTest {
         final BasicDBObject result = queue.get(new BasicDBObject("one.two.three", new BasicDBObject("$gte", 5)), Integer.MAX_VALUE);
 
         messageOne.put("id", result.get("id"));
+        messageOne.put(Queue.CLAIM_FIELD, result.get(Queue.CLAIM_FIELD));
         assertEquals(messageOne, result);
     }
 
@@ -264,6 +334,58 @@ public class QueueTest {
         assertTrue(new Date().getTime() - start.getTime() < 2000);
     }
 
+    @Test
+    public void get_pollStrategy() {
+        final int[] emptyPolls = new int[1];
+        final int[] hits = new int[1];
+        final PollStrategy strategy = new PollStrategy() {
+            @Override
+            public long delay(final int count) {
+                emptyPolls[0] = count;
+                return 50;
+            }
+
+            @Override
+            public void onHit() {
+                ++hits[0];
+            }
+        };
+
+        assertNull(queue.get(new BasicDBObject(), Integer.MAX_VALUE, 220, strategy));
+        assertTrue(emptyPolls[0] > 1 && emptyPolls[0] <= 5);
+        assertEquals(0, hits[0]);
+
+        queue.send(new BasicDBObject());
+
+        assertNotNull(queue.get(new BasicDBObject(), Integer.MAX_VALUE, 220, strategy));
+        assertEquals(1, hits[0]);
+    }
+
+    @Test
+    public void get_queuePollStrategy() {
+        queue.setPollStrategy(new FixedPollStrategy(1000));
+
+        final Date start = new Date();
+
+        queue.get(new BasicDBObject(), Integer.MAX_VALUE, 200);
+
+        final long elapsed = new Date().getTime() - start.getTime();
+
+        //a poll longer than the wait is cut short
+        assertTrue(elapsed >= 200);
+        assertTrue(elapsed < 400);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void get_nullPollStrategy() {
+        queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0, null);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void setPollStrategy_null() {
+        queue.setPollStrategy(null);
+    }
+
     @Test
     public void get_earliestGet() throws InterruptedException {
         queue.send(new BasicDBObject(), new Date(System.currentTimeMillis() + 200));
@@ -275,6 +397,39 @@ public class QueueTest {
         assertNotNull(queue.get(new BasicDBObject(), Integer.MAX_VALUE));
     }
 
+    @Test
+    public void get_waitForEarliestGet() {
+        queue.setWaitForEarliestGet(true);
+        queue.send(new BasicDBObject("key", 0), new Date(System.currentTimeMillis() + 300));
+        queue.send(new BasicDBObject("key", 1), new Date(System.currentTimeMillis() + 5000));
+
+        final Date start = new Date();
+
+        //poll far longer than the delay, so only waiting for earliestGet can return in time
+        final BasicDBObject result = queue.get(new BasicDBObject(), Integer.MAX_VALUE, 3000, 10000);
+
+        final long elapsed = new Date().getTime() - start.getTime();
+
+        assertEquals(0, result.get("key"));
+        assertTrue(elapsed >= 250);
+        assertTrue(elapsed < 1000);
+    }
+
+    @Test
+    public void get_waitForEarliestGetQuery() {
+        queue.setWaitForEarliestGet(true);
+        queue.send(new BasicDBObject("key", 0), new Date(System.currentTimeMillis() + 100));
+
+        final Date start = new Date();
+
+        //no delayed message matches, so the poll is used and outlasts the wait
+        assertNull(queue.get(new BasicDBObject("key", 1), Integer.MAX_VALUE, 300, 10000));
+
+        final long elapsed = new Date().getTime() - start.getTime();
+        assertTrue(elapsed >= 300);
+        assertTrue(elapsed < 500);
+    }
+
     @Test
     public void get_resetStuck() {
         queue.send(new BasicDBObject());
@@ -285,6 +440,83 @@ public class QueueTest {
         assertNotNull(queue.get(new BasicDBObject(), Integer.MAX_VALUE));
     }
 
+    @Test
+    public void getBatch() {
+        queue.send(new BasicDBObject("key", 1), new Date(), 0.5);
+        queue.send(new BasicDBObject("key", 2), new Date(), 0.4);
+        queue.send(new BasicDBObject("key", 3), new Date(), 0.3);
+        queue.send(new BasicDBObject("other", 4));
+
+        final List<BasicDBObject> results = queue.getBatch(new BasicDBObject("key", new BasicDBObject("$exists", true)), Integer.MAX_VALUE, 2);
+
+        assertEquals(2, results.size());
+        assertEquals(3, results.get(0).get("key"));
+        assertEquals(2, results.get(1).get("key"));
+        assertTrue(results.get(0).get("id") instanceof ObjectId);
+
+        assertEquals(2, queue.count(new BasicDBObject(), true));
+
+        //only the unclaimed message matching the query is left
+        final List<BasicDBObject> rest = queue.getBatch(new BasicDBObject("key", new BasicDBObject("$exists", true)), Integer.MAX_VALUE, 10, 0, 0);
+        assertEquals(1, rest.size());
+        assertEquals(1, rest.get(0).get("key"));
+    }
+
+    @Test
+    public void getBatch_beforeAck() {
+        queue.send(new BasicDBObject());
+        queue.send(new BasicDBObject());
+
+        assertEquals(2, queue.getBatch(new BasicDBObject(), Integer.MAX_VALUE, 5).size());
+
+        assertTrue(queue.getBatch(new BasicDBObject(), Integer.MAX_VALUE, 5, 0, 0).isEmpty());
+        assertNull(queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0));
+    }
+
+    @Test
+    public void getBatch_ackAfter() {
+        queue.send(new BasicDBObject("key", 0));
+
+        final BasicDBObject result = queue.getBatch(new BasicDBObject(), Integer.MAX_VALUE, 5).get(0);
+        final BasicDBObject expected = new BasicDBObject("key", 0).append("id", result.get("id"))
+                .append(Queue.CLAIM_FIELD, result.get(Queue.CLAIM_FIELD));
+        assertEquals(expected, result);
+
+        queue.ack(result);
+        assertEquals(0, collection.count());
+    }
+
+    @Test
+    public void getBatch_resetStuck() {
+        queue.send(new BasicDBObject());
+
+        assertEquals(1, queue.getBatch(new BasicDBObject(), 0, 5).size());
+
+        assertEquals(1, queue.getBatch(new BasicDBObject(), Integer.MAX_VALUE, 5).size());
+    }
+
+    @Test
+    public void getBatch_wait() {
+        final Date start = new Date();
+
+        assertTrue(queue.getBatch(new BasicDBObject(), Integer.MAX_VALUE, 5, 200, 200).isEmpty());
+
+        final long elapsed = new Date().getTime() - start.getTime();
+
+        assertTrue(elapsed >= 200);
+        assertTrue(elapsed < 400);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void getBatch_badMaxMessages() {
+        queue.getBatch(new BasicDBObject(), Integer.MAX_VALUE, 0);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void getBatch_nullQuery() {
+        queue.getBatch(null, Integer.MAX_VALUE, 1);
+    }
+
     @Test
     public void count_running() {
         assertEquals(0, queue.count(new BasicDBObject(), true));
@@ -366,6 +598,92 @@ public class QueueTest {
         queue.ack(null);
     }
 
+    @Test
+    public void ackAll() {
+        queue.send(new BasicDBObject("key", 0));
+        queue.send(new BasicDBObject("key", 1));
+        queue.send(new BasicDBObject("key", 2));
+
+        final List<BasicDBObject> results = queue.getBatch(new BasicDBObject(), Integer.MAX_VALUE, 2);
+        assertEquals(3, collection.count());
+
+        assertEquals(2, queue.ackAll(results));
+        assertEquals(1, collection.count());
+        assertEquals(2, ((BasicDBObject) collection.findOne().get("payload")).get("key"));
+
+        //already removed
+        assertEquals(0, queue.ackAll(results));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ackAll_wrongIdType() {
+        queue.ackAll(Arrays.asList(new BasicDBObject("id", ObjectId.get()), new BasicDBObject("id", false)));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void ackAll_null() {
+        queue.ackAll(null);
+    }
+
+    @Test
+    public void extendLease() {
+        queue.send(new BasicDBObject());
+
+        final BasicDBObject result = queue.get(new BasicDBObject(), 0);
+        assertTrue(queue.extendLease(result, Integer.MAX_VALUE));
+
+        //would have been reset without the extension
+        assertNull(queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0));
+
+        assertTrue(queue.extendLease(result, 0));
+        assertNotNull(queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0));
+    }
+
+    @Test
+    public void extendLease_notRunning() {
+        queue.send(new BasicDBObject());
+
+        final BasicDBObject result = queue.get(new BasicDBObject(), Integer.MAX_VALUE);
+        queue.requeue(result);
+        assertFalse(queue.extendLease(result, Integer.MAX_VALUE));
+
+        queue.ack(result);
+        assertFalse(queue.extendLease(result, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void extendLease_claimedAgain() {
+        queue.send(new BasicDBObject());
+
+        final BasicDBObject stale = queue.get(new BasicDBObject(), 0);
+        final BasicDBObject current = queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0);
+        assertEquals(stale.get("id"), current.get("id"));
+
+        assertFalse(queue.extendLease(stale, Integer.MAX_VALUE));
+        assertTrue(queue.extendLease(current, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void extendLease_claimedAgainBatch() {
+        queue.send(new BasicDBObject());
+
+        final BasicDBObject stale = queue.getBatch(new BasicDBObject(), 0, 10).get(0);
+        final BasicDBObject current = queue.getBatch(new BasicDBObject(), Integer.MAX_VALUE, 10).get(0);
+
+        assertFalse(queue.extendLease(stale, Integer.MAX_VALUE));
+        assertTrue(queue.extendLease(current, Integer.MAX_VALUE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void extendLease_wrongIdType() {
+        queue.extendLease(new BasicDBObject("id", 1), 60);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void extendLease_null() {
+        queue.extendLease(null, 60);
+    }
+
     @Test
     public void ackSend() {
         final BasicDBObject message = new BasicDBObject("key", 0);
@@ -453,6 +771,57 @@ public class QueueTest {
         assertEquals(expected, actual);
     }
 
+    @Test
+    public void giveBack() {
+        final Date earliestGet = new Date(System.currentTimeMillis() - 60000);
+        queue.send(new BasicDBObject("key", 0), earliestGet, 0.8);
+        final BasicDBObject sent = (BasicDBObject) collection.findOne();
+
+        final BasicDBObject result = queue.get(new BasicDBObject(), Integer.MAX_VALUE);
+        assertTrue(queue.giveBack(result));
+
+        final BasicDBObject actual = (BasicDBObject) collection.findOne();
+        assertEquals(false, actual.get("running"));
+        assertEquals(new Date(Long.MAX_VALUE), actual.get("resetTimestamp"));
+        assertEquals(earliestGet, actual.get("earliestGet"));
+        assertEquals(0.8, actual.getDouble("priority"), 0.0);
+        assertEquals(sent.get("created"), actual.get("created"));
+        assertFalse(actual.containsField("claimId"));
+
+        //given back once, or lost to another claim
+        assertFalse(queue.giveBack(result));
+        final BasicDBObject claimedAgain = queue.get(new BasicDBObject(), Integer.MAX_VALUE);
+        assertFalse(queue.giveBack(result));
+        assertTrue(queue.giveBack(claimedAgain));
+    }
+
+    @Test
+    public void requeue_changesNotSaved() {
+        queue.send(new BasicDBObject("key", 0));
+
+        final BasicDBObject result = queue.get(new BasicDBObject(), Integer.MAX_VALUE);
+        result.put("key", 1);
+        queue.requeue(result);
+
+        assertEquals(new BasicDBObject("key", 0), collection.findOne().get("payload"));
+    }
+
+    @Test
+    public void requeue_removed() {
+        queue.send(new BasicDBObject("key", 0));
+
+        final BasicDBObject result = queue.get(new BasicDBObject(), Integer.MAX_VALUE);
+        collection.remove(new BasicDBObject());
+
+        queue.requeue(result);
+
+        assertEquals(1, collection.count());
+        final BasicDBObject actual = (BasicDBObject)collection.findOne();
+        assertEquals(result.get("id"), actual.get("_id"));
+        assertEquals(new BasicDBObject("key", 0), actual.get("payload"));
+        assertEquals(false, actual.get("running"));
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void requeue_wrongIdType() {
         queue.requeue(new BasicDBObject("id", new BasicDBObject()));
@@ -473,6 +842,52 @@ public class QueueTest {
         queue.requeue(new BasicDBObject("id", ObjectId.get()), null);
     }
 
+    @Test
+    public void requeueAll() {
+        queue.send(new BasicDBObject("key", 0));
+        queue.send(new BasicDBObject("key", 1));
+
+        final List<BasicDBObject> results = queue.getBatch(new BasicDBObject(), Integer.MAX_VALUE, 2);
+
+        final Date expectedEarliestGet = new Date();
+        final double expectedPriority = 0.8;
+        final Date timeBeforeRequeue = new Date();
+        assertEquals(2, queue.requeueAll(results, expectedEarliestGet, expectedPriority));
+
+        assertEquals(2, collection.count());
+        assertEquals(2, queue.count(new BasicDBObject(), false));
+
+        final BasicDBObject actual = (BasicDBObject)collection.findOne(new BasicDBObject("_id", results.get(1).get("id")));
+
+        final Date actualCreated = actual.getDate("created");
+        assertTrue(actualCreated.compareTo(timeBeforeRequeue) >= 0 && actualCreated.compareTo(new Date()) <= 0);
+
+        final BasicDBObject expected = new BasicDBObject("_id", results.get(1).get("id"))
+                .append("payload", new BasicDBObject("key", 1))
+                .append("running", false)
+                .append("resetTimestamp", new Date(Long.MAX_VALUE))
+                .append("earliestGet", expectedEarliestGet)
+                .append("priority", expectedPriority)
+                .append("created", actual.get("created"));
+
+        assertEquals(expected, actual);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requeueAll_wrongIdType() {
+        queue.requeueAll(Arrays.asList(new BasicDBObject("id", "notAnObjectId")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requeueAll_nanPriority() {
+        queue.requeueAll(Arrays.asList(new BasicDBObject("id", ObjectId.get())), new Date(), Double.NaN);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void requeueAll_nullEarliestGet() {
+        queue.requeueAll(Arrays.asList(new BasicDBObject("id", ObjectId.get())), null, 0.0);
+    }
+
     @Test
     public void send() {
         final BasicDBObject message = new BasicDBObject("key", 0);
@@ -514,4 +929,568 @@ public class QueueTest {
     public void send_nullEarliestGet() {
         queue.send(new BasicDBObject("id", ObjectId.get()), null);
     }
+
+    @Test
+    public void sendAll() {
+        final Date expectedEarliestGet = new Date();
+        final double expectedPriority = 0.8;
+        final Date timeBeforeSend = new Date();
+        final List<BasicDBObject> failed = queue.sendAll(
+                Arrays.asList(new BasicDBObject("key", 0), new BasicDBObject("key", 1)), expectedEarliestGet, expectedPriority);
+
+        assertTrue(failed.isEmpty());
+        assertEquals(2, collection.count());
+
+        final BasicDBObject actual = (BasicDBObject)collection.findOne(new BasicDBObject("payload.key", 1));
+
+        final Date actualCreated = actual.getDate("created");
+        assertTrue(actualCreated.compareTo(timeBeforeSend) >= 0 && actualCreated.compareTo(new Date()) <= 0);
+
+        final BasicDBObject expected = new BasicDBObject("_id", actual.get("_id"))
+                .append("payload", new BasicDBObject("key", 1))
+                .append("running", false)
+                .append("resetTimestamp", new Date(Long.MAX_VALUE))
+                .append("earliestGet", expectedEarliestGet)
+                .append("priority", expectedPriority)
+                .append("created", actual.get("created"));
+
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void sendAll_multipleBatches() {
+        final List<OutgoingMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 5; ++i) {
+            messages.add(new OutgoingMessage(new BasicDBObject("key", i), new Date(), 5 - i));
+        }
+
+        assertTrue(queue.sendAll(messages, 2, true).isEmpty());
+        assertEquals(5, collection.count());
+
+        assertEquals(4, queue.get(new BasicDBObject(), Integer.MAX_VALUE).get("key"));
+    }
+
+    @Test
+    public void sendAll_orderedFailure() {
+        collection.createIndex(new BasicDBObject("payload.key", 1), new BasicDBObject("unique", true));
+
+        final List<OutgoingMessage> messages = Arrays.asList(
+                new OutgoingMessage(new BasicDBObject("key", 0)),
+                new OutgoingMessage(new BasicDBObject("key", 0)),
+                new OutgoingMessage(new BasicDBObject("key", 1)),
+                new OutgoingMessage(new BasicDBObject("key", 2)));
+
+        final List<BasicDBObject> failed = queue.sendAll(messages, 3, true);
+
+        assertEquals(Arrays.asList(new BasicDBObject("key", 0), new BasicDBObject("key", 1), new BasicDBObject("key", 2)), failed);
+        assertEquals(1, collection.count());
+    }
+
+    @Test
+    public void sendAll_unorderedFailure() {
+        collection.createIndex(new BasicDBObject("payload.key", 1), new BasicDBObject("unique", true));
+
+        final List<OutgoingMessage> messages = Arrays.asList(
+                new OutgoingMessage(new BasicDBObject("key", 0)),
+                new OutgoingMessage(new BasicDBObject("key", 0)),
+                new OutgoingMessage(new BasicDBObject("key", 1)),
+                new OutgoingMessage(new BasicDBObject("key", 1)));
+
+        final List<BasicDBObject> failed = queue.sendAll(messages, 3, false);
+
+        assertEquals(Arrays.asList(new BasicDBObject("key", 0), new BasicDBObject("key", 1)), failed);
+        assertEquals(2, collection.count());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sendAll_badBatchSize() {
+        queue.sendAll(new ArrayList<OutgoingMessage>(), 0, true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sendAll_nanPriority() {
+        queue.sendAll(Arrays.asList(new BasicDBObject()), new Date(), Double.NaN);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void sendAll_nullPayloads() {
+        queue.sendAll(null, new Date(), 0.0);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void sendAll_nullEarliestGet() {
+        queue.sendAll(Arrays.asList(new BasicDBObject()), null, 0.0);
+    }
+
+    @Test
+    public void count_cached() throws InterruptedException {
+        queue.setCountCacheTtl(100);
+        queue.send(new BasicDBObject("type", "a"));
+
+        assertEquals(1, queue.count(new BasicDBObject("type", "a"), CountMode.CACHED));
+
+        queue.send(new BasicDBObject("type", "a"));
+
+        //served from the cache until the ttl passes, then refreshed in the background
+        assertEquals(1, queue.count(new BasicDBObject("type", "a"), CountMode.CACHED));
+        Thread.sleep(150);
+        queue.count(new BasicDBObject("type", "a"), CountMode.CACHED);
+        Thread.sleep(100);
+        assertEquals(2, queue.count(new BasicDBObject("type", "a"), CountMode.CACHED));
+
+        assertEquals(2, queue.count(new BasicDBObject("type", "a"), false, CountMode.CACHED));
+        assertEquals(0, queue.count(new BasicDBObject("type", "a"), true, CountMode.CACHED));
+    }
+
+    @Test
+    public void count_maintained() {
+        final DBCollection counters = collection.getDB().getCollection("counters");
+        counters.drop();
+
+        queue.send(new BasicDBObject("type", "a"));
+
+        queue.setCountCollection(counters);
+        queue.registerCountShape("type");
+
+        queue.send(new BasicDBObject("type", "a"));
+        queue.sendAll(Arrays.asList(new BasicDBObject("type", "b"), new BasicDBObject("type", "a")), new Date(), 0.0);
+
+        assertEquals(3, queue.count(new BasicDBObject("type", "a"), CountMode.MAINTAINED));
+        assertEquals(1, queue.count(new BasicDBObject("type", "b"), CountMode.MAINTAINED));
+        assertEquals(0, queue.count(new BasicDBObject("type", "c"), CountMode.MAINTAINED));
+
+        final BasicDBObject message = queue.get(new BasicDBObject("type", "a"), Integer.MAX_VALUE);
+        assertEquals(1, queue.count(new BasicDBObject("type", "a"), true, CountMode.MAINTAINED));
+        assertEquals(2, queue.count(new BasicDBObject("type", "a"), false, CountMode.MAINTAINED));
+
+        queue.requeue(message);
+        assertEquals(0, queue.count(new BasicDBObject("type", "a"), true, CountMode.MAINTAINED));
+
+        final List<BasicDBObject> batch = queue.getBatch(new BasicDBObject("type", "a"), Integer.MAX_VALUE, 2);
+        assertEquals(2, queue.count(new BasicDBObject("type", "a"), true, CountMode.MAINTAINED));
+
+        queue.ackAll(batch);
+        assertEquals(1, queue.count(new BasicDBObject("type", "a"), CountMode.MAINTAINED));
+        assertEquals(0, queue.count(new BasicDBObject("type", "a"), true, CountMode.MAINTAINED));
+
+        queue.ack(queue.get(new BasicDBObject("type", "b"), Integer.MAX_VALUE));
+        assertEquals(0, queue.count(new BasicDBObject("type", "b"), CountMode.MAINTAINED));
+
+        assertEquals(queue.count(new BasicDBObject("type", "a")), queue.count(new BasicDBObject("type", "a"), CountMode.MAINTAINED));
+    }
+
+    @Test
+    public void count_maintainedResetStuck() {
+        final DBCollection counters = collection.getDB().getCollection("counters");
+        counters.drop();
+
+        queue.setCountCollection(counters);
+        queue.registerCountShape("type");
+
+        queue.send(new BasicDBObject("type", "a"));
+        assertNotNull(queue.get(new BasicDBObject(), 0));
+        assertEquals(1, queue.count(new BasicDBObject("type", "a"), true, CountMode.MAINTAINED));
+
+        assertEquals(1, queue.resetStuck());
+        assertEquals(0, queue.count(new BasicDBObject("type", "a"), true, CountMode.MAINTAINED));
+        assertEquals(1, queue.count(new BasicDBObject("type", "a"), false, CountMode.MAINTAINED));
+    }
+
+    @Test
+    public void count_maintainedPartialBulk() {
+        final DBCollection counters = collection.getDB().getCollection("counters");
+        counters.drop();
+
+        queue.setCountCollection(counters);
+        queue.registerCountShape("type");
+
+        for (int i = 0; i < 4; ++i) {
+            queue.send(new BasicDBObject("type", "a"));
+        }
+
+        final List<BasicDBObject> batch = queue.getBatch(new BasicDBObject(), Integer.MAX_VALUE, 4);
+        queue.ack(batch.get(0));
+
+        //a retried ackAll that finds one message already gone still moves the counters of the others
+        assertEquals(1, queue.requeueAll(batch.subList(0, 2)));
+        assertEquals(1, queue.count(new BasicDBObject("type", "a"), false, CountMode.MAINTAINED));
+        assertEquals(2, queue.count(new BasicDBObject("type", "a"), true, CountMode.MAINTAINED));
+
+        assertEquals(2, queue.ackAll(Arrays.asList(batch.get(0), batch.get(2), batch.get(3))));
+        assertEquals(1, queue.count(new BasicDBObject("type", "a"), CountMode.MAINTAINED));
+        assertEquals(0, queue.count(new BasicDBObject("type", "a"), true, CountMode.MAINTAINED));
+    }
+
+    @Test
+    public void recount() {
+        final DBCollection counters = collection.getDB().getCollection("counters");
+        counters.drop();
+
+        queue.setCountCollection(counters);
+        queue.registerCountShape("type");
+
+        queue.send(new BasicDBObject("type", "a"));
+        counters.drop();
+
+        queue.recount();
+        assertEquals(1, queue.count(new BasicDBObject("type", "a"), CountMode.MAINTAINED));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void count_maintainedUnregisteredShape() {
+        final DBCollection counters = collection.getDB().getCollection("counters");
+        counters.drop();
+
+        queue.setCountCollection(counters);
+        queue.registerCountShape("type");
+
+        queue.count(new BasicDBObject("other", "a"), CountMode.MAINTAINED);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void count_maintainedOperator() {
+        final DBCollection counters = collection.getDB().getCollection("counters");
+        counters.drop();
+
+        queue.setCountCollection(counters);
+        queue.registerCountShape("type");
+
+        queue.count(new BasicDBObject("type", new BasicDBObject("$gt", "a")), CountMode.MAINTAINED);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void registerCountShape_noCountCollection() {
+        queue.registerCountShape("type");
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void count_nullMode() {
+        queue.count(new BasicDBObject(), (CountMode) null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setCountCacheTtl_negative() {
+        queue.setCountCacheTtl(-1);
+    }
+
+    @Test
+    public void writeConcern_perCall() {
+        queue.send(new BasicDBObject("key", 0), new Date(), 0.0, WriteConcern.ACKNOWLEDGED);
+
+        final BasicDBObject message = queue.get(new BasicDBObject(), Integer.MAX_VALUE);
+        queue.requeue(message, new Date(), 0.0, WriteConcern.ACKNOWLEDGED);
+
+        final BasicDBObject requeued = queue.get(new BasicDBObject(), Integer.MAX_VALUE);
+        queue.ackSend(requeued, new BasicDBObject("key", 1), new Date(), 0.0, WriteConcern.ACKNOWLEDGED);
+
+        final BasicDBObject sent = queue.get(new BasicDBObject(), Integer.MAX_VALUE);
+        assertEquals(1, sent.get("key"));
+        queue.ack(sent, WriteConcern.ACKNOWLEDGED);
+
+        assertEquals(0, collection.count());
+    }
+
+    @Test
+    public void writeConcern_unacknowledged() {
+        queue.setWriteConcern(WriteConcern.UNACKNOWLEDGED);
+
+        queue.send(new BasicDBObject("key", 0));
+
+        //the insert may not be applied yet, so wait for it
+        final BasicDBObject message = queue.get(new BasicDBObject(), Integer.MAX_VALUE, 1000, 10);
+        assertNotNull(message);
+        queue.ack(message);
+
+        queue.setWriteConcern(null);
+        assertNull(queue.get(new BasicDBObject(), Integer.MAX_VALUE, 1000, 10));
+    }
+
+    @Test
+    public void requeue_unacknowledgedRemoved() throws InterruptedException {
+        queue.send(new BasicDBObject("key", 0));
+        final BasicDBObject message = queue.get(new BasicDBObject(), Integer.MAX_VALUE);
+        collection.remove(new BasicDBObject());
+
+        //the result is unknown so the removed message is not sent again
+        queue.requeue(message, new Date(), 0.0, WriteConcern.UNACKNOWLEDGED);
+        Thread.sleep(100);
+
+        assertEquals(0, collection.count());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void send_nullWriteConcern() {
+        queue.send(new BasicDBObject(), new Date(), 0.0, null);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void ack_nullWriteConcern() {
+        queue.ack(new BasicDBObject("id", new ObjectId()), null);
+    }
+
+    @Test
+    public void get_payloadCodec() {
+        final StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 1000; ++i) {
+            body.append("repetitive ");
+        }
+
+        queue.setPayloadCodec(new CompressingPayloadCodec("type"));
+        queue.send(new BasicDBObject("type", "a").append("body", body.toString()));
+
+        final DBObject stored = (DBObject) collection.findOne().get("payload");
+        assertEquals("a", stored.get("type"));
+        assertFalse(stored.containsField("body"));
+
+        assertEquals(1, queue.count(new BasicDBObject("type", "a")));
+
+        final BasicDBObject message = queue.get(new BasicDBObject("type", "a"), Integer.MAX_VALUE);
+        assertEquals(body.toString(), message.get("body"));
+
+        queue.requeue(message);
+        assertEquals(1, queue.getBatch(new BasicDBObject("type", "a"), Integer.MAX_VALUE, 10).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void get_payloadCodecNotPlain() {
+        queue.setPayloadCodec(new CompressingPayloadCodec("type"));
+        queue.get(new BasicDBObject("body", "a"), Integer.MAX_VALUE, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void count_payloadCodecNotPlain() {
+        queue.setPayloadCodec(new CompressingPayloadCodec("type"));
+        queue.count(new BasicDBObject("type", "a").append("body", "a"), false);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ensureGetIndex_payloadCodecNotPlain() {
+        queue.setPayloadCodec(new GridFsPayloadCodec(collection.getDB(), "payloads", 1024, "type"));
+        queue.ensureGetIndex(new BasicDBObject("type", 1), new BasicDBObject("body", 1));
+    }
+
+    @Test
+    public void count_payloadCodecNestedPlain() {
+        queue.setPayloadCodec(new CompressingPayloadCodec("meta.type"));
+        queue.ensureCountIndex(new BasicDBObject("meta.type", 1), false);
+        queue.send(new BasicDBObject("meta", new BasicDBObject("type", "a")));
+
+        assertEquals(1, queue.count(new BasicDBObject("meta.type", "a")));
+    }
+
+    @Test
+    public void ack_gridFsPayloadCodec() {
+        collection.getDB().getCollection("payloads.files").drop();
+        collection.getDB().getCollection("payloads.chunks").drop();
+        final DBCollection files = collection.getDB().getCollection("payloads.files");
+
+        final StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 1000; ++i) {
+            body.append(i);
+        }
+
+        queue.setPayloadCodec(new GridFsPayloadCodec(collection.getDB(), "payloads", 1024, "type"));
+        queue.send(new BasicDBObject("type", "a").append("body", body.toString()));
+        queue.sendAll(Arrays.asList(new BasicDBObject("type", "b").append("body", body.toString())), new Date(), 0.0);
+        assertEquals(2, files.count());
+
+        final BasicDBObject message = queue.get(new BasicDBObject("type", "a"), Integer.MAX_VALUE);
+        assertEquals(body.toString(), message.get("body"));
+
+        queue.ackSend(message, new BasicDBObject("type", "a").append("body", body.toString() + "more"));
+        assertEquals(2, files.count());
+
+        final BasicDBObject sent = queue.get(new BasicDBObject("type", "a"), Integer.MAX_VALUE);
+        assertEquals(body.toString() + "more", sent.get("body"));
+        queue.ack(sent);
+
+        queue.ackAll(queue.getBatch(new BasicDBObject("type", "b"), Integer.MAX_VALUE, 10));
+
+        assertEquals(0, collection.count());
+        assertEquals(0, files.count());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void setListener_null() {
+        queue.setListener(null);
+    }
+
+    @Test
+    public void listener() {
+        final HistogramQueueListener listener = new HistogramQueueListener();
+        queue.setListener(listener);
+
+        queue.send(new BasicDBObject("key", 0));
+        queue.sendAll(Arrays.asList(new BasicDBObject("key", 1), new BasicDBObject("key", 2)), new Date(), 0.0);
+        assertEquals(2, listener.getSend().getCount());
+        assertEquals(3, listener.getSentCount());
+
+        final BasicDBObject message = queue.get(new BasicDBObject("key", 0), Integer.MAX_VALUE);
+        assertTrue(queue.extendLease(message, 60));
+        queue.ack(message);
+
+        final List<BasicDBObject> messages = queue.getBatch(new BasicDBObject(), Integer.MAX_VALUE, 10);
+        assertEquals(2, queue.requeueAll(messages));
+
+        assertNull(queue.get(new BasicDBObject("key", 3), Integer.MAX_VALUE, 100, 30));
+        queue.count(new BasicDBObject(), CountMode.CACHED);
+
+        assertEquals(3, listener.getGet().getCount());
+        assertEquals(3, listener.getReceivedCount());
+        assertTrue(listener.getGetPolls().getMax() > 1);
+        assertTrue(listener.getGetWait().getMax() > 0);
+        assertTrue(listener.getEmptyPollCount() > 1);
+        assertEquals(3, listener.getResetStuck().getCount());
+        assertEquals(1, listener.getExtendLease().getCount());
+        assertEquals(1, listener.getAckedCount());
+        assertEquals(2, listener.getRequeuedCount());
+        //the cached count and the exact count it refreshed with
+        assertEquals(2, listener.getCount().getCount());
+        assertTrue(listener.getGet().getMax() >= listener.getGetWait().getMax());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setStripes_zero() {
+        queue.setStripes(0);
+    }
+
+    @Test
+    public void get_stripes() {
+        queue.send(new BasicDBObject("key", -1));
+        queue.setStripes(4);
+        queue.ensureGetIndex();
+
+        final DBObject index = collection.getIndexInfo().get(1);
+        assertEquals(new BasicDBObject("running", 1).append("stripe", 1).append("priority", 1).append("created", 1).append("earliestGet", 1),
+                index.get("key"));
+
+        for (int i = 0; i < 20; ++i) {
+            queue.send(new BasicDBObject("key", i));
+        }
+
+        for (final DBObject message : collection.find(new BasicDBObject("payload.key", new BasicDBObject("$gte", 0)))) {
+            final int stripe = (Integer) message.get("stripe");
+            assertTrue(stripe >= 0 && stripe < 4);
+        }
+
+        //including the message sent before striping, which is in stripe 0
+        final Set<Object> keys = new HashSet<>();
+        for (int i = 0; i < 21; ++i) {
+            keys.add(queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0).get("key"));
+        }
+
+        assertEquals(21, keys.size());
+        assertNull(queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0));
+    }
+
+    @Test
+    public void getBatch_stripes() {
+        queue.setStripes(4);
+        for (int i = 0; i < 20; ++i) {
+            queue.send(new BasicDBObject("key", i));
+        }
+
+        assertEquals(15, queue.getBatch(new BasicDBObject(), Integer.MAX_VALUE, 15).size());
+        assertEquals(5, queue.getBatch(new BasicDBObject(), Integer.MAX_VALUE, 15).size());
+        assertEquals(20, queue.count(new BasicDBObject(), true));
+    }
+
+    @Test
+    public void ack_soft() {
+        queue.setSoftAck(true);
+        queue.send(new BasicDBObject("key", 0));
+        queue.send(new BasicDBObject("key", 1));
+
+        final BasicDBObject message = queue.get(new BasicDBObject("key", 0), Integer.MAX_VALUE);
+        queue.ack(message);
+
+        assertEquals(2, collection.count());
+        final DBObject acked = collection.findOne(new BasicDBObject("_id", message.get("id")));
+        assertTrue(acked.get("running") instanceof Date);
+        assertEquals(acked.get("running"), acked.get("ackedAt"));
+        assertEquals(1, queue.count(new BasicDBObject()));
+        assertEquals(0, queue.count(new BasicDBObject(), true));
+        assertEquals(1, queue.count(new BasicDBObject(), false));
+        assertFalse(queue.extendLease(message, 60));
+
+        //neither get() nor the stuck message reset see it
+        assertEquals(0, queue.resetStuck());
+        assertEquals(1, queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0).get("key"));
+        assertNull(queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0));
+
+        assertEquals(1, queue.purgeAcked(10));
+        assertEquals(1, collection.count());
+    }
+
+    @Test
+    public void requeueAll_softAcked() {
+        queue.setSoftAck(true);
+        queue.send(new BasicDBObject("key", 0));
+
+        final BasicDBObject message = queue.get(new BasicDBObject(), Integer.MAX_VALUE);
+        queue.ack(message);
+
+        assertEquals(0, queue.requeueAll(Arrays.asList(message)));
+        assertTrue(collection.findOne().get("running") instanceof Date);
+        assertNull(queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0));
+    }
+
+    @Test
+    public void ackAll_soft() {
+        queue.setSoftAck(true);
+        for (int i = 0; i < 5; ++i) {
+            queue.send(new BasicDBObject("key", i));
+        }
+
+        final List<BasicDBObject> messages = queue.getBatch(new BasicDBObject(), Integer.MAX_VALUE, 5);
+        assertEquals(5, queue.ackAll(messages));
+        assertEquals(0, queue.ackAll(messages));
+
+        assertEquals(5, collection.count());
+        assertEquals(0, queue.count(new BasicDBObject()));
+
+        assertEquals(2, queue.purgeAcked(2));
+        assertEquals(3, queue.purgeAcked(10));
+        assertEquals(0, queue.purgeAcked(10));
+        assertEquals(0, collection.count());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void purgeAcked_badBatchSize() {
+        queue.purgeAcked(0);
+    }
+
+    @Test
+    public void ensureAckTtlIndex() {
+        queue.ensureAckTtlIndex(3600);
+
+        final DBObject index = collection.getIndexInfo().get(1);
+        assertEquals(new BasicDBObject("ackedAt", 1), index.get("key"));
+        assertEquals(3600, ((Number) index.get("expireAfterSeconds")).intValue());
+    }
+
+    @Test
+    public void ensureAckTtlIndex_withCountIndexOnRunning() {
+        queue.ensureCountIndex(new BasicDBObject(), true);
+        queue.ensureAckTtlIndex(3600);
+
+        assertEquals(3, collection.getIndexInfo().size());
+    }
+
+    @Test
+    public void ack_softGridFsPayloadCodec() {
+        collection.getDB().getCollection("payloads.files").drop();
+        collection.getDB().getCollection("payloads.chunks").drop();
+        final DBCollection files = collection.getDB().getCollection("payloads.files");
+
+        queue.setSoftAck(true);
+        queue.setPayloadCodec(new GridFsPayloadCodec(collection.getDB(), "payloads", 0));
+        queue.send(new BasicDBObject("key", 0));
+
+        queue.ack(queue.get(new BasicDBObject(), Integer.MAX_VALUE));
+        assertEquals(1, files.count());
+
+        assertEquals(1, queue.purgeAcked(10));
+        assertEquals(0, files.count());
+    }
 }
@@ -0,0 +1,30 @@
+package gaillard.mongo;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ResetOnHitPollStrategyTest {
+
+    @Test(expected = NullPointerException.class)
+    public void construct_null() {
+        new ResetOnHitPollStrategy(null);
+    }
+
+    @Test
+    public void delay_keepsBackoffAcrossCalls() {
+        final PollStrategy strategy = new ResetOnHitPollStrategy(new ExponentialBackoffPollStrategy(10, 1000, 0.0));
+
+        assertEquals(10, strategy.delay(1));
+        assertEquals(20, strategy.delay(2));
+
+        //a new get() call starts counting at 1 again but the backoff continues
+        assertEquals(40, strategy.delay(1));
+        assertEquals(80, strategy.delay(1));
+
+        strategy.onHit();
+
+        assertEquals(10, strategy.delay(1));
+        assertEquals(20, strategy.delay(2));
+    }
+}
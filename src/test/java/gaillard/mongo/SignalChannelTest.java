@@ -0,0 +1,133 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoClient;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.Before;
+
+public class SignalChannelTest {
+
+    private DB db;
+    private DBCollection collection;
+    private SignalChannel signals;
+
+    @Before
+    public void setup() throws UnknownHostException {
+        db = new MongoClient().getDB("testing");
+        collection = db.getCollection("messages");
+        collection.drop();
+        db.getCollection("signals").drop();
+
+        signals = new SignalChannel(db, "signals");
+    }
+
+    @After
+    public void teardown() {
+        if (signals != null) {
+            signals.close();
+        }
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void construct_nullDb() {
+        new SignalChannel(null, "signals");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void construct_notCapped() {
+        collection.insert(new BasicDBObject());
+        new SignalChannel(db, "messages");
+    }
+
+    @Test
+    public void await_timeout() {
+        final long start = System.currentTimeMillis();
+
+        assertEquals(signals.version(), signals.await(signals.version(), 200));
+
+        final long elapsed = System.currentTimeMillis() - start;
+        assertTrue(elapsed >= 200);
+        assertTrue(elapsed < 400);
+    }
+
+    @Test
+    public void await_signal() throws InterruptedException {
+        final long version = signals.version();
+
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                signals.signal();
+            }
+        });
+
+        final long start = System.currentTimeMillis();
+        producer.start();
+
+        assertNotEquals(version, signals.await(version, 5000));
+        assertTrue(System.currentTimeMillis() - start < 2000);
+
+        producer.join();
+    }
+
+    @Test
+    public void await_signalBeforeAwait() throws InterruptedException {
+        final long version = signals.version();
+
+        signals.signal();
+        Thread.sleep(500);
+
+        final long start = System.currentTimeMillis();
+        assertNotEquals(version, signals.await(version, 5000));
+        assertTrue(System.currentTimeMillis() - start < 100);
+    }
+
+    @Test
+    public void get_wakesOnSend() throws InterruptedException {
+        final Queue queue = new Queue(collection);
+        queue.setSignalChannel(signals);
+
+        final AtomicReference<BasicDBObject> result = new AtomicReference<>();
+        final Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(queue.get(new BasicDBObject(), Integer.MAX_VALUE, 10000, 10000));
+            }
+        });
+
+        consumer.start();
+        Thread.sleep(200);
+
+        final long start = System.currentTimeMillis();
+        queue.send(new BasicDBObject("key", 0));
+        consumer.join();
+
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertNotNull(result.get());
+        assertEquals(0, result.get().get("key"));
+    }
+
+    @Test
+    public void get_waitWithSignals() {
+        final Queue queue = new Queue(collection);
+        queue.setSignalChannel(signals);
+
+        final long start = System.currentTimeMillis();
+
+        queue.get(new BasicDBObject(), Integer.MAX_VALUE, 200, 10000);
+
+        final long elapsed = System.currentTimeMillis() - start;
+        assertTrue(elapsed >= 200);
+        assertTrue(elapsed < 400);
+    }
+}
@@ -0,0 +1,151 @@
+package gaillard.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoClient;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.Before;
+
+public class StuckMessageReaperTest {
+
+    private DBCollection collection;
+    private DBCollection leases;
+    private Queue queue;
+
+    @Before
+    public void setup() throws UnknownHostException {
+        final DB db = new MongoClient().getDB("testing");
+        collection = db.getCollection("messages");
+        collection.drop();
+        leases = db.getCollection("leases");
+        leases.drop();
+
+        queue = new Queue(collection);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void construct_nullQueue() {
+        new StuckMessageReaper(null, 100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void construct_badInterval() {
+        new StuckMessageReaper(queue, 0);
+    }
+
+    @Test
+    public void resetStuckOnGet_disabled() {
+        queue.setResetStuckOnGet(false);
+        queue.send(new BasicDBObject());
+
+        assertNotNull(queue.get(new BasicDBObject(), 0));
+        assertNull(queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0));
+
+        assertEquals(1, queue.resetStuck());
+        assertNotNull(queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0));
+    }
+
+    @Test
+    public void sweep() {
+        final StuckMessageReaper reaper = new StuckMessageReaper(queue, 100);
+        queue.setResetStuckOnGet(false);
+
+        queue.send(new BasicDBObject());
+        queue.send(new BasicDBObject());
+        queue.get(new BasicDBObject(), 0);
+        queue.get(new BasicDBObject(), 0);
+
+        assertEquals(2, reaper.sweep());
+        assertEquals(2, reaper.getLastResetCount());
+        assertEquals(0, reaper.sweep());
+        assertEquals(0, reaper.getLastResetCount());
+        assertEquals(2, reaper.getTotalResetCount());
+    }
+
+    @Test
+    public void start_survivesFailure() throws InterruptedException {
+        final AtomicInteger sweeps = new AtomicInteger();
+        queue.setListener(new QueueListener() {
+            @Override
+            public void onResetStuck(final int messages, final long nanos) {
+                sweeps.incrementAndGet();
+                throw new IllegalStateException("listener failed");
+            }
+        });
+
+        final StuckMessageReaper reaper = new StuckMessageReaper(queue, 50);
+        reaper.start();
+        Thread.sleep(300);
+        reaper.close();
+
+        assertTrue(sweeps.get() >= 2);
+    }
+
+    @Test
+    public void startAndClose() throws InterruptedException {
+        final StuckMessageReaper reaper = new StuckMessageReaper(queue, 50);
+        reaper.start();
+
+        queue.send(new BasicDBObject());
+        assertNotNull(queue.get(new BasicDBObject(), 0));
+
+        Thread.sleep(200);
+
+        assertEquals(1, reaper.getTotalResetCount());
+        assertNotNull(queue.get(new BasicDBObject(), 0, 0));
+
+        reaper.close();
+
+        //get() resets again once the reaper is closed
+        assertNotNull(queue.get(new BasicDBObject(), Integer.MAX_VALUE, 0));
+    }
+
+    @Test
+    public void lease() {
+        final StuckMessageReaper first = new StuckMessageReaper(queue, 60000, leases, "reaper");
+        final StuckMessageReaper second = new StuckMessageReaper(queue, 60000, leases, "reaper");
+
+        queue.send(new BasicDBObject());
+        queue.get(new BasicDBObject(), 0);
+
+        assertEquals(1, second.sweep());
+        assertTrue(second.isLeader());
+
+        queue.get(new BasicDBObject(), 0);
+
+        assertEquals(0, first.sweep());
+        assertFalse(first.isLeader());
+
+        //holder keeps the lease
+        assertEquals(1, second.sweep());
+        assertTrue(second.isLeader());
+        assertEquals(2, second.getTotalResetCount());
+    }
+
+    @Test
+    public void lease_releasedOnClose() throws InterruptedException {
+        final StuckMessageReaper first = new StuckMessageReaper(queue, 60000, leases, "reaper");
+        final StuckMessageReaper second = new StuckMessageReaper(queue, 60000, leases, "reaper");
+
+        first.start();
+        Thread.sleep(200);
+        assertTrue(first.isLeader());
+
+        second.sweep();
+        assertFalse(second.isLeader());
+
+        first.close();
+
+        second.sweep();
+        assertTrue(second.isLeader());
+    }
+}